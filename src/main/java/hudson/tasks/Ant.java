@@ -30,18 +30,44 @@ import hudson.FilePath;
 import hudson.Functions;
 import hudson.Launcher;
 import hudson.Util;
+import hudson.console.LineTransformationOutputStream;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.AutoCompletionCandidates;
 import hudson.model.BuildListener;
 import hudson.model.Computer;
 import hudson.model.EnvironmentSpecific;
+import hudson.model.Item;
 import jenkins.model.Jenkins;
 import hudson.model.Node;
+import hudson.model.Project;
 import hudson.model.TaskListener;
 import hudson.remoting.Callable;
 import hudson.slaves.NodeSpecific;
 import hudson.tasks._ant.Messages;
+import hudson.tasks._ant.AntAdmission;
+import hudson.tasks._ant.AntCacheAction;
+import hudson.tasks._ant.AntCoalescedSteps;
 import hudson.tasks._ant.AntConsoleAnnotator;
+import hudson.tasks._ant.AntDaemons;
+import hudson.tasks._ant.AntEnvironmentCache;
+import hudson.tasks._ant.AntErgonomics;
+import hudson.tasks._ant.AntEvents;
+import hudson.tasks._ant.AntFlightRecorder;
+import hudson.tasks._ant.AntJvm;
+import hudson.tasks._ant.AntInstallationCache;
+import hudson.tasks._ant.AntResourceAction;
+import hudson.tasks._ant.AntResourceSampler;
+import hudson.tasks._ant.AntSecretMasker;
+import hudson.tasks._ant.AntStallDetector;
+import hudson.tasks._ant.AntStepCache;
+import hudson.tasks._ant.AntTargetGraph;
+import hudson.tasks._ant.AntTargetGraphParser;
+import hudson.tasks._ant.AntTargetsAction;
+import hudson.tasks._ant.AsyncOutputStream;
+import hudson.tasks._ant.EmbeddedAnt;
+import hudson.tasks._ant.ParallelAnt;
+import hudson.tasks._ant.ParallelTargets;
 import hudson.tools.ToolDescriptor;
 import hudson.tools.ToolInstallation;
 import hudson.tools.DownloadFromUrlInstaller;
@@ -52,17 +78,29 @@ import hudson.util.VariableResolver;
 import hudson.util.FormValidation;
 import hudson.util.XStream2;
 import net.sf.json.JSONObject;
+import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.QueryParameter;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.List;
 import java.util.Collections;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Ant launcher.
@@ -96,14 +134,67 @@ public class Ant extends Builder {
      * Optional properties to be passed to Ant. Follows {@link Properties} syntax.
      */
     private final String properties;
+
+    /**
+     * How Ant is run. Null means {@link ExecutionMode#FORK}, as in the data saved by earlier versions.
+     */
+    private final ExecutionMode executionMode;
+
+    /**
+     * How many Ant processes may run independent targets at the same time. 0 or 1 to run them one after another.
+     */
+    private final int parallelism;
+
+    /**
+     * True to run the targets that don't depend on each other concurrently within the Ant JVM.
+     */
+    private final boolean parallelTargets;
+
+    /**
+     * True to skip this build step when nothing it consumes has changed since its last successful run.
+     */
+    private final boolean skipWhenUnchanged;
+
+    /**
+     * Ant-style patterns of the files in the workspace this build step reads, in addition to the build script. May be null.
+     */
+    private final String inputs;
+
+    /**
+     * Ant-style patterns of the files in the workspace this build step produces,
+     * which are restored when it's skipped. May be null.
+     */
+    private final String outputs;
+
+    /**
+     * True to record the Ant JVM with the JDK Flight Recorder.
+     */
+    private final boolean flightRecording;
     
     @DataBoundConstructor
-    public Ant(String targets,String antName, String antOpts, String buildFile, String properties) {
+    public Ant(String targets,String antName, String antOpts, String buildFile, String properties, ExecutionMode executionMode,
+               int parallelism, boolean parallelTargets, boolean skipWhenUnchanged, String inputs, String outputs,
+               boolean flightRecording) {
         this.targets = targets;
         this.antName = antName;
         this.antOpts = Util.fixEmptyAndTrim(antOpts);
         this.buildFile = Util.fixEmptyAndTrim(buildFile);
         this.properties = Util.fixEmptyAndTrim(properties);
+        this.executionMode = executionMode==ExecutionMode.FORK ? null : executionMode;
+        this.parallelism = Math.max(0,parallelism);
+        this.parallelTargets = parallelTargets;
+        this.skipWhenUnchanged = skipWhenUnchanged;
+        this.inputs = Util.fixEmptyAndTrim(inputs);
+        this.outputs = Util.fixEmptyAndTrim(outputs);
+        this.flightRecording = flightRecording;
+    }
+
+    /**
+     * @deprecated
+     *      Use {@link #Ant(String, String, String, String, String, ExecutionMode, int, boolean, boolean, String, String, boolean)}
+     */
+    public Ant(String targets,String antName, String antOpts, String buildFile, String properties) {
+        this(targets,antName,antOpts,buildFile,properties,null,0,false,false,null,null,false);
     }
 
 	public String getBuildFile() {
@@ -137,87 +228,269 @@ public class Ant extends Builder {
         return antOpts;
     }
 
+    public ExecutionMode getExecutionMode() {
+        return executionMode==null ? ExecutionMode.FORK : executionMode;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public boolean isParallelTargets() {
+        return parallelTargets;
+    }
+
+    public boolean isSkipWhenUnchanged() {
+        return skipWhenUnchanged;
+    }
+
+    public String getInputs() {
+        return inputs;
+    }
+
+    public String getOutputs() {
+        return outputs;
+    }
+
+    public boolean isFlightRecording() {
+        return flightRecording;
+    }
+
     @Override
     public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+        Boolean done = AntCoalescedSteps.take(build, this);
+        if (done!=null) {
+            listener.getLogger().println(Messages.Ant_Coalesced());
+            return done;
+        }
+
         ArgumentListBuilder args = new ArgumentListBuilder();
 
-        EnvVars env = build.getEnvironment(listener);
-        env.overrideAll(build.getBuildVariables());
+        // the previous Ant build steps of this build may have computed it already
+        EnvVars env = AntEnvironmentCache.getEnvironment(build, listener);
         
         AntInstallation ai = getAnt();
+        Node node = Computer.currentComputer().getNode();
+        String exe = null;
+        if(ai!=null) {
+            ai = AntInstallationCache.forNode(ai, node, listener);
+            ai = ai.forEnvironment(env);
+            exe = AntInstallationCache.getCachedExecutable(ai, node);
+        }
+
+        VariableResolver<String> vr = new VariableResolver.ByMap<String>(env);
+        String buildFile = env.expand(this.buildFile);
+        String targets = env.expand(this.targets);
+
+        // everything we need to know about the node before launching Ant, in one round trip
+        FilePath moduleRoot = build.getModuleRoot();
+        long preflightStart = System.currentTimeMillis();
+        PreflightResult pf = launcher.getChannel().call(new Preflight(ai!=null && exe==null ? ai.getHome() : null,
+                moduleRoot.getRemote(), build.getWorkspace().getRemote(), buildFilePath(buildFile, targets),
+                AntErgonomics.ENABLED || parallelTargets, AntErgonomics.ENABLED || flightRecording, env.get("JAVA_HOME"), env.get("PATH")));
+        LOGGER.log(Level.FINE, "Pre-flight check of {0} on {1} took {2}ms", new Object[] {
+                build.getFullDisplayName(), node==null ? null : node.getDisplayName(), System.currentTimeMillis()-preflightStart});
+
         if(ai==null) {
             args.add(launcher.isUnix() ? "ant" : "ant.bat");
         } else {
-            ai = ai.forNode(Computer.currentComputer().getNode(), listener);
-            ai = ai.forEnvironment(env);
-            String exe = ai.getExecutable(launcher);
+            if (exe==null)
+                exe = pf.executable;
             if (exe==null) {
+                pf.printDiagnostics(listener);
                 listener.fatalError(Messages.Ant_ExecutableNotFound(ai.getName()));
                 return false;
             }
+            AntInstallationCache.putExecutable(ai, node, exe);
             args.add(exe);
         }
 
-        VariableResolver<String> vr = new VariableResolver.ByMap<String>(env);
-        String buildFile = env.expand(this.buildFile);
-        String targets = env.expand(this.targets);
-        
-        FilePath buildFilePath = buildFilePath(build.getModuleRoot(), buildFile, targets);
+        if(pf.buildFile==null) {
+            pf.printDiagnostics(listener);
+            listener.fatalError("Unable to find build script at "+moduleRoot.child(buildFilePath(buildFile, targets)));
+            return false;
+        }
+        FilePath buildFilePath = new FilePath(moduleRoot.getChannel(), pf.buildFile);
 
-        if(!buildFilePath.exists()) {
-            // because of the poor choice of getModuleRoot() with CVS/Subversion, people often get confused
-            // with where the build file path is relative to. Now it's too late to change this behavior
-            // due to compatibility issue, but at least we can make this less painful by looking for errors
-            // and diagnosing it nicely. See HUDSON-1782
+        if(buildFile!=null) {
+            args.add("-file", buildFilePath.getName());
+        }
 
-            // first check if this appears to be a valid relative path from workspace root
-            FilePath buildFilePath2 = buildFilePath(build.getWorkspace(), buildFile, targets);
-            if(buildFilePath2.exists()) {
-                // This must be what the user meant. Let it continue.
-                buildFilePath = buildFilePath2;
-            } else {
-                // neither file exists. So this now really does look like an error.
-                listener.fatalError("Unable to find build script at "+buildFilePath);
-                return false;
+        AntTargetsAction targetsAction = build.getAction(AntTargetsAction.class);
+        if (targetsAction==null) {
+            // shared by all the Ant build steps of this build
+            targetsAction = new AntTargetsAction();
+            build.addAction(targetsAction);
+        }
+
+        // the other modes only work with a known Ant installation, which they load the classes from
+        ExecutionMode mode = ai!=null ? getExecutionMode() : ExecutionMode.FORK;
+
+        // the Ant build steps that follow and that can run in the same Ant invocation as this one
+        Coalesced coalesced = null;
+        if (COALESCE && mode==ExecutionMode.FORK) {
+            coalesced = coalesce(build, env, buildFilePath, targetsAction);
+            if (coalesced!=null) {
+                targets = coalesced.addTargets(targets, env);
+                listener.getLogger().println(Messages.Ant_Coalescing(coalesced.steps.size()-1));
             }
         }
 
-        if(buildFile!=null) {
-            args.add("-file", buildFilePath.getName());
+        AntStepCache cache = null;
+        String fingerprint = null;
+        if (skipWhenUnchanged) {
+            cache = AntStepCache.of(node, build.getWorkspace(), buildFilePath.getRemote()+'\0'+targets);
+            if (cache!=null) {
+                try {
+                    fingerprint = cache.fingerprint(buildFilePath, env.expand(inputs), ai!=null ? ai.getHome() : null,
+                            getFingerprintSalt(build, env, vr, ai, mode));
+                    long restored = cache.restore(fingerprint);
+                    if (restored>=0) {
+                        AntCacheAction.of(build).hit(restored);
+                        listener.getLogger().println(Messages.Ant_Unchanged());
+                        return true;
+                    }
+                    AntCacheAction.of(build).miss();
+                } catch (IOException e) {
+                    // just run Ant
+                    e.printStackTrace(listener.error(Messages.Ant_FingerprintFailed()));
+                    cache = null;
+                }
+            }
+        }
+
+        // independent targets that can each go to their own Ant process
+        List<List<String>> groups = null;
+        if (parallelism>1 && mode==ExecutionMode.FORK)
+            groups = independentGroups(buildFilePath, targets, listener);
+
+        // one runner per processor of the executor's share of the node, not of the whole node
+        boolean concurrent = parallelTargets && mode==ExecutionMode.FORK
+                && ParallelTargets.addTo(args, node, targets,
+                        pf.processors>0 && node!=null ? Math.max(1, pf.processors/Math.max(1, node.getNumExecutors())) : 0);
+
+        String label = targets.trim().length()>0 ? targets.trim() : buildFilePath.getName();
+        Instruments in = new Instruments();
+        // concurrent targets can't be timed from the console output, where they interleave
+        if ((AntEvents.ENABLED || concurrent) && mode==ExecutionMode.FORK && groups==null) {
+            in.events = AntEvents.start(launcher, targetsAction, listener);
+            if (in.events!=null)
+                in.events.addTo(args, env);
         }
 
         Set<String> sensitiveVars = build.getSensitiveBuildVariables();
 
-        args.addKeyValuePairs("-D",build.getBuildVariables(),sensitiveVars);
+        Map<String,String> props = PROPERTY_FILE_THRESHOLD>0 ? getProperties(build, vr) : null;
+        if (props!=null && props.size()>PROPERTY_FILE_THRESHOLD) {
+            // sensitive values stay on the command line, where they are masked
+            Properties p = new Properties();
+            Map<String,String> sensitive = new LinkedHashMap<String,String>();
+            for (Map.Entry<String,String> e : props.entrySet()) {
+                if (sensitiveVars.contains(e.getKey()))
+                    sensitive.put(e.getKey(), e.getValue());
+                else
+                    p.setProperty(e.getKey(), e.getValue());
+            }
+            in.propertyFile = new FilePath(launcher.getChannel(), launcher.getChannel().call(new WritePropertyFile(p)));
+            args.add("-propertyfile", in.propertyFile.getRemote());
+            args.addKeyValuePairs("-D",sensitive,sensitiveVars);
+        } else {
+            args.addKeyValuePairs("-D",build.getBuildVariables(),sensitiveVars);
 
-        args.addKeyValuePairsFromPropertyString("-D",properties,vr,sensitiveVars);
+            args.addKeyValuePairsFromPropertyString("-D",properties,vr,sensitiveVars);
+        }
 
-        args.addTokenized(targets.replaceAll("[\t\r\n]+"," "));
+        if (groups==null)
+            args.addTokenized(targets.replaceAll("[\t\r\n]+"," "));
+        else
+            args.add(split(targets).get(0));
 
         if(ai!=null)
             ai.buildEnvVars(env);
         if(antOpts!=null)
             env.put("ANT_OPTS",env.expand(antOpts));
+        if (AntErgonomics.ENABLED && pf.processors>0 && mode==ExecutionMode.FORK && node!=null) {
+            // parallel groups are that many more JVMs
+            int jvms = node.getNumExecutors()*(groups==null ? 1 : Math.min(groups.size(), parallelism));
+            List<String> opts = AntErgonomics.getOptions(pf.processors, pf.memory, jvms, env.get("ANT_OPTS"), pf.jvm);
+            if (!opts.isEmpty()) {
+                String s = Util.join(opts," ");
+                listener.getLogger().println(Messages.Ant_Ergonomics(jvms, pf.processors, pf.memory/(1024*1024), s));
+                // whatever the user set comes last, so it would win anyway
+                String user = env.get("ANT_OPTS");
+                env.put("ANT_OPTS", user==null ? s : s+" "+user);
+            }
+        }
 
-        if(!launcher.isUnix()) {
-            args = args.toWindowsCommand();
-            // For some reason, ant on windows rejects empty parameters but unix does not.
-            // Add quotes for any empty parameter values:
-            List<String> newArgs = new ArrayList<String>(args.toList());
-            newArgs.set(newArgs.size() - 1, newArgs.get(newArgs.size() - 1).replaceAll(
-                    "(?<= )(-D[^\" ]+)= ", "$1=\"\" "));
-            args = new ArgumentListBuilder(newArgs.toArray(new String[newArgs.size()]));
+        // parallel groups would all write to the same recording
+        if (flightRecording && mode==ExecutionMode.FORK && groups==null) {
+            in.recorder = AntFlightRecorder.start(launcher, pf.jvm, node==null ? null : node.getRootPath(), listener);
+            if (in.recorder!=null) {
+                String opts = env.get("ANT_OPTS");
+                env.put("ANT_OPTS", (opts==null ? "" : opts+" ")+in.recorder.getJvmOptions());
+            }
         }
 
+        List<ArgumentListBuilder> commands = new ArrayList<ArgumentListBuilder>();
+        List<String> labels = new ArrayList<String>();
+        if (groups!=null) {
+            for (List<String> g : groups) {
+                commands.add(toPlatformCommand(args.clone().add(g.toArray(new String[g.size()])), launcher));
+                labels.add(Util.join(g,","));
+            }
+            listener.getLogger().println(Messages.Ant_ParallelGroups(Util.join(labels,"; ")));
+        }
+        args = toPlatformCommand(args, launcher);
+
         long startTime = System.currentTimeMillis();
         try {
-            AntConsoleAnnotator aca = new AntConsoleAnnotator(listener.getLogger(),build.getCharset());
             int r;
             try {
-                r = launcher.launch().cmds(args).envs(env).stdout(aca).pwd(buildFilePath.getParent()).join();
+                if (mode==ExecutionMode.FORK) {
+                    // waiting for the other Ant processes of the node is neither a stall nor a resource
+                    in.ticket = AntAdmission.admit(node, groups==null ? 1 : Math.max(1, Math.min(groups.size(), parallelism)),
+                            env.get("ANT_OPTS"), build, listener);
+                    startTime = System.currentTimeMillis();
+                }
+
+                // the target index records offsets relative to where our output starts in the log,
+                // which is after whatever the waiting printed
+                listener.getLogger().flush();
+                targetsAction.stepStarted(build.getLogFile().length(), in.events!=null);
+                in.started = true;
+
+                in.aca = new AntConsoleAnnotator(listener.getLogger(),build.getCharset(),targetsAction);
+                // Ant may well echo the sensitive values that the command line hides
+                List<String> secrets = new ArrayList<String>();
+                for (String v : sensitiveVars)
+                    secrets.add(env.get(v));
+                AntSecretMasker masker = AntSecretMasker.of(build, secrets, build.getCharset());
+                in.masked = masker!=null ? masker.filter(in.aca) : null;
+                OutputStream stdout = in.masked!=null ? in.masked : in.aca;
+                if (AsyncOutputStream.BUFFER_SIZE>0)
+                    // keep the annotation off the thread that reads the process output
+                    stdout = in.async = new AsyncOutputStream(stdout, AsyncOutputStream.BUFFER_SIZE, AsyncOutputStream.OVERFLOW, build.getFullDisplayName());
+
+                if (mode==ExecutionMode.FORK)
+                    in.sampler = AntResourceSampler.start(launcher, env);
+                // the output of parallel groups goes to their own annotators
+                if (groups==null)
+                    in.stall = AntStallDetector.start(build, launcher, in.aca, env);
+                Integer d = mode!=ExecutionMode.FORK ? runWithoutFork(mode, build, launcher, listener, ai, env, buildFilePath, targets, vr, stdout) : null;
+                if (d!=null)
+                    r = d;
+                else if (groups!=null)
+                    r = new ParallelAnt(launcher, env, buildFilePath.getParent(), listener, build.getCharset(), masker).run(commands, labels, parallelism);
+                else
+                    r = launcher.launch().cmds(args).envs(env).stdout(stdout).pwd(buildFilePath.getParent()).join();
             } finally {
-                aca.forceEol();
+                in.finish(build, listener, targetsAction, label);
             }
+            if (coalesced!=null)
+                // tell the other build steps how they did, by where Ant stopped
+                return coalesced.record(build, targetsAction, r);
+            if (r==0 && cache!=null)
+                storeOutputs(cache, fingerprint, env, listener);
             return r==0;
         } catch (IOException e) {
             Util.displayIOException(e,listener);
@@ -236,17 +509,501 @@ public class Ant extends Builder {
         }
     }
 
-    private static FilePath buildFilePath(FilePath base, String buildFile, String targets) {
-        if(buildFile!=null)     return base.child(buildFile);
+    private void storeOutputs(AntStepCache cache, String fingerprint, EnvVars env, BuildListener listener) throws InterruptedException {
+        try {
+            cache.store(fingerprint, env.expand(outputs));
+        } catch (IOException e) {
+            e.printStackTrace(listener.error(Messages.Ant_FingerprintFailed()));
+        }
+    }
+
+    /**
+     * Everything attached to one Ant invocation that has to be wound down once it's over, whatever happened.
+     * Each is set once it has been started.
+     */
+    private static final class Instruments {
+        AntAdmission.Ticket ticket;
+        AntStallDetector stall;
+        AntResourceSampler sampler;
+        AsyncOutputStream async;
+        LineTransformationOutputStream masked;
+        AntConsoleAnnotator aca;
+        AntEvents events;
+        FilePath propertyFile;
+        AntFlightRecorder recorder;
+        /**
+         * Whether the step was started in the target index, which only happens once the node admitted it.
+         */
+        boolean started;
+
+        /**
+         * @param label
+         *      What to show the samples and the recording of the invocation as.
+         */
+        void finish(AbstractBuild<?,?> build, BuildListener listener, AntTargetsAction targetsAction, String label) throws IOException, InterruptedException {
+            if (ticket!=null)
+                ticket.release();
+            if (stall!=null)
+                stall.finish();
+            if (sampler!=null) {
+                try {
+                    AntResourceAction.Series series = sampler.finish(label);
+                    if (series!=null)
+                        AntResourceAction.of(build).add(series);
+                } catch (IOException e) {
+                    e.printStackTrace(listener.error(Messages.Ant_SamplingFailed()));
+                }
+            }
+            // each of these has to happen even if the one before fails
+            try {
+                if (async!=null)
+                    async.finish();
+            } finally {
+                try {
+                    if (masked!=null)
+                        masked.forceEol();
+                } finally {
+                    try {
+                        if (aca!=null)
+                            aca.forceEol();
+                    } finally {
+                        try {
+                            if (events!=null)
+                                events.finish();
+                        } finally {
+                            // where the output of the step ends, for the target index
+                            if (started) {
+                                listener.getLogger().flush();
+                                targetsAction.stepFinished(System.currentTimeMillis(), build.getLogFile().length());
+                            }
+                            if (propertyFile!=null)
+                                deleteQuietly(propertyFile.getParent());
+                            if (recorder!=null) {
+                                try {
+                                    recorder.finish(build, label, listener);
+                                } catch (IOException e) {
+                                    e.printStackTrace(listener.error(Messages.Ant_FlightRecordingFailed()));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static ArgumentListBuilder toPlatformCommand(ArgumentListBuilder args, Launcher launcher) {
+        if(!launcher.isUnix()) {
+            args = args.toWindowsCommand();
+            // For some reason, ant on windows rejects empty parameters but unix does not.
+            // Add quotes for any empty parameter values:
+            List<String> newArgs = new ArrayList<String>(args.toList());
+            newArgs.set(newArgs.size() - 1, newArgs.get(newArgs.size() - 1).replaceAll(
+                    "(?<= )(-D[^\" ]+)= ", "$1=\"\" "));
+            args = new ArgumentListBuilder(newArgs.toArray(new String[newArgs.size()]));
+        }
+        return args;
+    }
+
+    /**
+     * Everything other than files that can change the outcome of this build step.
+     */
+    private String getFingerprintSalt(AbstractBuild<?,?> build, EnvVars env, VariableResolver<String> vr, AntInstallation ai, ExecutionMode mode) {
+        StringBuilder buf = new StringBuilder();
+        buf.append(env.expand(targets)).append('\0');
+        buf.append(Util.replaceMacro(properties, vr)).append('\0');
+        buf.append(new TreeMap<String,String>(build.getBuildVariables())).append('\0');
+        buf.append(antOpts!=null ? env.expand(antOpts) : env.get("ANT_OPTS")).append('\0');
+        // the installation itself is covered by the digest of its ant.jar, wherever it's installed
+        buf.append(ai!=null).append('\0').append(outputs).append('\0');
+        buf.append(mode).append('\0').append(parallelism).append('\0').append(parallelTargets);
+        return buf.toString();
+    }
+
+    /**
+     * This build step and the Ant build steps right after it in the project that can be run
+     * by the same Ant invocation, by just adding their targets.
+     */
+    private List<Ant> getCoalescibleSteps(AbstractBuild<?,?> build) {
+        List<Ant> r = new ArrayList<Ant>();
+        r.add(this);
+        if (!(build.getProject() instanceof Project) || !isCoalescible())
+            return r;
+        List<Builder> builders = ((Project<?,?>)build.getProject()).getBuilders();
+        for (int i=builders.indexOf(this)+1; i>0 && i<builders.size(); i++) {
+            if (!(builders.get(i) instanceof Ant))
+                break;
+            Ant a = (Ant)builders.get(i);
+            if (!a.isCoalescible() || !eq(antName,a.antName) || !eq(antOpts,a.antOpts) || !eq(buildFile,a.buildFile)
+                    || !eq(properties,a.properties) || flightRecording!=a.flightRecording
+                    || !split(targets).get(0).equals(split(a.targets).get(0)))
+                break;
+            r.add(a);
+        }
+        return r;
+    }
+
+    private boolean isCoalescible() {
+        if (getExecutionMode()!=ExecutionMode.FORK || parallelism>1 || parallelTargets || skipWhenUnchanged)
+            return false;
+        List<List<String>> s = split(targets);
+        // with -keep-going, we couldn't tell where each build step ends
+        return !s.get(1).isEmpty() && !s.get(0).contains("-k") && !s.get(0).contains("-keep-going");
+    }
+
+    private static boolean eq(Object a, Object b) {
+        return a==null ? b==null : a.equals(b);
+    }
+
+    /**
+     * Finds the Ant build steps that follow this one and that can run in the same Ant invocation,
+     * or returns null if there are none.
+     */
+    private Coalesced coalesce(AbstractBuild<?,?> build, EnvVars env, FilePath buildFilePath, AntTargetsAction targetsAction) throws InterruptedException {
+        List<Ant> steps = getCoalescibleSteps(build);
+        if (steps.size()<2)
+            return null;
+        List<List<String>> plans = getPlans(steps, env, buildFilePath);
+        if (plans==null)
+            return null;
+        return new Coalesced(steps, plans, targetsAction.getTargets().size());
+    }
+
+    /**
+     * Ant build steps that run in a single Ant invocation, the first one of which runs it.
+     */
+    private static final class Coalesced {
+        final List<Ant> steps;
+        /**
+         * The targets Ant is expected to run for each step.
+         */
+        final List<List<String>> plans;
+        /**
+         * How many targets the build had run before the invocation.
+         */
+        final int targetCount;
+
+        Coalesced(List<Ant> steps, List<List<String>> plans, int targetCount) {
+            this.steps = steps;
+            this.plans = plans;
+            this.targetCount = targetCount;
+        }
+
+        /**
+         * Adds the targets of the other steps to those of the first one.
+         */
+        String addTargets(String targets, EnvVars env) {
+            StringBuilder buf = new StringBuilder(targets);
+            for (Ant a : steps.subList(1, steps.size()))
+                buf.append(' ').append(Util.join(split(env.expand(a.targets)).get(1)," "));
+            return buf.toString();
+        }
+
+        /**
+         * Works out how each step did from where Ant stopped, and records it for the other steps to pick up.
+         *
+         * @return
+         *      The outcome of the first step.
+         */
+        boolean record(AbstractBuild<?,?> build, AntTargetsAction targetsAction, int exitCode) {
+            List<String> started = new ArrayList<String>();
+            List<AntTargetsAction.Target> all = targetsAction.getTargets();
+            for (AntTargetsAction.Target t : all.subList(targetCount, all.size()))
+                started.add(t.getName());
+            int failed = exitCode==0 ? steps.size() : AntCoalescedSteps.getFailedStep(plans, started);
+            for (int i=1; i<steps.size() && i<=failed; i++)
+                AntCoalescedSteps.record(build, steps.get(i), i<failed);
+            return failed>0;
+        }
+    }
+
+    /**
+     * The targets Ant will run for each build step, or null if that can't be known in advance.
+     */
+    private static List<List<String>> getPlans(List<Ant> steps, EnvVars env, FilePath buildFilePath) throws InterruptedException {
+        try {
+            AntTargetGraph graph = AntTargetGraphParser.parse(buildFilePath);
+            List<List<String>> plans = new ArrayList<List<String>>();
+            for (Ant a : steps) {
+                List<String> plan = new ArrayList<String>();
+                for (List<String> p : graph.getExecutionPlan(split(env.expand(a.targets)).get(1)).values())
+                    plan.addAll(p);
+                plans.add(plan);
+            }
+            return plans;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to read "+buildFilePath, e);
+        } catch (IllegalArgumentException e) {
+            // let Ant report it
+        }
+        return null;
+    }
+
+    /**
+     * Splits the targets field into the Ant options (with their arguments) and the target names.
+     *
+     * @return
+     *      A list of two lists, the options first.
+     */
+    private static List<List<String>> split(String targets) {
+        List<String> options = new ArrayList<String>(), names = new ArrayList<String>();
+        String[] tokens = Util.tokenize(targets.replaceAll("[\t\r\n]+"," "));
+        for (int i=0; i<tokens.length; i++) {
+            if (OPTIONS_WITH_ARGUMENT.contains(tokens[i]) && i+1<tokens.length) {
+                options.add(tokens[i]);
+                options.add(tokens[++i]);
+            } else if (tokens[i].startsWith("-")) {
+                options.add(tokens[i]);
+            } else {
+                names.add(tokens[i]);
+            }
+        }
+        return Arrays.asList(options, names);
+    }
+
+    /**
+     * Groups the requested targets for {@link ParallelAnt}, or returns null if they should run as usual.
+     */
+    private static List<List<String>> independentGroups(FilePath buildFilePath, String targets, BuildListener listener) throws InterruptedException {
+        if (targets.contains("$"))
+            return null;    // not expanded
+        List<String> names = split(targets).get(1);
+        if (names.size()<2)
+            return null;
+        try {
+            List<List<String>> groups = AntTargetGraphParser.parse(buildFilePath).getIndependentGroups(names);
+            return groups.size()>1 ? groups : null;
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to read the targets of "+buildFilePath+". Running them one after another"));
+        } catch (IllegalArgumentException e) {
+            // let Ant report it
+        }
+        return null;
+    }
+
+    /**
+     * Runs the build in a warm Ant JVM kept by {@link AntDaemons}, or in the JVM of the node itself.
+     *
+     * @return
+     *      The exit code, or null if the build has to be forked as usual,
+     *      in which case nothing has been written to {@code out}.
+     */
+    private Integer runWithoutFork(ExecutionMode mode, AbstractBuild<?,?> build, Launcher launcher, BuildListener listener, AntInstallation ai,
+                                EnvVars env, FilePath buildFilePath, String targets, VariableResolver<String> vr,
+                                OutputStream out) throws IOException, InterruptedException {
+        Map<String,String> props = getProperties(build, vr);
+
+        List<String> targetList = new ArrayList<String>();
+        String[] tokens = Util.tokenize(targets.replaceAll("[\t\r\n]+"," "));
+        for (int i=0; i<tokens.length; i++) {
+            String t = tokens[i];
+            if (t.equals("-f") || t.equals("-file") || t.equals("-buildfile")) {
+                i++;    // already taken into account by buildFilePath
+            } else if (t.startsWith("-D") && t.indexOf('=')>2) {
+                int idx = t.indexOf('=');
+                props.put(t.substring(2,idx), t.substring(idx+1));
+            } else if (t.startsWith("-")) {
+                listener.getLogger().println(Messages.Ant_UnsupportedOption(t, mode.getDisplayName()));
+                return null;
+            } else {
+                targetList.add(t);
+            }
+        }
+
+        if (mode==ExecutionMode.EMBEDDED) {
+            Integer r = EmbeddedAnt.run(launcher, ai.getHome(), buildFilePath, targetList, props, out);
+            if (r==null)
+                listener.getLogger().println(Messages.Ant_EmbeddedUnavailable());
+            return r;
+        }
+
+        Integer r = AntDaemons.run(launcher, env.get("JAVA_HOME"), ai.getHome(), env.get("ANT_OPTS"),
+                buildFilePath, targetList, props, out);
+        if (r==null)
+            listener.getLogger().println(Messages.Ant_DaemonUnavailable());
+        return r;
+    }
+
+    /**
+     * The build variables and the properties of this build step, as they are passed to Ant with <tt>-D</tt>.
+     */
+    private Map<String,String> getProperties(AbstractBuild<?,?> build, VariableResolver<String> vr) throws IOException {
+        // same precedence as on the command line: the later definition wins
+        Map<String,String> props = new LinkedHashMap<String,String>(build.getBuildVariables());
+        if (properties!=null) {
+            Properties p = new Properties();
+            p.load(new StringReader(properties));
+            for (Map.Entry<Object,Object> e : p.entrySet())
+                props.put(e.getKey().toString(), Util.replaceMacro(e.getValue().toString(),vr));
+        }
+        return props;
+    }
+
+    private static void deleteQuietly(FilePath f) {
+        try {
+            f.deleteRecursive();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete "+f, e);
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete "+f, e);
+        }
+    }
+
+    /**
+     * Build script path relative to the module root, or absolute.
+     */
+    private static String buildFilePath(String buildFile, String targets) {
+        if(buildFile!=null)     return buildFile;
         // some users specify the -f option in the targets field, so take that into account as well.
         // see 
         String[] tokens = Util.tokenize(targets);
         for (int i = 0; i<tokens.length-1; i++) {
             String a = tokens[i];
             if(a.equals("-f") || a.equals("-file") || a.equals("-buildfile"))
-                return base.child(tokens[i+1]);
+                return tokens[i+1];
+        }
+        return "build.xml";
+    }
+
+    /**
+     * Checks the node before launching Ant. Looks for the executable and the build script.
+     */
+    private static final class Preflight implements Callable<PreflightResult,IOException> {
+        /**
+         * Home of the Ant installation whose executable should be looked for, or null.
+         */
+        private final String antHome;
+        private final String moduleRoot, workspace, buildFile;
+
+        /**
+         * True to also find out the size of the node, for {@link AntErgonomics}.
+         */
+        private final boolean size;
+        /**
+         * True to also find the JVM that will run Ant, for {@link AntErgonomics} and {@link AntFlightRecorder}.
+         */
+        private final boolean jvm;
+        /**
+         * <tt>JAVA_HOME</tt> and <tt>PATH</tt> of the build, to find the JVM with.
+         */
+        private final String javaHome, path;
+
+        Preflight(String antHome, String moduleRoot, String workspace, String buildFile, boolean size, boolean jvm,
+                  String javaHome, String path) {
+            this.antHome = antHome;
+            this.moduleRoot = moduleRoot;
+            this.workspace = workspace;
+            this.buildFile = buildFile;
+            this.size = size;
+            this.jvm = jvm;
+            this.javaHome = javaHome;
+            this.path = path;
+        }
+
+        public PreflightResult call() throws IOException {
+            PreflightResult r = new PreflightResult();
+
+            if (size) {
+                r.processors = Runtime.getRuntime().availableProcessors();
+                r.memory = AntErgonomics.getMemory();
+            }
+            if (jvm)
+                r.jvm = AntJvm.find(javaHome, path);
+
+            if (antHome!=null) {
+                File exe = AntInstallation.getExeFile(antHome);
+                if (exe.exists())
+                    r.executable = exe.getPath();
+                else
+                    r.diagnostics.add("No Ant executable at "+exe);
+            }
+
+            // because of the poor choice of getModuleRoot() with CVS/Subversion, people often get confused
+            // with where the build file path is relative to. Now it's too late to change this behavior
+            // due to compatibility issue, but at least we can make this less painful by looking for errors
+            // and diagnosing it nicely. See HUDSON-1782
+
+            // so if it's not in the module root, check if this appears to be a valid relative path from workspace root
+            for (String base : new String[] {moduleRoot,workspace}) {
+                File f = new File(buildFile);
+                if (!f.isAbsolute())
+                    f = new File(base,buildFile);
+                if (f.exists()) {
+                    r.buildFile = f.getPath();
+                    break;
+                }
+                r.diagnostics.add("No build script at "+f);
+            }
+            return r;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Writes properties to a temporary file on the node, for <tt>-propertyfile</tt>.
+     */
+    private static final class WritePropertyFile implements Callable<String,IOException> {
+        private final Properties props;
+
+        WritePropertyFile(Properties props) {
+            this.props = props;
+        }
+
+        public String call() throws IOException {
+            // the values may be nobody else's business, and a file that is made private once it exists
+            // can still be opened in the mean time, so it goes in a directory that is private before the file exists
+            File dir = File.createTempFile("ant", ".properties.d");
+            if (!dir.delete() || !dir.mkdir())
+                throw new IOException("Failed to create the directory "+dir);
+            dir.setReadable(false, false);
+            dir.setWritable(false, false);
+            dir.setExecutable(false, false);
+            dir.setReadable(true, true);
+            dir.setWritable(true, true);
+            dir.setExecutable(true, true);
+            File f = new File(dir, "ant.properties");
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+            try {
+                props.store(out, null);
+            } finally {
+                out.close();
+            }
+            return f.getPath();
         }
-        return base.child("build.xml");
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class PreflightResult implements java.io.Serializable {
+        /**
+         * Path of the Ant executable, or null if it wasn't looked for or wasn't found.
+         */
+        String executable;
+        /**
+         * Path of the build script, or null if not found.
+         */
+        String buildFile;
+        /**
+         * Processors and bytes of memory of the node, or 0 if they weren't asked for.
+         */
+        int processors;
+        long memory;
+        /**
+         * The JVM that will run Ant, or null if it wasn't asked for or can't be told.
+         */
+        AntJvm jvm;
+        /**
+         * What was checked and didn't pan out.
+         */
+        final List<String> diagnostics = new ArrayList<String>();
+
+        void printDiagnostics(TaskListener listener) {
+            for (String d : diagnostics)
+                listener.getLogger().println(d);
+        }
+
+        private static final long serialVersionUID = 1L;
     }
 
     @Override
@@ -288,8 +1045,117 @@ public class Ant extends Builder {
 
         public void setInstallations(AntInstallation... antInstallations) {
             this.installations = antInstallations;
+            AntInstallationCache.invalidateAll();
             save();
         }
+
+        /**
+         * Suggests the targets of the build script found in the workspace.
+         *
+         * @param buildFile
+         *      The build file field of the form, which the core doesn't send along, but <tt>targets.js</tt> does.
+         */
+        public AutoCompletionCandidates doAutoCompleteTargets(@AncestorInPath AbstractProject<?,?> project,
+                                                              @QueryParameter String value, @QueryParameter String buildFile) {
+            AutoCompletionCandidates c = new AutoCompletionCandidates();
+            AntTargetGraph g = readTargetGraph(project, buildFile);
+            if (g!=null)
+                for (String t : g.getTargetNames())
+                    if (t.startsWith(value))
+                        c.add(t);
+            return c;
+        }
+
+        /**
+         * Shows what targets Ant will execute, according to the build script found in the workspace.
+         */
+        public FormValidation doCheckTargets(@AncestorInPath AbstractProject<?,?> project,
+                                             @QueryParameter String value, @QueryParameter String buildFile) {
+            if (value.contains("$"))
+                return FormValidation.ok(); // can't tell before the build
+            AntTargetGraph g = readTargetGraph(project, buildFile);
+            if (g==null)
+                return FormValidation.ok();
+
+            List<String> requested = split(value).get(1);
+
+            StringBuilder plan = new StringBuilder();
+            try {
+                for (List<String> l : g.getExecutionPlan(requested).values()) {
+                    for (String t : l) {
+                        if (plan.length()>0)
+                            plan.append(", ");
+                        plan.append(t);
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                return FormValidation.warning(e.getMessage());
+            }
+            return FormValidation.ok(Messages.Ant_ExecutionPlan(plan));
+        }
+
+        /**
+         * Reads the targets of the build script in the workspace of the last build, if it's there.
+         */
+        private static AntTargetGraph readTargetGraph(AbstractProject<?,?> project, String buildFile) {
+            if (project==null || !project.hasPermission(Item.CONFIGURE))
+                return null;
+            buildFile = Util.fixEmptyAndTrim(buildFile);
+            if (buildFile!=null && buildFile.contains("$"))
+                return null;
+            AbstractBuild<?,?> b = project.getSomeBuildWithWorkspace();
+            if (b==null)
+                return null;
+            try {
+                // same as perform()
+                for (FilePath base : new FilePath[] {b.getModuleRoot(), b.getWorkspace()}) {
+                    FilePath f = base.child(buildFile!=null ? buildFile : "build.xml");
+                    if (f.exists())
+                        return AntTargetGraphParser.parse(f);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to read the targets of "+project, e);
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.FINE, "Failed to read the targets of "+project, e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * How {@link Ant} runs Ant.
+     */
+    public enum ExecutionMode {
+        /**
+         * Launches a new JVM through the <tt>ant</tt> script for each build.
+         */
+        FORK {
+            public String getDisplayName() {
+                return Messages.Ant_ExecutionMode_Fork();
+            }
+        },
+        /**
+         * Runs the build in a JVM that stays around on the node between builds.
+         *
+         * @see AntDaemons
+         */
+        DAEMON {
+            public String getDisplayName() {
+                return Messages.Ant_ExecutionMode_Daemon();
+            }
+        },
+        /**
+         * Runs the build inside the JVM of the node, for small builds that are run very often.
+         *
+         * @see EmbeddedAnt
+         */
+        EMBEDDED {
+            public String getDisplayName() {
+                return Messages.Ant_ExecutionMode_Embedded();
+            }
+        };
+
+        public abstract String getDisplayName();
     }
 
     /**
@@ -341,19 +1207,32 @@ public class Ant extends Builder {
          * Gets the executable path of this Ant on the given target system.
          */
         public String getExecutable(Launcher launcher) throws IOException, InterruptedException {
-            return launcher.getChannel().call(new Callable<String,IOException>() {
-                public String call() throws IOException {
-                    File exe = getExeFile();
-                    if(exe.exists())
-                        return exe.getPath();
-                    return null;
-                }
-            });
+            return launcher.getChannel().call(new GetExecutable(getHome()));
+        }
+
+        /**
+         * Looks for the executable on the node. Only sends the home over, not the whole installation.
+         */
+        private static final class GetExecutable implements Callable<String,IOException> {
+            private final String home;
+
+            GetExecutable(String home) {
+                this.home = home;
+            }
+
+            public String call() throws IOException {
+                File exe = getExeFile(home);
+                if(exe.exists())
+                    return exe.getPath();
+                return null;
+            }
+
+            private static final long serialVersionUID = 1L;
         }
 
-        private File getExeFile() {
+        private static File getExeFile(String home) {
             String execName = Functions.isWindows() ? "ant.bat" : "ant";
-            String home = Util.replaceMacro(getHome(), EnvVars.masterEnvVars);
+            home = Util.replaceMacro(home, EnvVars.masterEnvVars);
 
             return new File(home,"bin/"+execName);
         }
@@ -454,4 +1333,30 @@ public class Ant extends Builder {
             }
         }
     }
+
+    /**
+     * Ant options that take the next token as their argument.
+     */
+    private static final Set<String> OPTIONS_WITH_ARGUMENT = new HashSet<String>(Arrays.asList(
+            "-f", "-file", "-buildfile", "-l", "-logfile", "-logger", "-listener", "-lib",
+            "-propertyfile", "-inputhandler", "-find", "-s", "-nice", "-main"));
+
+    /**
+     * Set to true to run consecutive Ant build steps that only differ by their targets in a single Ant invocation.
+     *
+     * <p>
+     * This changes what the build scripts see: the targets of all the steps run in one Ant project, so the properties
+     * set by the targets of an earlier step are already set, and immutable, in the later ones.
+     * See <tt>help-targets.html</tt>.
+     */
+    public static boolean COALESCE = Boolean.getBoolean(Ant.class.getName()+".coalesce");
+
+    /**
+     * Once there are more than this many properties and build variables, they are passed to Ant with
+     * <tt>-propertyfile</tt> instead of <tt>-D</tt>, which keeps the command line short and the values out of
+     * the process list. 0 to always use <tt>-D</tt>.
+     */
+    public static int PROPERTY_FILE_THRESHOLD = Integer.getInteger(Ant.class.getName()+".propertyFileThreshold", 0);
+
+    private static final Logger LOGGER = Logger.getLogger(Ant.class.getName());
 }
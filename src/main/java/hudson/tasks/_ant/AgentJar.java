@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Packages a few classes of this plugin into a small jar that can be put on the classpath of
+ * a JVM we launch on a node, such as the Ant JVM.
+ *
+ * <p>
+ * Those classes must not depend on anything outside the JDK and Ant.
+ */
+final class AgentJar {
+    private AgentJar() {}
+
+    /**
+     * Builds the jar image in memory.
+     */
+    static byte[] build(Class<?>... classes) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        JarOutputStream jar = new JarOutputStream(buf);
+        for (Class<?> c : classes) {
+            String name = c.getName().replace('.','/')+".class";
+            jar.putNextEntry(new JarEntry(name));
+            InputStream in = c.getClassLoader().getResourceAsStream(name);
+            try {
+                Util.copyStream(in, jar);
+            } finally {
+                in.close();
+            }
+            jar.closeEntry();
+        }
+        jar.close();
+        return buf.toByteArray();
+    }
+
+    /**
+     * Copies the jar image under the given root directory of a node, unless it's already there.
+     * The file name includes the digest of the image, so different versions don't collide.
+     */
+    static FilePath install(FilePath root, String prefix, byte[] image) throws IOException, InterruptedException {
+        FilePath jar = root.child("ant-plugin").child(prefix+"-"+Util.getDigestOf(new ByteArrayInputStream(image)).substring(0,8)+".jar");
+        jar.act(new Install(image));
+        return jar;
+    }
+
+    /**
+     * Writes the jar next to where it goes and renames it into place, so that builds that install it
+     * at the same time never see, or launch a JVM with, a jar that is only partly written.
+     */
+    private static final class Install implements FileCallable<Void> {
+        private final byte[] image;
+
+        Install(byte[] image) {
+            this.image = image;
+        }
+
+        public Void invoke(File jar, VirtualChannel channel) throws IOException {
+            if (jar.exists())
+                return null;
+            File dir = jar.getParentFile();
+            if (!dir.mkdirs() && !dir.isDirectory())
+                throw new IOException("Failed to create "+dir);
+            File tmp = File.createTempFile(jar.getName(), ".tmp", dir);
+            try {
+                FileOutputStream out = new FileOutputStream(tmp);
+                try {
+                    out.write(image);
+                } finally {
+                    out.close();
+                }
+                // fails on Windows if somebody else got there first, which is just as good
+                if (!tmp.renameTo(jar) && !jar.exists())
+                    throw new IOException("Failed to rename "+tmp+" to "+jar);
+            } finally {
+                tmp.delete();
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
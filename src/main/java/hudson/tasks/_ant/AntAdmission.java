@@ -0,0 +1,234 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Makes Ant build steps wait before launching Ant when their node already runs as many Ant processes,
+ * or as much declared heap, as its {@link AntNodeProperty} allows.
+ *
+ * <p>
+ * Build steps are let in strictly in the order they arrived, so a large one can't be overtaken forever
+ * by smaller ones. One that is larger than the limits on its own is let in when nothing else runs.
+ * This all happens on the master, which launches all the Ant processes.
+ */
+public final class AntAdmission {
+    private final String node;
+    private final LinkedList<Ticket> queue = new LinkedList<Ticket>();
+    private int processes;
+    private long memory;
+
+    AntAdmission(String node) {
+        this.node = node;
+    }
+
+    /**
+     * Waits until the node can take the Ant processes of a build step.
+     *
+     * @param processes
+     *      How many Ant processes the build step launches at the same time.
+     * @param antOpts
+     *      The options they are launched with, which declare how much heap each one gets.
+     * @return
+     *      To be released once the processes have exited, or null if the node has no limits.
+     */
+    public static Ticket admit(Node node, int processes, String antOpts, AbstractBuild<?,?> build, TaskListener listener) throws InterruptedException {
+        AntNodeProperty p = node==null ? null : AntNodeProperty.of(node);
+        if (p==null || p.getMaxProcesses()==0 && p.getMaxMemory()==0)
+            return null;
+        AntAdmission a;
+        synchronized (NODES) {
+            a = NODES.get(node.getNodeName());
+            if (a==null)
+                NODES.put(node.getNodeName(), a = new AntAdmission(node.getNodeName()));
+        }
+        Ticket t = a.acquire(p.getMaxProcesses(), p.getMaxMemory(), processes, processes*getHeap(antOpts), listener.getLogger());
+        AntAdmissionAction.of(build).waited(t.waited);
+        return t;
+    }
+
+    /**
+     * Waits for the turn of a request. What it prints, it prints without holding the lock of the node,
+     * since the log may be slow.
+     *
+     * @param maxMemory
+     *      In MB, like {@code memory}.
+     */
+    Ticket acquire(int maxProcesses, long maxMemory, int processes, long memory, PrintStream log) throws InterruptedException {
+        Ticket t = new Ticket(processes, memory);
+        long start = System.currentTimeMillis();
+        String waiting;
+        synchronized (this) {
+            queue.add(t);
+            if (isTurnOf(t, maxProcesses, maxMemory)) {
+                admit(t, start);
+                return t;
+            }
+            waiting = Messages.AntAdmission_Waiting(this.processes, this.memory, queue.size()-1);
+        }
+        log.println(waiting);
+        synchronized (this) {
+            try {
+                // the others may have come and gone in the mean time, and this may no longer have to wait
+                while (!isTurnOf(t, maxProcesses, maxMemory))
+                    wait();
+            } catch (InterruptedException e) {
+                queue.remove(t);
+                notifyAll();    // the next one may be able to go now
+                throw e;
+            }
+            admit(t, start);
+        }
+        log.println(Messages.AntAdmission_Admitted(Util.getTimeSpanString(t.waited)));
+        return t;
+    }
+
+    private boolean isTurnOf(Ticket t, int maxProcesses, long maxMemory) {
+        return queue.getFirst()==t && fits(t, maxProcesses, maxMemory);
+    }
+
+    private void admit(Ticket t, long start) {
+        queue.removeFirst();
+        this.processes += t.processes;
+        this.memory += t.memory;
+        notifyAll();        // and the one after this one too
+        t.waited = System.currentTimeMillis()-start;
+        LOGGER.log(Level.FINE, "Admitted {0} Ant processes with {1}MB on {2} after {3}ms",
+                new Object[] {t.processes, t.memory, node, t.waited});
+    }
+
+    private boolean fits(Ticket t, int maxProcesses, long maxMemory) {
+        if (processes==0)
+            return true;    // even if it's too large on its own
+        return (maxProcesses==0 || processes+t.processes<=maxProcesses)
+            && (maxMemory==0 || memory+t.memory<=maxMemory);
+    }
+
+    synchronized void release(Ticket t) {
+        processes -= t.processes;
+        memory -= t.memory;
+        notifyAll();
+    }
+
+    /**
+     * Ant processes running on the node through this, and the heap they declared in MB.
+     */
+    public synchronized int getProcesses() {
+        return processes;
+    }
+
+    public synchronized long getMemory() {
+        return memory;
+    }
+
+    /**
+     * Build steps waiting for their turn.
+     */
+    public synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * The admission controller of a node, or null if nothing was admitted there yet.
+     */
+    public static AntAdmission get(String node) {
+        synchronized (NODES) {
+            return NODES.get(node);
+        }
+    }
+
+    /**
+     * The heap in MB that the given JVM options declare, that is the last <tt>-Xmx</tt>, since the last one wins.
+     * Without one, {@link #DEFAULT_HEAP}.
+     */
+    static long getHeap(String opts) {
+        long r = DEFAULT_HEAP;
+        if (opts==null)
+            return r;
+        Matcher m = XMX.matcher(opts);
+        while (m.find()) {
+            long n = Long.parseLong(m.group(1));
+            String unit = m.group(2).toLowerCase();
+            if (unit.equals("k"))
+                n /= 1024;
+            else if (unit.equals("g"))
+                n *= 1024;
+            else if (unit.equals("t"))
+                n *= 1024*1024;
+            else if (unit.length()==0)
+                n /= 1024*1024;    // bytes
+            r = n;
+        }
+        return r;
+    }
+
+    public final class Ticket {
+        private final int processes;
+        private final long memory;
+        private long waited;
+
+        Ticket(int processes, long memory) {
+            this.processes = processes;
+            this.memory = memory;
+        }
+
+        /**
+         * How long it took to be admitted, in milliseconds.
+         */
+        public long getWaited() {
+            return waited;
+        }
+
+        /**
+         * Lets the next build steps in.
+         */
+        public void release() {
+            AntAdmission.this.release(this);
+        }
+    }
+
+    private static final Map<String,AntAdmission> NODES = new HashMap<String,AntAdmission>();
+
+    private static final Pattern XMX = Pattern.compile("(?:^|\\s)(?:-Xmx|-XX:MaxHeapSize=)(\\d+)([kKmMgGtT]?)(?=\\s|$)");
+
+    private static final Logger LOGGER = Logger.getLogger(AntAdmission.class.getName());
+
+    /**
+     * MB of heap counted for the Ant processes that don't declare any.
+     */
+    public static long DEFAULT_HEAP = Long.getLong(AntAdmission.class.getName()+".defaultHeap", 1024);
+}
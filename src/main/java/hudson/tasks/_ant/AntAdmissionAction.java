@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * How long the Ant build steps of a build waited for {@link AntAdmission} to let them launch Ant.
+ *
+ * <p>
+ * One instance covers all the Ant build steps of a build. It's only added to builds of nodes with limits,
+ * and only shown on the build page if a build step actually had to wait.
+ */
+@ExportedBean
+public class AntAdmissionAction implements Action {
+    private int steps;
+    private int delayed;
+    private long waitTime;
+
+    /**
+     * Gets the action of the build, adding it if it's not there yet.
+     */
+    public static AntAdmissionAction of(AbstractBuild<?,?> build) {
+        synchronized (build) {
+            AntAdmissionAction a = build.getAction(AntAdmissionAction.class);
+            if (a==null)
+                build.addAction(a = new AntAdmissionAction());
+            return a;
+        }
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.AntAdmissionAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    /**
+     * Called when a build step is let in.
+     *
+     * @param ms
+     *      How long it waited for that.
+     */
+    public synchronized void waited(long ms) {
+        steps++;
+        if (ms>0)
+            delayed++;
+        waitTime += ms;
+    }
+
+    /**
+     * Number of build steps that were let in.
+     */
+    @Exported
+    public synchronized int getSteps() {
+        return steps;
+    }
+
+    /**
+     * Number of build steps that had to wait.
+     */
+    @Exported
+    public synchronized int getDelayed() {
+        return delayed;
+    }
+
+    /**
+     * Total time the build steps waited, in milliseconds.
+     */
+    @Exported
+    public synchronized long getWaitTime() {
+        return waitTime;
+    }
+
+    public String getWaitTimeString() {
+        return Util.getTimeSpanString(getWaitTime());
+    }
+}
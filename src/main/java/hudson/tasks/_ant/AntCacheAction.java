@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * How many Ant build steps of a build were skipped thanks to {@link AntStepCache}, and how many had to run.
+ *
+ * <p>
+ * One instance covers all the Ant build steps of a build, and is shown on the build page.
+ */
+@ExportedBean
+public class AntCacheAction implements Action {
+    private int hits;
+    private int misses;
+    private long bytesRestored;
+
+    /**
+     * Gets the action of the build, adding it if it's not there yet.
+     */
+    public static AntCacheAction of(AbstractBuild<?,?> build) {
+        synchronized (build) {
+            AntCacheAction a = build.getAction(AntCacheAction.class);
+            if (a==null)
+                build.addAction(a = new AntCacheAction());
+            return a;
+        }
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.AntCacheAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    /**
+     * Called when a build step is skipped.
+     *
+     * @param bytes
+     *      Size of the outputs that were restored instead.
+     */
+    public synchronized void hit(long bytes) {
+        hits++;
+        bytesRestored += bytes;
+    }
+
+    /**
+     * Called when a build step has to run.
+     */
+    public synchronized void miss() {
+        misses++;
+    }
+
+    /**
+     * Number of build steps that were skipped.
+     */
+    @Exported
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * Number of build steps that had to run.
+     */
+    @Exported
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Total size of the compressed outputs that were restored rather than built.
+     */
+    @Exported
+    public synchronized long getBytesRestored() {
+        return bytesRestored;
+    }
+
+    public String getBytesRestoredString() {
+        long n = getBytesRestored();
+        if (n<1024)
+            return n+" B";
+        if (n<1024*1024)
+            return String.format("%.1f KB", n/1024.0);
+        if (n<1024*1024*1024)
+            return String.format("%.1f MB", n/(1024.0*1024));
+        return String.format("%.1f GB", n/(1024.0*1024*1024));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.model.AbstractBuild;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Holds the outcome of the Ant build steps of a build that have already been run
+ * together with an earlier one, in a single Ant invocation. Nothing is persisted.
+ */
+public class AntCoalescedSteps {
+    private final Map<Object,Boolean> results = new IdentityHashMap<Object,Boolean>();
+
+    /**
+     * Records the outcome of a build step that has been run with an earlier one.
+     */
+    public static void record(AbstractBuild<?,?> build, Object step, boolean success) {
+        AntCoalescedSteps a;
+        synchronized (STEPS) {
+            a = STEPS.get(build);
+            if (a==null)
+                STEPS.put(build, a = new AntCoalescedSteps());
+        }
+        synchronized (a) {
+            a.results.put(step, success);
+        }
+    }
+
+    /**
+     * Gets and forgets the outcome of a build step, if it has been run with an earlier one.
+     *
+     * @return
+     *      null if the build step still has to run.
+     */
+    public static Boolean take(AbstractBuild<?,?> build, Object step) {
+        AntCoalescedSteps a;
+        synchronized (STEPS) {
+            a = STEPS.get(build);
+        }
+        if (a==null)
+            return null;
+        synchronized (a) {
+            return a.results.remove(step);
+        }
+    }
+
+    /**
+     * Works out which of the build steps run together made Ant fail.
+     *
+     * @param plans
+     *      For each build step, the targets Ant was expected to run for it, in order.
+     * @param started
+     *      The targets that Ant actually started, in order. Targets that weren't expected,
+     *      such as those called with {@code <antcall>}, are ignored.
+     * @return
+     *      The index of the build step whose target was the last to start.
+     */
+    public static int getFailedStep(List<List<String>> plans, List<String> started) {
+        List<String> expected = new ArrayList<String>();
+        List<Integer> steps = new ArrayList<Integer>();
+        for (int i=0; i<plans.size(); i++) {
+            for (String t : plans.get(i)) {
+                expected.add(t);
+                steps.add(i);
+            }
+        }
+
+        int p = 0;
+        for (String t : started) {
+            if (p<expected.size() && expected.get(p).equals(t))
+                p++;
+        }
+        // failed before running any target, such as with a broken build script
+        if (p==0)
+            return 0;
+        return steps.get(p-1);
+    }
+
+    /**
+     * Outcomes of the builds that have coalesced build steps, which go away with the builds.
+     * Not kept as an action of the build, which would be persisted with it.
+     */
+    private static final Map<AbstractBuild<?,?>,AntCoalescedSteps> STEPS = new WeakHashMap<AbstractBuild<?,?>,AntCoalescedSteps>();
+}
@@ -23,6 +23,7 @@
  */
 package hudson.tasks._ant;
 
+import hudson.console.ConsoleNote;
 import hudson.console.LineTransformationOutputStream;
 
 import java.io.IOException;
@@ -40,34 +41,196 @@ public class AntConsoleAnnotator extends LineTransformationOutputStream {
     private final OutputStream out;
     private final Charset charset;
 
+    /**
+     * True if lines can be classified on their raw bytes without decoding them first.
+     * See {@link #isAsciiCompatible(Charset)}.
+     */
+    private final boolean asciiCompatible;
+
+    /**
+     * If non-null, receives the start and the end of each target.
+     */
+    private final AntTargetsAction targets;
+
     private boolean seenEmptyLine;
 
+    /**
+     * Number of bytes written to {@link #out} and the number of lines seen so far.
+     */
+    private long written;
+    private int lines;
+    private boolean endsWithEol;
+    /**
+     * A line feed in {@link #charset}.
+     */
+    private final byte[] eol;
+
+    /**
+     * When the last line went through.
+     */
+    private volatile long lastOutput = System.currentTimeMillis();
+
     public AntConsoleAnnotator(OutputStream out, Charset charset) {
+        this(out,charset,null);
+    }
+
+    public AntConsoleAnnotator(OutputStream out, Charset charset, AntTargetsAction targets) {
         this.out = out;
         this.charset = charset;
+        this.asciiCompatible = isAsciiCompatible(charset);
+        this.eol = "\n".getBytes(charset);
+        this.targets = targets;
     }
 
+    /**
+     * Locked, like {@link #println(String)}, so that the lines of the two never mix.
+     */
     @Override
-    protected void eol(byte[] b, int len) throws IOException {
-        String line = charset.decode(ByteBuffer.wrap(b, 0, len)).toString();
-
-        // trim off CR/LF from the end
-        line = trimEOL(line);
+    protected synchronized void eol(byte[] b, int len) throws IOException {
+        int kind;
+        if (asciiCompatible)
+            kind = classify(b, len);
+        else
+            // trim off CR/LF from the end
+            kind = classify(trimEOL(charset.decode(ByteBuffer.wrap(b, 0, len)).toString()));
 
-        if (seenEmptyLine && endsWith(line,':') && line.indexOf(' ')<0)
+        if (seenEmptyLine && kind==TARGET) {
+            if (targets!=null)
+                targets.targetStarted(targetName(b,len), System.currentTimeMillis(), written, lines);
             // put the annotation
-            new AntTargetNote().encodeTo(out);
+            write(EncodedNotes.TARGET,EncodedNotes.TARGET.length);
+        }
 
-        if (line.equals("BUILD SUCCESSFUL") || line.equals("BUILD FAILED"))
-            new AntOutcomeNote().encodeTo(out);
+        if (kind==OUTCOME) {
+            write(EncodedNotes.OUTCOME,EncodedNotes.OUTCOME.length);
+            if (targets!=null)
+                targets.targetFinished(System.currentTimeMillis());
+        }
 
-        seenEmptyLine = line.length()==0;
+        seenEmptyLine = kind==EMPTY;
+        write(b,len);
+        lines++;
+        lastOutput = System.currentTimeMillis();
+    }
+
+    /**
+     * Writes a line of our own into the output, such as a note about the build step, from any thread.
+     * It goes between the lines of the output, so that it never ends up in the middle of one,
+     * and it's counted like them, so that it doesn't throw off where the targets that follow are in the log.
+     */
+    public synchronized void println(String line) throws IOException {
+        // only a forced end of the output leaves a line unterminated
+        if (written>0 && !endsWithEol)
+            write(eol, eol.length);
+        line += "\n";
+        byte[] b = line.getBytes(charset);
+        write(b, b.length);
+        for (int i=0; i<line.length(); i++)
+            if (line.charAt(i)=='\n')
+                lines++;
+        seenEmptyLine = false;
+    }
+
+    /**
+     * Returns when the last line of the output went through, or when this object was created if none has yet.
+     * Can be called from any thread.
+     */
+    public long getLastOutput() {
+        return lastOutput;
+    }
+
+    private void write(byte[] b, int len) throws IOException {
         out.write(b,0,len);
+        written += len;
+        if (len>0)
+            endsWithEol = endsWith(b, len, eol);
+    }
+
+    /**
+     * Decodes the name of the target from a line classified as {@link #TARGET}.
+     */
+    private String targetName(byte[] b, int len) {
+        String line = trimEOL(charset.decode(ByteBuffer.wrap(b, 0, len)).toString());
+        return line.substring(0,line.length()-1);
     }
 
-    private boolean endsWith(String line, char c) {
+    /**
+     * Classifies a decoded line that has already been stripped of its EOL.
+     */
+    private static int classify(String line) {
         int len = line.length();
-        return len>0 && line.charAt(len-1)==c;
+        if (len==0)
+            return EMPTY;
+        if (line.charAt(len-1)==':' && line.indexOf(' ')<0)
+            return TARGET;
+        if (line.equals("BUILD SUCCESSFUL") || line.equals("BUILD FAILED"))
+            return OUTCOME;
+        return OTHER;
+    }
+
+    /**
+     * Same as {@link #classify(String)} but works directly on the encoded bytes,
+     * which is only valid for {@linkplain #isAsciiCompatible(Charset) ASCII compatible} charsets.
+     */
+    private static int classify(byte[] b, int len) {
+        // trim off CR/LF from the end
+        while (len>0 && (b[len-1]=='\r' || b[len-1]=='\n'))
+            len--;
+
+        if (len==0)
+            return EMPTY;
+        if (b[len-1]==':' && indexOf(b,len,(byte)' ')<0)
+            return TARGET;
+        if (equals(b,len,BUILD_SUCCESSFUL) || equals(b,len,BUILD_FAILED))
+            return OUTCOME;
+        return OTHER;
+    }
+
+    private static int indexOf(byte[] b, int len, byte c) {
+        for (int i=0; i<len; i++)
+            if (b[i]==c)
+                return i;
+        return -1;
+    }
+
+    private static boolean endsWith(byte[] b, int len, byte[] suffix) {
+        if (len<suffix.length)
+            return false;
+        for (int i=0; i<suffix.length; i++)
+            if (b[len-suffix.length+i]!=suffix[i])
+                return false;
+        return true;
+    }
+
+    private static boolean equals(byte[] b, int len, byte[] expected) {
+        if (len!=expected.length)
+            return false;
+        for (int i=0; i<len; i++)
+            if (b[i]!=expected[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns true if the given charset encodes ASCII characters as the same single bytes,
+     * and never uses bytes in the ASCII range as a part of a multi-byte sequence.
+     *
+     * <p>
+     * This is what allows {@link #eol(byte[], int)} to look for ':', ' ' and the
+     * outcome lines without decoding the line. The list is deliberately conservative;
+     * other charsets (UTF-16, Shift_JIS, ...) fall back to decoding.
+     */
+    static boolean isAsciiCompatible(Charset charset) {
+        String name = charset.name();
+        return name.equals("US-ASCII") || name.equals("UTF-8")
+            || name.startsWith("ISO-8859-") || name.startsWith("windows-125");
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i=0; i<b.length; i++)
+            b[i] = (byte)s.charAt(i);
+        return b;
     }
 
     @Override
@@ -76,4 +239,28 @@ public class AntConsoleAnnotator extends LineTransformationOutputStream {
         out.close();
     }
 
+    /**
+     * {@link AntTargetNote} and {@link AntOutcomeNote} carry no state, so their encoded form
+     * never changes. Encode them once instead of serializing them again for every line.
+     */
+    static final class EncodedNotes {
+        static final byte[] TARGET = encode(new AntTargetNote());
+        static final byte[] OUTCOME = encode(new AntOutcomeNote());
+
+        private static byte[] encode(ConsoleNote note) {
+            try {
+                return note.encodeToBytes().toByteArray();
+            } catch (IOException e) {
+                throw new Error(e); // impossible with an in-memory stream
+            }
+        }
+    }
+
+    private static final int OTHER = 0;
+    private static final int EMPTY = 1;
+    private static final int TARGET = 2;
+    private static final int OUTCOME = 3;
+
+    private static final byte[] BUILD_SUCCESSFUL = ascii("BUILD SUCCESSFUL");
+    private static final byte[] BUILD_FAILED = ascii("BUILD FAILED");
 }
@@ -0,0 +1,337 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Main class of a long-running JVM that runs Ant builds on request, so that consecutive builds
+ * don't pay for the JVM startup and the JIT warm-up.
+ *
+ * <p>
+ * The daemon listens on a loopback port, which it prints to stdout as {@link #PORT_PREFIX}<i>port</i>
+ * right after the start. Other accounts on the machine can connect to that port too, so the daemon reads a secret
+ * token from the first line of its stdin, and drops every connection that doesn't start with it.
+ *
+ * <p>
+ * The core jars of Ant are loaded in one class loader kept for the lifetime of the daemon, so that they are
+ * loaded and compiled only once. The other jars, such as those of the optional tasks, are loaded
+ * in a new class loader for each build under that one, so that their static state doesn't carry over from one build
+ * to the next. Each build gets its own Ant project. Only one build runs at a time.
+ * The daemon exits by itself when it has been idle for too long.
+ *
+ * <p>
+ * This class runs outside Jenkins, so it must not depend on anything but the JDK.
+ * See {@link AntDaemons} for the protocol.
+ */
+public class AntDaemon implements Runnable {
+    private final File antHome;
+    private final byte[] token;
+    private final URL[] classpath;
+    private final long idleTimeout;
+
+    private boolean busy;
+    private long lastActivity = System.currentTimeMillis();
+    /**
+     * Holds the core jars of Ant, and is shared by all the builds.
+     */
+    private final ClassLoader coreLoader;
+
+    AntDaemon(File antHome, String token, URL[] coreClasspath, URL[] classpath, long idleTimeout) throws IOException {
+        this.antHome = antHome;
+        this.token = token.getBytes("UTF-8");
+        this.classpath = classpath;
+        this.idleTimeout = idleTimeout;
+        this.coreLoader = new URLClassLoader(coreClasspath, ClassLoader.getSystemClassLoader().getParent());
+    }
+
+    /**
+     * Arguments are the idle timeout in milliseconds, ANT_HOME, the classpath entries shared by all the builds,
+     * {@link #CLASSPATH_SEPARATOR}, and then the classpath entries loaded for each build.
+     * The first line of stdin is the token.
+     */
+    public static void main(String[] args) throws Exception {
+        long idleTimeout = Long.parseLong(args[0]);
+        File antHome = new File(args[1]);
+        List<URL> core = new ArrayList<URL>();
+        List<URL> rest = new ArrayList<URL>();
+        List<URL> l = core;
+        for (int i=2; i<args.length; i++) {
+            if (args[i].equals(CLASSPATH_SEPARATOR))
+                l = rest;
+            else
+                l.add(new File(args[i]).toURI().toURL());
+        }
+        String token = new BufferedReader(new InputStreamReader(System.in, "UTF-8")).readLine();
+        if (token==null || token.length()==0)
+            throw new IOException("No token on stdin");
+
+        AntDaemon daemon = new AntDaemon(antHome, token,
+                core.toArray(new URL[core.size()]), rest.toArray(new URL[rest.size()]), idleTimeout);
+        ServerSocket ss = new ServerSocket(0, 50, InetAddress.getByName(null));
+        System.out.println(PORT_PREFIX+ss.getLocalPort());
+        System.out.flush();
+
+        Thread watchdog = new Thread(daemon, "idle watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+
+        while (true) {
+            Thread t = new Thread(new Connection(daemon, ss.accept()), "connection");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Exits the JVM once nothing happened for {@link #idleTimeout}.
+     */
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                long idle = System.currentTimeMillis()-lastActivity;
+                if (!busy && idle>=idleTimeout)
+                    System.exit(0);
+                try {
+                    wait(Math.max(1000, idleTimeout-idle));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the token a client presented.
+     */
+    boolean authenticate(String token) throws IOException {
+        return MessageDigest.isEqual(this.token, token.getBytes("UTF-8"));
+    }
+
+    private synchronized boolean acquire() {
+        lastActivity = System.currentTimeMillis();
+        if (busy)   return false;
+        busy = true;
+        return true;
+    }
+
+    private synchronized void release() {
+        busy = false;
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Runs one build.
+     */
+    int build(File buildFile, List<String> targets, Map<String,String> properties, PrintStream out) throws Exception {
+        ClassLoader cl = new URLClassLoader(classpath, coreLoader);
+        Thread t = Thread.currentThread();
+        ClassLoader old = t.getContextClassLoader();
+        t.setContextClassLoader(cl);
+        try {
+            // the tasks that aren't in the core jars are only found through the class loader of the build
+            Method m = cl.loadClass(AntProjectRunner.class.getName()).getMethod("run",
+                    File.class, File.class, List.class, Map.class, PrintStream.class, boolean.class, ClassLoader.class);
+            return (Integer)m.invoke(null, antHome, buildFile, targets, properties, out, true, cl);
+        } catch (InvocationTargetException e) {
+            e.getCause().printStackTrace(out);
+            return 1;
+        } finally {
+            t.setContextClassLoader(old);
+        }
+    }
+
+    /**
+     * Serves one request.
+     */
+    static final class Connection implements Runnable {
+        private final AntDaemon daemon;
+        private final Socket socket;
+
+        Connection(AntDaemon daemon, Socket socket) {
+            this.daemon = daemon;
+            this.socket = socket;
+        }
+
+        public void run() {
+            try {
+                try {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                    // nothing else is read from those who don't know the token, and they don't get to hold on to a thread
+                    socket.setSoTimeout(AUTH_TIMEOUT);
+                    if (!daemon.authenticate(readString(in, MAX_TOKEN_LENGTH)))
+                        return;
+                    socket.setSoTimeout(0);
+                    String command = in.readUTF();
+                    if (command.equals(PING)) {
+                        out.writeUTF(PONG);
+                        out.flush();
+                        return;
+                    }
+
+                    File buildFile = new File(readString(in));
+                    List<String> targets = new ArrayList<String>();
+                    for (int i=in.readInt(); i>0; i--)
+                        targets.add(readString(in));
+                    Map<String,String> properties = new HashMap<String,String>();
+                    for (int i=in.readInt(); i>0; i--)
+                        properties.put(readString(in), readString(in));
+
+                    if (!daemon.acquire()) {
+                        out.writeInt(BUSY);
+                        out.flush();
+                        return;
+                    }
+                    int r;
+                    try {
+                        PrintStream ps = new PrintStream(new ChunkedOutputStream(out), true);
+                        r = daemon.build(buildFile, targets, properties, ps);
+                        ps.flush();
+                    } finally {
+                        daemon.release();
+                    }
+                    out.writeInt(END);
+                    out.writeInt(r);
+                    out.flush();
+                } finally {
+                    socket.close();
+                }
+            } catch (Exception e) {
+                // the client went away. nothing we can do
+            }
+        }
+    }
+
+    /**
+     * Sends the build output as length-prefixed chunks.
+     */
+    static final class ChunkedOutputStream extends OutputStream {
+        private final DataOutputStream out;
+
+        ChunkedOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (len==0)     return;
+            try {
+                out.writeInt(len);
+                out.write(b, off, len);
+            } catch (IOException e) {
+                // the client is gone, presumably because the build was aborted.
+                // there's no safe way to stop Ant half way, so take the whole JVM down.
+                Runtime.getRuntime().halt(1);
+            }
+        }
+
+        @Override
+        public void flush() {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                Runtime.getRuntime().halt(1);
+            }
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return readString(in, MAX_STRING_LENGTH);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString}, unless it's longer than {@code max} bytes.
+     */
+    static String readString(DataInputStream in, int max) throws IOException {
+        int len = in.readInt();
+        if (len<0 || len>max)
+            throw new IOException("Invalid string length "+len);
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    static final String PORT_PREFIX = "ANT-DAEMON-PORT:";
+    static final String CLASSPATH_SEPARATOR = "--";
+    static final String PING = "PING";
+    static final String PONG = "PONG";
+    static final String RUN = "RUN";
+
+    /**
+     * In the response to {@link #RUN}, a chunk length that marks the end of the output.
+     * The exit code follows.
+     */
+    static final int END = -1;
+    /**
+     * In the response to {@link #RUN}, a chunk length that indicates that another build is running.
+     */
+    static final int BUSY = -2;
+
+    /**
+     * Longest token accepted, so that the token check can't be made to allocate much.
+     */
+    static final int MAX_TOKEN_LENGTH = 256;
+    /**
+     * Milliseconds a client has to present the token.
+     */
+    static final int AUTH_TIMEOUT = 10*1000;
+    /**
+     * Longest string accepted in a request, such as a property value.
+     */
+    static final int MAX_STRING_LENGTH = 1024*1024;
+}
@@ -0,0 +1,453 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.Callable;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.QuotedStringTokenizer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static hudson.tasks._ant.AntDaemon.*;
+
+/**
+ * Keeps warm {@link AntDaemon} JVMs on each node, and runs Ant builds in them.
+ *
+ * <p>
+ * There's at most one daemon per JVM, Ant installation, and JVM options on each node.
+ * A daemon runs one build at a time. Whenever a daemon can't take a build (it's busy,
+ * it can't be started, or it fails the health check), {@link #run} returns null and the
+ * caller should fork Ant as usual.
+ *
+ * <p>
+ * The protocol over the loopback socket is: the token the daemon was given on its stdin,
+ * then the command as {@link DataOutputStream#writeUTF(String)},
+ * which is either {@link AntDaemon#PING} (answered by {@link AntDaemon#PONG}) or {@link AntDaemon#RUN}.
+ * The latter is followed by the build file, the targets, and the properties, and answered by
+ * length-prefixed chunks of the build output terminated by {@link AntDaemon#END} and the exit code.
+ */
+public final class AntDaemons {
+    private AntDaemons() {}
+
+    /**
+     * Runs the build in a daemon on the current node.
+     *
+     * @param javaHome
+     *      JDK to run the daemon with, or null to use the one that runs the node.
+     * @param antOpts
+     *      JVM options of the daemon, or null.
+     * @return
+     *      The exit code of the build, or null if no daemon could run the build and nothing
+     *      has been written to {@code out}.
+     */
+    public static Integer run(Launcher launcher, String javaHome, String antHome, String antOpts,
+                              FilePath buildFile, List<String> targets, Map<String,String> properties,
+                              OutputStream out) throws IOException, InterruptedException {
+        Node node = Computer.currentComputer().getNode();
+        FilePath root = node==null ? null : node.getRootPath();
+        if (root==null)
+            return null;
+        FilePath jar = AgentJar.install(root, "ant-daemon", getDaemonJar());
+
+        Request req = new Request(javaHome, antHome, antOpts, jar.getRemote(), buildFile.getRemote(),
+                new ArrayList<String>(targets), new HashMap<String,String>(properties));
+        RemoteSink sink = new RemoteSink(out);
+        VirtualChannel channel = launcher.getChannel();
+        try {
+            Integer r = channel.call(new Run(req, new RemoteOutputStream(sink)));
+            sink.awaitClose(FINISH_TIMEOUT);
+            return r;
+        } catch (InterruptedException e) {
+            // the build was aborted. Ant can't be stopped half way, so kill the daemon
+            Thread.interrupted();
+            channel.call(new Kill(req.key()));
+            throw e;
+        }
+    }
+
+    private static synchronized byte[] getDaemonJar() throws IOException {
+        if (daemonJar==null)
+            daemonJar = AgentJar.build(AntDaemon.class, AntDaemon.Connection.class,
+                    AntDaemon.ChunkedOutputStream.class, AntProjectRunner.class);
+        return daemonJar;
+    }
+
+    private static byte[] daemonJar;
+
+    /**
+     * Everything needed to pick a daemon and run a build in it.
+     */
+    private static final class Request implements java.io.Serializable {
+        final String javaHome, antHome, antOpts, daemonJar, buildFile;
+        final ArrayList<String> targets;
+        final HashMap<String,String> properties;
+
+        Request(String javaHome, String antHome, String antOpts, String daemonJar, String buildFile,
+                ArrayList<String> targets, HashMap<String,String> properties) {
+            this.javaHome = javaHome;
+            this.antHome = antHome;
+            this.antOpts = antOpts;
+            this.daemonJar = daemonJar;
+            this.buildFile = buildFile;
+            this.targets = targets;
+            this.properties = properties;
+        }
+
+        /**
+         * Identifies the daemon that can run this request.
+         */
+        String key() {
+            return javaHome+'\0'+antHome+'\0'+antOpts+'\0'+daemonJar;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Run implements Callable<Integer,IOException> {
+        private final Request req;
+        private final OutputStream out;
+
+        Run(Request req, OutputStream out) {
+            this.req = req;
+            this.out = out;
+        }
+
+        public Integer call() throws IOException {
+            try {
+                Daemon d = acquire(req);
+                if (d==null)
+                    return null;
+                try {
+                    return d.run(req, out);
+                } finally {
+                    release(d);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Kill implements Callable<Void,IOException> {
+        private final String key;
+
+        Kill(String key) {
+            this.key = key;
+        }
+
+        public Void call() throws IOException {
+            Daemon d;
+            synchronized (DAEMONS) {
+                d = DAEMONS.remove(key);
+            }
+            if (d!=null)
+                d.process.destroy();
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Daemons running on this node.
+     */
+    private static final Map<String,Daemon> DAEMONS = new HashMap<String,Daemon>();
+
+    /**
+     * Picks the daemon for the request, starting one if necessary, and marks it busy.
+     */
+    private static Daemon acquire(Request req) {
+        String key = req.key();
+        Daemon d;
+        synchronized (DAEMONS) {
+            d = DAEMONS.get(key);
+            if (d!=null && d.busy)
+                return null;
+            if (d!=null && !d.isAlive()) {
+                DAEMONS.remove(key);
+                d = null;
+            }
+            if (d!=null)
+                d.busy = true;
+        }
+
+        if (d!=null) {
+            if (d.ping())
+                return d;
+            // hung or half dead. replace it
+            LOGGER.log(Level.INFO, "Ant daemon on port {0} failed the health check", d.port);
+            d.process.destroy();
+            synchronized (DAEMONS) {
+                DAEMONS.remove(key);
+            }
+        }
+
+        try {
+            d = Daemon.start(req);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to start an Ant daemon", e);
+            return null;
+        }
+        synchronized (DAEMONS) {
+            if (DAEMONS.containsKey(key)) {
+                // somebody else started one at the same time. keep theirs
+                d.process.destroy();
+                return null;
+            }
+            d.busy = true;
+            DAEMONS.put(key, d);
+        }
+        return d;
+    }
+
+    private static void release(Daemon d) {
+        synchronized (DAEMONS) {
+            d.busy = false;
+        }
+    }
+
+    static final class Daemon {
+        final Process process;
+        final int port;
+        /**
+         * Authenticates us to the daemon, since anyone on the machine can connect to its port.
+         */
+        private final String token;
+        boolean busy;
+
+        Daemon(Process process, int port, String token) {
+            this.process = process;
+            this.port = port;
+            this.token = token;
+        }
+
+        static Daemon start(Request req) throws IOException {
+            List<String> cmd = new ArrayList<String>();
+            String javaHome = req.javaHome!=null ? req.javaHome : System.getProperty("java.home");
+            cmd.add(new File(new File(javaHome,"bin"),"java").getPath());
+            if (req.antOpts!=null)
+                cmd.addAll(Arrays.asList(QuotedStringTokenizer.tokenize(req.antOpts)));
+            cmd.add("-cp");
+            cmd.add(req.daemonJar);
+            cmd.add(AntDaemon.class.getName());
+            cmd.add(String.valueOf(IDLE_TIMEOUT*60*1000));
+            cmd.add(req.antHome);
+            // the core of Ant is shared by all the builds, the rest is loaded anew for each
+            List<String> rest = new ArrayList<String>();
+            File[] libs = new File(req.antHome,"lib").listFiles();
+            if (libs!=null) {
+                for (File lib : libs) {
+                    if (CORE_JARS.contains(lib.getName()))
+                        cmd.add(lib.getPath());
+                    else if (lib.getName().endsWith(".jar"))
+                        rest.add(lib.getPath());
+                }
+            }
+            cmd.add(req.daemonJar);
+            cmd.add(CLASSPATH_SEPARATOR);
+            cmd.addAll(rest);
+
+            byte[] random = new byte[32];
+            RANDOM.nextBytes(random);
+            String token = Util.toHexString(random);
+
+            ProcessBuilder pb = new ProcessBuilder(cmd);
+            pb.redirectErrorStream(true);
+            Process p = pb.start();
+            // not on the command line, which other accounts can see
+            OutputStream stdin = p.getOutputStream();
+            try {
+                stdin.write((token+"\n").getBytes("UTF-8"));
+            } finally {
+                stdin.close();
+            }
+
+            // the JVM may print warnings before the port
+            BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            String line;
+            while ((line=r.readLine())!=null && !line.startsWith(PORT_PREFIX))
+                LOGGER.fine(line);
+            if (line==null) {
+                r.close();
+                p.destroy();
+                throw new IOException("Ant daemon exited before it started listening: "+cmd);
+            }
+            int port = Integer.parseInt(line.substring(PORT_PREFIX.length()).trim());
+            // and more later, such as out of memory errors. if nobody reads it, the daemon blocks once the pipe is full
+            new OutputPump(r, port).start();
+            return new Daemon(p, port, token);
+        }
+
+        boolean isAlive() {
+            try {
+                process.exitValue();
+                return false;
+            } catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+
+        private Socket connect() throws IOException {
+            Socket s = new Socket();
+            s.connect(new InetSocketAddress(InetAddress.getByName(null), port), HEALTH_CHECK_TIMEOUT);
+            return s;
+        }
+
+        boolean ping() {
+            try {
+                Socket s = connect();
+                try {
+                    s.setSoTimeout(HEALTH_CHECK_TIMEOUT);
+                    DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                    writeString(out, token);
+                    out.writeUTF(PING);
+                    out.flush();
+                    return new DataInputStream(s.getInputStream()).readUTF().equals(PONG);
+                } finally {
+                    s.close();
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Sends the build to the daemon and copies its output to {@code sink}.
+         *
+         * @return null if the daemon turned out to be busy.
+         */
+        Integer run(Request req, OutputStream sink) throws IOException {
+            Socket s = connect();
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                writeString(out, token);
+                out.writeUTF(RUN);
+                writeString(out, req.buildFile);
+                out.writeInt(req.targets.size());
+                for (String t : req.targets)
+                    writeString(out, t);
+                out.writeInt(req.properties.size());
+                for (Map.Entry<String,String> e : req.properties.entrySet()) {
+                    writeString(out, e.getKey());
+                    writeString(out, e.getValue());
+                }
+                out.flush();
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                byte[] buf = new byte[8192];
+                while (true) {
+                    int n = in.readInt();
+                    if (n==BUSY)
+                        return null;
+                    if (n==END)
+                        return in.readInt();
+                    if (buf.length<n)
+                        buf = new byte[n];
+                    in.readFully(buf,0,n);
+                    sink.write(buf,0,n);
+                }
+            } finally {
+                s.close();
+            }
+        }
+    }
+
+    /**
+     * Copies what a daemon prints to its stdout and stderr to the log, until it exits.
+     */
+    private static final class OutputPump extends Thread {
+        private final BufferedReader in;
+        private final int port;
+
+        OutputPump(BufferedReader in, int port) {
+            super("Ant daemon output on port "+port);
+            this.in = in;
+            this.port = port;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                try {
+                    String line;
+                    while ((line=in.readLine())!=null)
+                        LOGGER.log(Level.INFO, "Ant daemon on port {0}: {1}", new Object[]{port, line});
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // the daemon was killed
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(AntDaemons.class.getName());
+
+    private static final int HEALTH_CHECK_TIMEOUT = 5000;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * The jars of the Ant installation that the builds of a daemon share.
+     */
+    private static final List<String> CORE_JARS = Arrays.asList("ant.jar", "ant-launcher.jar");
+
+    /**
+     * How long to wait for the build output to arrive after the build has finished.
+     */
+    private static final long FINISH_TIMEOUT = 10*1000;
+
+    /**
+     * Minutes a daemon stays around without running any build.
+     */
+    public static int IDLE_TIMEOUT = Integer.getInteger(AntDaemons.class.getName()+".idleTimeout", 30);
+}
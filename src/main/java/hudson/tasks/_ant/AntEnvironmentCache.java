@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.Environment;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the environment of a build, so that consecutive Ant build steps don't compute it over and over,
+ * which involves all the {@link hudson.model.EnvironmentContributor}s and, on a slave, a round trip to it.
+ *
+ * <p>
+ * The environment is computed again as soon as the build has gained or lost an
+ * {@link EnvironmentContributingAction} or a {@link hudson.model.Environment}, or one of them
+ * contributes something else than before, which is how the build steps in between can change it.
+ * Asking them is cheap, since they run where the build does. Nothing is persisted.
+ */
+public class AntEnvironmentCache {
+    private EnvVars env;
+    /**
+     * What the environment was computed from.
+     */
+    private List<Object> contributors;
+    /**
+     * How long it took to compute.
+     */
+    private long cost;
+
+    /**
+     * Gets the environment of the build, with the build variables on top, as {@link hudson.tasks.Ant} uses it.
+     *
+     * @return
+     *      A copy that the caller is free to modify.
+     */
+    public static EnvVars getEnvironment(AbstractBuild<?,?> build, TaskListener listener) throws IOException, InterruptedException {
+        AntEnvironmentCache cache;
+        synchronized (CACHES) {
+            cache = CACHES.get(build);
+            if (cache==null)
+                CACHES.put(build, cache = new AntEnvironmentCache());
+        }
+        return cache.get(build, listener);
+    }
+
+    private synchronized EnvVars get(AbstractBuild<?,?> build, TaskListener listener) throws IOException, InterruptedException {
+        List<Object> c = getContributors(build);
+        if (env!=null && c.equals(contributors)) {
+            LOGGER.log(Level.FINE, "Reused the environment of {0}, which saved {1}ms",
+                    new Object[] {build.getFullDisplayName(), cost});
+            return new EnvVars(env);
+        }
+
+        long start = System.currentTimeMillis();
+        EnvVars e = build.getEnvironment(listener);
+        e.overrideAll(build.getBuildVariables());
+        env = e;
+        contributors = c;
+        cost = System.currentTimeMillis()-start;
+        return new EnvVars(env);
+    }
+
+    private static List<Object> getContributors(AbstractBuild<?,?> build) {
+        List<Object> r = new ArrayList<Object>();
+        for (EnvironmentContributingAction a : build.getActions(EnvironmentContributingAction.class)) {
+            // actions like the one of EnvInject change what they contribute in place
+            EnvVars v = new EnvVars();
+            a.buildEnvVars(build, v);
+            r.add(new Contribution(a, v));
+        }
+        if (build.getEnvironments()!=null) {
+            for (Environment e : build.getEnvironments()) {
+                Map<String,String> v = new TreeMap<String,String>();
+                e.buildEnvVars(v);
+                r.add(new Contribution(e, v));
+            }
+        }
+        r.add(new TreeMap<String,String>(build.getBuildVariables()));
+        return r;
+    }
+
+    /**
+     * What an action or an environment contributed. The contributor is compared by identity,
+     * since actions and environments may well implement {@link #equals(Object)} in ways that miss a change.
+     */
+    private static final class Contribution {
+        private final Object o;
+        private final Map<String,String> vars;
+
+        Contribution(Object o, Map<String,String> vars) {
+            this.o = o;
+            this.vars = vars;
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            return that instanceof Contribution && ((Contribution)that).o==o && ((Contribution)that).vars.equals(vars);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(o);
+        }
+    }
+
+    /**
+     * Caches of the builds that have run an Ant build step, which go away with the builds.
+     * Not kept as an action of the build, which would be persisted with it.
+     */
+    private static final Map<AbstractBuild<?,?>,AntEnvironmentCache> CACHES = new WeakHashMap<AbstractBuild<?,?>,AntEnvironmentCache>();
+
+    private static final Logger LOGGER = Logger.getLogger(AntEnvironmentCache.class.getName());
+}
@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.util.QuotedStringTokenizer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Computes JVM options that size the Ant JVM for its share of the node,
+ * rather than letting it assume that it has the whole node to itself.
+ *
+ * <p>
+ * When several builds run on a node at the same time, each JVM would otherwise size its heap
+ * from all the memory of the node, and start as many GC threads as the node has processors.
+ */
+public final class AntErgonomics {
+    private AntErgonomics() {}
+
+    /**
+     * Computes the options for a JVM that shares the node with others.
+     *
+     * @param processors
+     *      Processors of the node.
+     * @param memory
+     *      Memory of the node in bytes, or 0 or less if unknown.
+     * @param jvms
+     *      How many JVMs like this one the node may run at the same time.
+     * @param userOpts
+     *      Options the JVM is already given, which are never overridden. May be null.
+     * @param jvm
+     *      The JVM, or null if not known. Options that only some JVMs understand are only given to those,
+     *      rather than telling the JVM to ignore what it doesn't understand, which would hide mistakes in {@code userOpts}.
+     * @return
+     *      The options to add, possibly none.
+     */
+    public static List<String> getOptions(int processors, long memory, int jvms, String userOpts, AntJvm jvm) {
+        List<String> r = new ArrayList<String>();
+        if (jvms<=1)
+            return r;   // the defaults are right
+        List<String> user = userOpts==null ? new ArrayList<String>() : Arrays.asList(QuotedStringTokenizer.tokenize(userOpts));
+
+        int cpus = Math.max(1, processors/jvms);
+        // Java 10, and 8u191 by backport. the other options are understood by all the JVMs that run Jenkins
+        if (!has(user, "-XX:ActiveProcessorCount=") && jvm!=null && (jvm.getMajor()>=10 || jvm.getMajor()==8 && jvm.getUpdate()>=191))
+            r.add("-XX:ActiveProcessorCount="+cpus);
+        if (!has(user, "-XX:ParallelGCThreads="))
+            r.add("-XX:ParallelGCThreads="+cpus);
+        if (!has(user, "-XX:ConcGCThreads="))
+            // what the JVM would pick for that many processors
+            r.add("-XX:ConcGCThreads="+Math.max(1, (cpus+3)/4));
+        if (memory>0 && !has(user, "-Xmx") && !has(user, "-XX:MaxHeapSize=")
+                && !has(user, "-XX:MaxRAMPercentage=") && !has(user, "-XX:MaxRAMFraction="))
+            r.add("-Xmx"+Math.max(MIN_HEAP, memory/jvms*HEAP_PERCENT/100/(1024*1024))+"m");
+        return r;
+    }
+
+    private static boolean has(List<String> opts, String prefix) {
+        for (String o : opts)
+            if (o.startsWith(prefix))
+                return true;
+        return false;
+    }
+
+    /**
+     * Memory available to the processes of this node in bytes, or -1 if unknown.
+     * On Linux, this takes the memory limit of the cgroup into account.
+     */
+    public static long getMemory() {
+        long r = getPhysicalMemory();
+        for (String f : CGROUP_LIMITS) {
+            long l = readLimit(new File(f));
+            if (l>0 && (r<=0 || l<r))
+                r = l;
+        }
+        return r;
+    }
+
+    private static long getPhysicalMemory() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        try {
+            // only on JVMs that have com.sun.management, whose implementation may not be accessible
+            return (Long)Class.forName("com.sun.management.OperatingSystemMXBean").getMethod("getTotalPhysicalMemorySize").invoke(os);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a cgroup memory limit, which is "max" or a huge number when there's none.
+     */
+    private static long readLimit(File f) {
+        if (!f.exists())
+            return -1;
+        try {
+            BufferedReader r = new BufferedReader(new FileReader(f));
+            try {
+                String line = r.readLine();
+                return line==null ? -1 : Long.parseLong(line.trim());
+            } finally {
+                r.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Memory limits of the cgroup of this process, in cgroup v2 and v1.
+     */
+    private static final String[] CGROUP_LIMITS = {"/sys/fs/cgroup/memory.max", "/sys/fs/cgroup/memory/memory.limit_in_bytes"};
+
+    /**
+     * Smallest heap to give, in MB.
+     */
+    private static final long MIN_HEAP = 256;
+
+    /**
+     * Set to true to size the Ant JVMs for their share of the node.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(AntErgonomics.class.getName()+".enabled");
+
+    /**
+     * Percentage of its share of the memory of the node that the heap of an Ant JVM gets.
+     * The rest is for the JVM itself and whatever Ant forks.
+     */
+    public static int HEAP_PERCENT = Integer.getInteger(AntErgonomics.class.getName()+".heapPercent", 50);
+}
@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * {@link BuildListener} that runs inside the Ant JVM and reports target and task events
+ * to Jenkins over a local socket, instead of making us guess them from the console output.
+ *
+ * <p>
+ * This class is loaded by Ant through <tt>-lib</tt> and <tt>-listener</tt>,
+ * so it must not depend on anything but Ant and the JDK.
+ * The port to connect to is given in the {@link #PORT_ENV} environment variable.
+ *
+ * <p>
+ * Each event is sent as a type byte ({@link #TARGET_STARTED} etc.), the timestamp as a long,
+ * the name of the target or the task in {@link DataOutputStream#writeUTF(String)} format,
+ * and for the "finished" events, a boolean that indicates a failure.
+ *
+ * @see AntEvents
+ */
+public class AntEventListener implements BuildListener {
+    private DataOutputStream out;
+    private boolean broken;
+
+    public AntEventListener() {
+    }
+
+    public void buildStarted(BuildEvent event) {
+    }
+
+    public void buildFinished(BuildEvent event) {
+        synchronized (this) {
+            if (out!=null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // nothing we can do
+                }
+                out = null;
+            }
+            broken = true;
+        }
+    }
+
+    public void targetStarted(BuildEvent event) {
+        send(TARGET_STARTED, event.getTarget().getName(), null);
+    }
+
+    public void targetFinished(BuildEvent event) {
+        send(TARGET_FINISHED, event.getTarget().getName(), event.getException());
+    }
+
+    public void taskStarted(BuildEvent event) {
+        send(TASK_STARTED, event.getTask().getTaskName(), null);
+    }
+
+    public void taskFinished(BuildEvent event) {
+        send(TASK_FINISHED, event.getTask().getTaskName(), event.getException());
+    }
+
+    public void messageLogged(BuildEvent event) {
+    }
+
+    private synchronized void send(int type, String name, Throwable failure) {
+        if (broken)     return;
+        try {
+            if (out==null) {
+                String port = System.getenv(PORT_ENV);
+                if (port==null) {
+                    broken = true;
+                    return;
+                }
+                Socket s = new Socket(InetAddress.getByName(null), Integer.parseInt(port));
+                out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            }
+
+            out.writeByte(type);
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(name==null ? "" : name);
+            if (type==TARGET_FINISHED || type==TASK_FINISHED)
+                out.writeBoolean(failure!=null);
+            if (type!=TASK_STARTED)
+                out.flush();
+        } catch (IOException e) {
+            // never let the reporting break the build
+            broken = true;
+        } catch (NumberFormatException e) {
+            broken = true;
+        }
+    }
+
+    /**
+     * Environment variable that holds the port number to report to.
+     */
+    public static final String PORT_ENV = "JENKINS_ANT_EVENTS_PORT";
+
+    public static final int TARGET_STARTED = 1;
+    public static final int TARGET_FINISHED = 2;
+    public static final int TASK_STARTED = 3;
+    public static final int TASK_FINISHED = 4;
+}
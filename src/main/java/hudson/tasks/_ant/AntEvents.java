@@ -0,0 +1,438 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static hudson.tasks._ant.AntEventListener.*;
+
+/**
+ * Receives the events of {@link AntEventListener} during one Ant build step,
+ * and feeds them to {@link AntTargetsAction}.
+ *
+ * <p>
+ * The listener connects to a server socket on the loopback interface of the node that runs Ant,
+ * and whatever it sends is forwarded as-is to the master through the channel
+ * by the single {@link Receiver} thread of that node.
+ */
+public final class AntEvents {
+    private final VirtualChannel channel;
+    private final FilePath jar;
+    private final int port;
+    private final Decoder decoder;
+
+    private AntEvents(VirtualChannel channel, FilePath jar, int port, Decoder decoder) {
+        this.channel = channel;
+        this.jar = jar;
+        this.port = port;
+        this.decoder = decoder;
+    }
+
+    /**
+     * Prepares the node to receive events, or returns null if that failed,
+     * in which case the build should go on without them.
+     */
+    public static AntEvents start(Launcher launcher, AntTargetsAction targets, TaskListener listener) throws InterruptedException {
+        try {
+            Node node = Computer.currentComputer().getNode();
+            FilePath root = node==null ? null : node.getRootPath();
+            if (root==null)
+                return null;
+
+            FilePath jar = AgentJar.install(root, "ant-events", getListenerJar());
+
+            Decoder decoder = new Decoder(targets);
+            VirtualChannel channel = launcher.getChannel();
+            int port = channel.call(new Open(new RemoteOutputStream(decoder)));
+            return new AntEvents(channel, jar, port, decoder);
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to set up the Ant event listener. Falling back to the console output"));
+            return null;
+        }
+    }
+
+    /**
+     * Adds the listener to the Ant command line, and tells it where to connect.
+     */
+    public void addTo(ArgumentListBuilder args, EnvVars env) {
+        args.add("-lib", jar.getRemote());
+        args.add("-listener", AntEventListener.class.getName());
+        env.put(PORT_ENV, String.valueOf(port));
+    }
+
+    /**
+     * Called after Ant has exited, to wait for the remaining events and to release the port.
+     */
+    public void finish() throws IOException, InterruptedException {
+        // if Ant never connected, it never will now, and there's nothing to wait for
+        if (channel.call(new Close(port)))
+            decoder.awaitClose(FINISH_TIMEOUT);
+    }
+
+    /**
+     * Builds a jar that only contains {@link AntEventListener}, to be passed to Ant with <tt>-lib</tt>.
+     */
+    private static synchronized byte[] getListenerJar() throws IOException {
+        if (listenerJar==null)
+            listenerJar = AgentJar.build(AntEventListener.class);
+        return listenerJar;
+    }
+
+    private static byte[] listenerJar;
+
+    /**
+     * Opens the server socket on the node, and has {@link Receiver} forward what the listener sends.
+     */
+    static final class Open implements Callable<Integer,IOException> {
+        private final OutputStream sink;
+
+        Open(OutputStream sink) {
+            this.sink = sink;
+        }
+
+        public Integer call() throws IOException {
+            ServerSocketChannel ss = ServerSocketChannel.open();
+            try {
+                ss.socket().bind(new InetSocketAddress(InetAddress.getByName(null), 0), 1);
+                ss.configureBlocking(false);
+            } catch (IOException e) {
+                ss.close();
+                throw e;
+            }
+            int port = ss.socket().getLocalPort();
+            OPEN.put(port, new Endpoint(ss, sink));
+            Receiver.get().register(ss, SelectionKey.OP_ACCEPT, port);
+            return port;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Stops waiting for Ant to connect, once it has exited, and tells whether it did.
+     */
+    static final class Close implements Callable<Boolean,IOException> {
+        private final int port;
+
+        Close(int port) {
+            this.port = port;
+        }
+
+        public Boolean call() throws IOException {
+            Endpoint e = OPEN.remove(port);
+            if (e==null)
+                return true;    // the receiver already accepted the connection
+            // but it may not have got to it yet
+            return Receiver.get().accept(e);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * A server socket that is still waiting for Ant to connect, and where to send what it gets.
+     */
+    private static final class Endpoint {
+        final ServerSocketChannel ss;
+        final OutputStream sink;
+
+        Endpoint(ServerSocketChannel ss, OutputStream sink) {
+            this.ss = ss;
+            this.sink = sink;
+        }
+
+        void close() {
+            closeQuietly(ss);
+            closeQuietly(sink);
+        }
+    }
+
+    /**
+     * Server sockets on this node that are still waiting for Ant to connect, keyed by their ports.
+     */
+    private static final Map<Integer,Endpoint> OPEN = new ConcurrentHashMap<Integer,Endpoint>();
+
+    /**
+     * Accepts the connections of the listeners and forwards what they send, for all the builds
+     * on this node, from a single thread.
+     *
+     * <p>
+     * Events are small and few, so one thread keeps up with any number of concurrent builds,
+     * where a thread per build would mostly sit blocked in a read.
+     */
+    static final class Receiver implements Runnable {
+        private final Selector selector;
+        /**
+         * Registrations requested by other threads, which the selector thread carries out
+         * since {@link SelectableChannel#register} blocks while the selector is selecting.
+         */
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+        private final ByteBuffer buf = ByteBuffer.allocate(8192);
+
+        private Receiver(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(final SelectableChannel ch, final int ops, final Object attachment) {
+            synchronized (tasks) {
+                tasks.add(new Runnable() {
+                    public void run() {
+                        try {
+                            ch.register(selector, ops, attachment);
+                        } catch (ClosedChannelException e) {
+                            // closed before it got here
+                        }
+                    }
+                });
+            }
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    List<Runnable> todo;
+                    synchronized (tasks) {
+                        todo = new ArrayList<Runnable>(tasks);
+                        tasks.clear();
+                    }
+                    for (Runnable r : todo)
+                        r.run();
+
+                    for (Iterator<SelectionKey> itr=selector.selectedKeys().iterator(); itr.hasNext();) {
+                        SelectionKey key = itr.next();
+                        itr.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept(key);
+                        else if (key.isReadable())
+                            read(key);
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Ant event receiver failed", e);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Ant event receiver failed", e);
+                }
+            }
+        }
+
+        private void accept(SelectionKey key) throws IOException {
+            Endpoint e = OPEN.remove((Integer)key.attachment());
+            if (e==null) {
+                // already closed
+                key.cancel();
+                return;
+            }
+            accept(e);
+        }
+
+        /**
+         * Takes the connection of the listener, if there's one, and starts forwarding what it sends.
+         * Either way, no other connection is accepted. Can be called from any thread.
+         *
+         * @return
+         *      true if the listener had connected.
+         */
+        boolean accept(Endpoint e) throws IOException {
+            SocketChannel s = null;
+            try {
+                s = e.ss.accept();
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, "Failed to accept the Ant event listener", x);
+            }
+            // only one listener ever connects
+            closeQuietly(e.ss);
+            if (s==null) {
+                closeQuietly(e.sink);
+                return false;
+            }
+            s.configureBlocking(false);
+            register(s, SelectionKey.OP_READ, e.sink);
+            return true;
+        }
+
+        private void read(SelectionKey key) {
+            SocketChannel s = (SocketChannel)key.channel();
+            OutputStream sink = (OutputStream)key.attachment();
+            try {
+                buf.clear();
+                int n = s.read(buf);
+                if (n>0) {
+                    sink.write(buf.array(), 0, n);
+                    return;
+                }
+                if (n==0)
+                    return;
+            } catch (IOException e) {
+                // Ant went away
+                LOGGER.log(Level.FINE, "Ant event receiver on port "+s.socket().getLocalPort()+" terminated", e);
+            }
+            key.cancel();
+            closeQuietly(s);
+            closeQuietly(sink);
+        }
+
+        private static Receiver instance;
+
+        static synchronized Receiver get() throws IOException {
+            if (instance==null) {
+                instance = new Receiver(Selector.open());
+                Thread t = new Thread(instance, "Ant event receiver");
+                t.setDaemon(true);
+                t.start();
+            }
+            return instance;
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Parses the records sent by {@link AntEventListener} as they arrive.
+     */
+    static final class Decoder extends OutputStream {
+        private final AntTargetsAction targets;
+        private byte[] buf = new byte[1024];
+        private int len;
+        private boolean closed;
+
+        Decoder(AntTargetsAction targets) {
+            this.targets = targets;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b},0,1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int n) throws IOException {
+            if (len+n>buf.length) {
+                byte[] nb = new byte[Math.max(buf.length*2,len+n)];
+                System.arraycopy(buf,0,nb,0,len);
+                buf = nb;
+            }
+            System.arraycopy(b,off,buf,len,n);
+            len += n;
+            parse();
+        }
+
+        /**
+         * Dispatches all the complete records in the buffer, and keeps the rest for later.
+         */
+        private void parse() throws IOException {
+            int p = 0;
+            while (len-p>=11) {
+                int type = buf[p];
+                int nameLen = ((buf[p+9]&0xFF)<<8) | (buf[p+10]&0xFF);
+                boolean finished = type==TARGET_FINISHED || type==TASK_FINISHED;
+                int end = p+11+nameLen+(finished ? 1 : 0);
+                if (end>len)
+                    break;  // incomplete
+
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf,p+1,end-p-1));
+                long timestamp = in.readLong();
+                String name = in.readUTF();
+
+                switch (type) {
+                case TARGET_STARTED:
+                    targets.targetEvent(name,timestamp,true);
+                    break;
+                case TARGET_FINISHED:
+                    targets.targetEvent(name,timestamp,false);
+                    break;
+                default:
+                    // task events aren't used yet
+                }
+                p = end;
+            }
+            System.arraycopy(buf,p,buf,0,len-p);
+            len -= p;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        synchronized void awaitClose(long timeout) throws InterruptedException {
+            long end = System.currentTimeMillis()+timeout;
+            long remaining;
+            while (!closed && (remaining=end-System.currentTimeMillis())>0)
+                wait(remaining);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(AntEvents.class.getName());
+
+    /**
+     * How long to wait for the remaining events after Ant has exited.
+     */
+    private static final long FINISH_TIMEOUT = 10*1000;
+
+    /**
+     * Set to true to report the targets through {@link AntEventListener} instead of from the console output.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(AntEvents.class.getName()+".enabled");
+}
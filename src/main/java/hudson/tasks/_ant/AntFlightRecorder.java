@@ -0,0 +1,463 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Has the Ant JVM record itself with the JDK Flight Recorder, and sums up the recording
+ * on the node once Ant has exited.
+ *
+ * <p>
+ * The recording is read with the <tt>jdk.jfr.consumer</tt> API of the JVM of the node,
+ * through reflection since this plugin also runs on JVMs that don't have it.
+ * If it's small enough, the recording itself is kept with the build by {@link AntFlightRecordingAction}.
+ */
+public final class AntFlightRecorder {
+    /**
+     * Temporary directory on the node that the recording goes to.
+     */
+    private final FilePath dir;
+    private final AntJvm jvm;
+
+    private AntFlightRecorder(FilePath dir, AntJvm jvm) {
+        this.dir = dir;
+        this.jvm = jvm;
+    }
+
+    /**
+     * Prepares a place for the recording on the node, or returns null and says why if the JVM can't record itself.
+     *
+     * @param jvm
+     *      The JVM that will run Ant, or null if not known.
+     * @param root
+     *      Root directory of the node, or null.
+     */
+    public static AntFlightRecorder start(Launcher launcher, AntJvm jvm, FilePath root, TaskListener listener) throws IOException, InterruptedException {
+        if (jvm==null) {
+            listener.getLogger().println(Messages.AntFlightRecorder_UnknownJvm());
+            return null;
+        }
+        if (getUnlockOptions(jvm)==null) {
+            listener.getLogger().println(Messages.AntFlightRecorder_UnsupportedJvm(jvm));
+            return null;
+        }
+        VirtualChannel channel = launcher.getChannel();
+        String dir = channel.call(new CreateTempDir(root==null ? null : root.getRemote()));
+        if (dir==null) {
+            listener.getLogger().println(Messages.AntFlightRecorder_NoPath());
+            return null;
+        }
+        return new AntFlightRecorder(new FilePath(channel, dir), jvm);
+    }
+
+    /**
+     * Options to add to <tt>ANT_OPTS</tt>.
+     */
+    public String getJvmOptions() {
+        return getUnlockOptions(jvm)+"-XX:StartFlightRecording=settings=profile,dumponexit=true,filename="+dir.child(RECORDING).getRemote();
+    }
+
+    /**
+     * Options that make JFR available in the given JVM, possibly none, or null if it has no JFR.
+     *
+     * <p>
+     * These are only given to the JVMs that understand them, rather than telling the JVM to ignore
+     * what it doesn't understand, which would also hide mistakes in the options of the user.
+     */
+    static String getUnlockOptions(AntJvm jvm) {
+        int major = jvm.getMajor();
+        if (major>=11)
+            return "";
+        // a commercial feature of Oracle until Java 11
+        if (jvm.isCommercial() && (major==8 && jvm.getUpdate()>=40 || major==9 || major==10))
+            return "-XX:+UnlockCommercialFeatures -XX:+FlightRecorder ";
+        // backported to OpenJDK 8
+        if (!jvm.isCommercial() && major==8 && jvm.getUpdate()>=262)
+            return "";
+        return null;
+    }
+
+    /**
+     * Called once Ant has exited, to sum up the recording, keep it with the build, and clean up the node.
+     *
+     * @param label
+     *      What to show the recording as.
+     */
+    public void finish(AbstractBuild<?,?> build, String label, TaskListener listener) throws IOException, InterruptedException {
+        try {
+            FilePath jfr = dir.child(RECORDING);
+            if (!jfr.exists()) {
+                listener.getLogger().println(Messages.AntFlightRecorder_NoRecording());
+                return;
+            }
+            Summary s = jfr.act(new Summarize());
+            long size = jfr.length();
+            String file = null;
+            if (size<=MAX_SIZE) {
+                file = AntFlightRecordingAction.store(build, jfr);
+            } else {
+                listener.getLogger().println(Messages.AntFlightRecorder_TooLarge(size/(1024*1024), MAX_SIZE/(1024*1024)));
+            }
+            AntFlightRecordingAction.of(build).add(new AntFlightRecordingAction.Recording(label, s, file, size));
+        } finally {
+            dir.deleteRecursive();
+        }
+    }
+
+    /**
+     * Creates the directory in the temporary directory of the node, or else in its root directory,
+     * whichever has a path without whitespace. Returns null if neither has.
+     */
+    private static final class CreateTempDir implements Callable<String,IOException> {
+        private final String root;
+
+        CreateTempDir(String root) {
+            this.root = root;
+        }
+
+        public String call() throws IOException {
+            // the launcher scripts of Ant split ANT_OPTS at whitespace, even in quotes
+            for (String parent : new String[] {System.getProperty("java.io.tmpdir"), root}) {
+                if (parent==null || WHITESPACE.matcher(new File(parent).getAbsolutePath()).find())
+                    continue;
+                File dir = File.createTempFile("ant-jfr", "", new File(parent));
+                if (!dir.delete() || !dir.mkdir())
+                    throw new IOException("Failed to create "+dir);
+                return dir.getPath();
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Summarize implements FileCallable<Summary> {
+        public Summary invoke(File f, VirtualChannel channel) throws IOException {
+            return summarize(f);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Reads a recording, or explains in {@link Summary#getError()} why it couldn't.
+     */
+    static Summary summarize(File f) throws IOException {
+        Summary s = new Summary();
+        Reader r;
+        try {
+            r = new Reader();
+        } catch (Exception e) {
+            s.error = Messages.AntFlightRecorder_Unsupported(System.getProperty("java.version"));
+            return s;
+        }
+        try {
+            r.read(f, s);
+        } catch (InvocationTargetException e) {
+            Throwable t = e.getTargetException();
+            if (t instanceof IOException)
+                throw (IOException)t;
+            throw (IOException)new IOException("Failed to read "+f).initCause(t);
+        } catch (IllegalAccessException e) {
+            throw (IOException)new IOException("Failed to read "+f).initCause(e);
+        } catch (InstantiationException e) {
+            throw (IOException)new IOException("Failed to read "+f).initCause(e);
+        }
+        s.finish();
+        return s;
+    }
+
+    /**
+     * The parts of <tt>jdk.jfr.consumer</tt> that are used, looked up once.
+     * Only the methods of the public API classes are called, since the implementations aren't accessible.
+     */
+    private static final class Reader {
+        private final Class<?> recordingFile;
+        private final Method toPath, hasMoreEvents, readEvent, close;
+        private final Method getEventType, getTypeName, getStartTime, getEndTime, getDuration, getDurationField, getLong, getStackTrace;
+        private final Method getFrames, isJavaFrame, getMethod, getMethodName, getType, getClassName;
+        private final Method toNanos, toEpochMilli;
+
+        Reader() throws Exception {
+            recordingFile = Class.forName("jdk.jfr.consumer.RecordingFile");
+            Class<?> event = Class.forName("jdk.jfr.consumer.RecordedEvent");
+            Class<?> object = Class.forName("jdk.jfr.consumer.RecordedObject");
+            Class<?> stackTrace = Class.forName("jdk.jfr.consumer.RecordedStackTrace");
+            Class<?> frame = Class.forName("jdk.jfr.consumer.RecordedFrame");
+            Class<?> method = Class.forName("jdk.jfr.consumer.RecordedMethod");
+            toPath = File.class.getMethod("toPath");
+            hasMoreEvents = recordingFile.getMethod("hasMoreEvents");
+            readEvent = recordingFile.getMethod("readEvent");
+            close = recordingFile.getMethod("close");
+            getEventType = event.getMethod("getEventType");
+            getTypeName = Class.forName("jdk.jfr.EventType").getMethod("getName");
+            getStartTime = event.getMethod("getStartTime");
+            getEndTime = event.getMethod("getEndTime");
+            getDuration = event.getMethod("getDuration");
+            getDurationField = object.getMethod("getDuration", String.class);
+            getLong = object.getMethod("getLong", String.class);
+            getStackTrace = event.getMethod("getStackTrace");
+            getFrames = stackTrace.getMethod("getFrames");
+            isJavaFrame = frame.getMethod("isJavaFrame");
+            getMethod = frame.getMethod("getMethod");
+            getMethodName = method.getMethod("getName");
+            getType = method.getMethod("getType");
+            getClassName = Class.forName("jdk.jfr.consumer.RecordedClass").getMethod("getName");
+            toNanos = Class.forName("java.time.Duration").getMethod("toNanos");
+            toEpochMilli = Class.forName("java.time.Instant").getMethod("toEpochMilli");
+        }
+
+        void read(File f, Summary s) throws IOException, InvocationTargetException, IllegalAccessException, InstantiationException {
+            Object file;
+            try {
+                file = recordingFile.getConstructor(toPath.getReturnType()).newInstance(toPath.invoke(f));
+            } catch (NoSuchMethodException e) {
+                throw new AssertionError(e);
+            }
+            try {
+                while ((Boolean)hasMoreEvents.invoke(file)) {
+                    Object e = readEvent.invoke(file);
+                    String type = (String)getTypeName.invoke(getEventType.invoke(e));
+                    s.span((Long)toEpochMilli.invoke(getStartTime.invoke(e)), (Long)toEpochMilli.invoke(getEndTime.invoke(e)));
+
+                    if (type.equals("jdk.ExecutionSample"))
+                        s.sample(topFrame(e));
+                    else if (type.equals("jdk.GarbageCollection"))
+                        s.gc(nanos(getDurationField.invoke(e,"sumOfPauses")), nanos(getDurationField.invoke(e,"longestPause")));
+                    else if (type.equals("jdk.ObjectAllocationInNewTLAB"))
+                        s.tlabAllocated += (Long)getLong.invoke(e,"tlabSize");
+                    else if (type.equals("jdk.ObjectAllocationOutsideTLAB"))
+                        s.tlabAllocated += (Long)getLong.invoke(e,"allocationSize");
+                    else if (type.equals("jdk.ObjectAllocationSample"))
+                        s.sampledAllocated += (Long)getLong.invoke(e,"weight");
+                    else if (type.equals("jdk.SafepointBegin"))
+                        s.safepoint(nanos(getDuration.invoke(e)));
+                }
+            } finally {
+                close.invoke(file);
+            }
+        }
+
+        /**
+         * The method at the top of the stack, as "class.method".
+         */
+        private String topFrame(Object e) throws InvocationTargetException, IllegalAccessException {
+            Object st = getStackTrace.invoke(e);
+            if (st==null)
+                return null;
+            for (Object frame : (List<?>)getFrames.invoke(st)) {
+                if (!(Boolean)isJavaFrame.invoke(frame))
+                    continue;
+                Object m = getMethod.invoke(frame);
+                return getClassName.invoke(getType.invoke(m))+"."+getMethodName.invoke(m);
+            }
+            return null;
+        }
+
+        private long nanos(Object duration) throws InvocationTargetException, IllegalAccessException {
+            return duration==null ? 0 : (Long)toNanos.invoke(duration);
+        }
+    }
+
+    /**
+     * What a recording says about the Ant JVM.
+     */
+    public static final class Summary implements Serializable {
+        private long start = Long.MAX_VALUE, end = Long.MIN_VALUE;
+        private int samples;
+        private transient Map<String,Integer> methods = new HashMap<String,Integer>();
+        private final List<HotMethod> hotMethods = new ArrayList<HotMethod>();
+        private int gcCount;
+        private long gcPause, gcLongestPause;
+        private long tlabAllocated, sampledAllocated;
+        private final List<Long> safepoints = new ArrayList<Long>();
+        private String error;
+
+        void span(long start, long end) {
+            this.start = Math.min(this.start, start);
+            this.end = Math.max(this.end, end);
+        }
+
+        void sample(String method) {
+            samples++;
+            if (method!=null) {
+                Integer n = methods.get(method);
+                methods.put(method, n==null ? 1 : n+1);
+            }
+        }
+
+        void gc(long pause, long longestPause) {
+            gcCount++;
+            gcPause += pause;
+            gcLongestPause = Math.max(gcLongestPause, longestPause);
+        }
+
+        void safepoint(long duration) {
+            safepoints.add(duration);
+            if (safepoints.size()>TOP*2) {
+                Collections.sort(safepoints, Collections.reverseOrder());
+                safepoints.subList(TOP, safepoints.size()).clear();
+            }
+        }
+
+        /**
+         * Keeps only the top entries, once the whole recording has been read.
+         */
+        void finish() {
+            List<Map.Entry<String,Integer>> l = new ArrayList<Map.Entry<String,Integer>>(methods.entrySet());
+            Collections.sort(l, new Comparator<Map.Entry<String,Integer>>() {
+                public int compare(Map.Entry<String,Integer> o1, Map.Entry<String,Integer> o2) {
+                    return o2.getValue().compareTo(o1.getValue());
+                }
+            });
+            for (Map.Entry<String,Integer> e : l.subList(0, Math.min(TOP, l.size())))
+                hotMethods.add(new HotMethod(e.getKey(), e.getValue()));
+            methods = null;
+            Collections.sort(safepoints, Collections.reverseOrder());
+            if (safepoints.size()>TOP)
+                safepoints.subList(TOP, safepoints.size()).clear();
+        }
+
+        /**
+         * Why the recording couldn't be read, or null.
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * How long the recording covers, in milliseconds.
+         */
+        public long getDuration() {
+            return end>start ? end-start : 0;
+        }
+
+        /**
+         * Number of execution samples.
+         */
+        public int getSamples() {
+            return samples;
+        }
+
+        /**
+         * The methods that were seen running the most, with the share of the samples they were seen in.
+         */
+        public List<HotMethod> getHotMethods() {
+            return hotMethods;
+        }
+
+        public int getGcCount() {
+            return gcCount;
+        }
+
+        /**
+         * Total time the application was paused by the garbage collector, in nanoseconds.
+         */
+        public long getGcPause() {
+            return gcPause;
+        }
+
+        public long getGcLongestPause() {
+            return gcLongestPause;
+        }
+
+        /**
+         * Bytes allocated on the heap, as estimated from the allocation events.
+         */
+        public long getAllocated() {
+            return tlabAllocated>0 ? tlabAllocated : sampledAllocated;
+        }
+
+        /**
+         * Bytes allocated per second.
+         */
+        public long getAllocationRate() {
+            long d = getDuration();
+            return d==0 ? 0 : getAllocated()*1000/d;
+        }
+
+        /**
+         * The longest safepoints, in nanoseconds, the longest first.
+         */
+        public List<Long> getLongestSafepoints() {
+            return safepoints;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    public static final class HotMethod implements Serializable {
+        private final String name;
+        private final int samples;
+
+        HotMethod(String name, int samples) {
+            this.name = name;
+            this.samples = samples;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getSamples() {
+            return samples;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final String RECORDING = "ant.jfr";
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s");
+
+    /**
+     * How many hot methods and safepoints the summary shows.
+     */
+    static final int TOP = 10;
+
+    /**
+     * Recordings larger than this many bytes are summed up, but not kept.
+     */
+    public static long MAX_SIZE = Long.getLong(AntFlightRecorder.class.getName()+".maxSize", 50)*1024*1024;
+}
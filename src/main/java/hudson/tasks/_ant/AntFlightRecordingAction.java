@@ -0,0 +1,215 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.tasks._ant.AntFlightRecorder.Summary;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Flight recordings of the Ant JVMs of a build, as made by {@link AntFlightRecorder}.
+ *
+ * <p>
+ * One instance covers all the Ant build steps of a build. The recordings themselves
+ * are kept in the build directory, where they can be downloaded from.
+ */
+public class AntFlightRecordingAction implements RunAction2 {
+    private transient Run<?,?> owner;
+
+    private final List<Recording> recordings = new ArrayList<Recording>();
+
+    /**
+     * Gets the action of the build, adding it if it's not there yet.
+     */
+    public static AntFlightRecordingAction of(AbstractBuild<?,?> build) {
+        synchronized (build) {
+            AntFlightRecordingAction a = build.getAction(AntFlightRecordingAction.class);
+            if (a==null)
+                build.addAction(a = new AntFlightRecordingAction());
+            return a;
+        }
+    }
+
+    /**
+     * Copies a recording into the build directory.
+     *
+     * @return
+     *      The name of the file it went to.
+     */
+    static String store(AbstractBuild<?,?> build, FilePath recording) throws IOException, InterruptedException {
+        File dir = getDirectory(build);
+        File f;
+        synchronized (build) {
+            dir.mkdirs();
+            int i = 1;
+            while ((f=new File(dir, "ant-"+i+".jfr")).exists())
+                i++;
+            f.createNewFile();
+        }
+        recording.copyTo(new FilePath(f));
+        return f.getName();
+    }
+
+    private static File getDirectory(Run<?,?> build) {
+        return new File(build.getRootDir(), "ant-flight-recordings");
+    }
+
+    public void onAttached(Run<?,?> r) {
+        owner = r;
+    }
+
+    public void onLoad(Run<?,?> r) {
+        owner = r;
+    }
+
+    public Run<?,?> getOwner() {
+        return owner;
+    }
+
+    public String getIconFileName() {
+        return "monitor.png";
+    }
+
+    public String getDisplayName() {
+        return Messages.AntFlightRecordingAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return "antFlightRecordings";
+    }
+
+    public synchronized void add(Recording r) {
+        recordings.add(r);
+    }
+
+    /**
+     * The recordings of each build step, in the order they ran.
+     */
+    public synchronized List<Recording> getRecordings() {
+        return new ArrayList<Recording>(recordings);
+    }
+
+    /**
+     * Sends one of the recordings.
+     */
+    public void doDownload(StaplerRequest req, StaplerResponse rsp, @QueryParameter String file) throws IOException, ServletException {
+        for (Recording r : getRecordings()) {
+            if (r.file!=null && r.file.equals(file)) {
+                File f = new File(getDirectory(owner), file);
+                if (f.exists()) {
+                    rsp.serveFile(req, new FileInputStream(f), f.lastModified(), f.length(), file);
+                    return;
+                }
+            }
+        }
+        rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+    }
+
+    /**
+     * The recording of one build step.
+     */
+    public static final class Recording {
+        private final String label;
+        private final Summary summary;
+        /**
+         * Name of the recording in the build directory, or null if it wasn't kept.
+         */
+        private final String file;
+        private final long size;
+
+        Recording(String label, Summary summary, String file, long size) {
+            this.label = label;
+            this.summary = summary;
+            this.file = file;
+            this.size = size;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public Summary getSummary() {
+            return summary;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getDurationString() {
+            return Util.getTimeSpanString(summary.getDuration());
+        }
+
+        public String getGcPauseString() {
+            return millis(summary.getGcPause());
+        }
+
+        public String getGcLongestPauseString() {
+            return millis(summary.getGcLongestPause());
+        }
+
+        public String getAllocationRateString() {
+            return String.format("%.1f MB/s", summary.getAllocationRate()/(1024.0*1024));
+        }
+
+        /**
+         * The longest safepoints, in milliseconds.
+         */
+        public List<String> getLongestSafepointStrings() {
+            List<String> r = new ArrayList<String>();
+            for (Long n : summary.getLongestSafepoints())
+                r.add(millis(n));
+            return r;
+        }
+
+        /**
+         * Percentage of the execution samples that saw the given method.
+         */
+        public String getShare(AntFlightRecorder.HotMethod m) {
+            return String.format("%.1f%%", summary.getSamples()==0 ? 0.0 : m.getSamples()*100.0/summary.getSamples());
+        }
+
+        private static String millis(long nanos) {
+            return String.format("%.1f ms", nanos/1000000.0);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.tasks.Ant.AntInstallation;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers how {@link AntInstallation}s resolve on each node, so that a build on a node
+ * that has already run Ant doesn't need any remote call to find it again.
+ *
+ * <p>
+ * Only successful resolutions are cached. Everything is forgotten when the Ant installations
+ * or the node configuration change, and the entries of a node when it goes online or offline,
+ * since the tools may have been moved or reinstalled in the mean time.
+ */
+public final class AntInstallationCache {
+    private AntInstallationCache() {}
+
+    /**
+     * Node-specific home of an installation, keyed by the node, the name, and the configured home.
+     */
+    private static final Map<String,String> HOMES = new ConcurrentHashMap<String,String>();
+
+    /**
+     * Path of the executable, keyed by the node, the name, and the fully expanded home.
+     */
+    private static final Map<String,String> EXECUTABLES = new ConcurrentHashMap<String,String>();
+
+    /**
+     * Cached version of {@link AntInstallation#forNode(Node, TaskListener)}.
+     */
+    public static AntInstallation forNode(AntInstallation ai, Node node, TaskListener log) throws IOException, InterruptedException {
+        if (node==null)
+            return ai.forNode(node, log);
+        String key = key(node, ai);
+        String home = HOMES.get(key);
+        if (home!=null)
+            return new AntInstallation(ai.getName(), home, ai.getProperties().toList());
+        AntInstallation r = ai.forNode(node, log);
+        HOMES.put(key, r.getHome());
+        return r;
+    }
+
+    /**
+     * Returns the cached executable without any remote call, or null if it isn't known yet.
+     */
+    public static String getCachedExecutable(AntInstallation ai, Node node) {
+        return node==null ? null : EXECUTABLES.get(key(node, ai));
+    }
+
+    /**
+     * Records the executable found by other means, such as a pre-flight check on the node.
+     */
+    public static void putExecutable(AntInstallation ai, Node node, String exe) {
+        if (node!=null && exe!=null)
+            EXECUTABLES.put(key(node, ai), exe);
+    }
+
+    private static String key(Node node, AntInstallation ai) {
+        return node.getNodeName()+'\0'+ai.getName()+'\0'+ai.getHome();
+    }
+
+    private static String key(Computer c) {
+        return c.getName()+'\0';
+    }
+
+    /**
+     * Forgets everything, for example because the Ant installations have been reconfigured.
+     */
+    public static void invalidateAll() {
+        HOMES.clear();
+        EXECUTABLES.clear();
+    }
+
+    /**
+     * Forgets what's known about the given node.
+     */
+    public static void invalidate(Computer c) {
+        String prefix = key(c);
+        invalidate(HOMES, prefix);
+        invalidate(EXECUTABLES, prefix);
+    }
+
+    private static void invalidate(Map<String,String> cache, String prefix) {
+        for (String key : cache.keySet())
+            if (key.startsWith(prefix))
+                cache.remove(key);
+    }
+
+    @Extension
+    public static final class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            invalidate(c);
+        }
+
+        @Override
+        public void onOffline(Computer c) {
+            invalidate(c);
+        }
+
+        @Override
+        public void onConfigurationChange() {
+            // tool locations of the nodes may have changed
+            invalidateAll();
+        }
+    }
+}
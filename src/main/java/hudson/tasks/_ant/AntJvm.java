@@ -0,0 +1,169 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The version of the JVM that runs Ant on a node, so that it's only given options it understands.
+ *
+ * <p>
+ * This is read from the <tt>release</tt> file of the JDK, which is much cheaper than running <tt>java -version</tt>.
+ * The JDK is the one <tt>JAVA_HOME</tt> points to, or else the one whose <tt>java</tt> is first on the <tt>PATH</tt>,
+ * which is what the launcher scripts of Ant pick as well.
+ */
+public final class AntJvm implements Serializable {
+    private final String version;
+    private final int major, update;
+    /**
+     * True for the commercial builds of Oracle, which need some features unlocked.
+     */
+    private final boolean commercial;
+
+    AntJvm(String version, int major, int update, boolean commercial) {
+        this.version = version;
+        this.major = major;
+        this.update = update;
+        this.commercial = commercial;
+    }
+
+    /**
+     * The version as the JVM reports it, such as "1.8.0_202" or "17.0.2".
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * The major version, such as 8 for "1.8.0_202" and 17 for "17.0.2".
+     */
+    public int getMajor() {
+        return major;
+    }
+
+    /**
+     * The update of Java 8 and earlier, such as 202 for "1.8.0_202", or else 0.
+     */
+    public int getUpdate() {
+        return update;
+    }
+
+    public boolean isCommercial() {
+        return commercial;
+    }
+
+    /**
+     * Finds the JVM on the node this is called on, or returns null if it can't tell.
+     *
+     * @param javaHome
+     *      <tt>JAVA_HOME</tt> of the build, or null.
+     * @param path
+     *      <tt>PATH</tt> of the build, or null.
+     */
+    public static AntJvm find(String javaHome, String path) {
+        File home = null;
+        if (javaHome!=null && javaHome.length()>0) {
+            home = new File(javaHome);
+        } else if (path!=null) {
+            for (String dir : path.split(Pattern.quote(File.pathSeparator))) {
+                File java = new File(dir, File.separatorChar=='\\' ? "java.exe" : "java");
+                if (dir.length()>0 && java.isFile()) {
+                    try {
+                        // typically /usr/bin/java -> /etc/alternatives/java -> the JDK
+                        home = java.getCanonicalFile().getParentFile().getParentFile();
+                    } catch (IOException e) {
+                        return null;
+                    }
+                    break;
+                }
+            }
+        }
+        if (home==null)
+            return null;
+
+        // the JRE of Java 8 and earlier is a directory in the JDK
+        File release = new File(home, "release");
+        if (!release.isFile() && home.getName().equals("jre"))
+            release = new File(home.getParentFile(), "release");
+        try {
+            Properties props = new Properties();
+            InputStream in = new FileInputStream(release);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            return parse(unquote(props.getProperty("JAVA_VERSION")), unquote(props.getProperty("BUILD_TYPE")));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses the version of a JVM, or returns null if it's not one.
+     *
+     * @param buildType
+     *      <tt>BUILD_TYPE</tt> from the <tt>release</tt> file, or null.
+     */
+    static AntJvm parse(String version, String buildType) {
+        if (version==null)
+            return null;
+        Matcher m = VERSION.matcher(version);
+        if (!m.lookingAt())
+            return null;
+        int major = Integer.parseInt(m.group(1));
+        int update = 0;
+        if (major==1 && m.group(2)!=null) {
+            major = Integer.parseInt(m.group(2));
+            if (m.group(3)!=null)
+                update = Integer.parseInt(m.group(3));
+        }
+        return new AntJvm(version, major, update, "commercial".equals(buildType));
+    }
+
+    private static String unquote(String s) {
+        if (s!=null && s.length()>=2 && s.startsWith("\"") && s.endsWith("\""))
+            return s.substring(1, s.length()-1);
+        return s;
+    }
+
+    @Override
+    public String toString() {
+        return version;
+    }
+
+    /**
+     * "1.8.0_202", "11.0.2", "17", "18-ea"...
+     */
+    private static final Pattern VERSION = Pattern.compile("(\\d+)(?:\\.(\\d+))?(?:\\.\\d+)?(?:_(\\d+))?");
+
+    private static final long serialVersionUID = 1L;
+}
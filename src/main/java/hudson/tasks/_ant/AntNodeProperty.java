@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Limits how many Ant processes a node runs at the same time, and how much memory they may declare,
+ * as enforced by {@link AntAdmission}.
+ *
+ * <p>
+ * Set on a node, it applies to that node. Set as a global node property, it applies to the nodes
+ * that don't have their own.
+ */
+public class AntNodeProperty extends NodeProperty<Node> {
+    /**
+     * Ant processes that may run at the same time. 0 for no limit.
+     */
+    private final int maxProcesses;
+
+    /**
+     * Total MB of heap the Ant processes running at the same time may declare. 0 for no limit.
+     */
+    private final int maxMemory;
+
+    @DataBoundConstructor
+    public AntNodeProperty(int maxProcesses, int maxMemory) {
+        this.maxProcesses = Math.max(0, maxProcesses);
+        this.maxMemory = Math.max(0, maxMemory);
+    }
+
+    public int getMaxProcesses() {
+        return maxProcesses;
+    }
+
+    public int getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Gets the limits that apply to the given node, or null if there are none.
+     */
+    public static AntNodeProperty of(Node node) {
+        AntNodeProperty p = node.getNodeProperties().get(AntNodeProperty.class);
+        if (p==null)
+            p = Jenkins.getInstance().getGlobalNodeProperties().get(AntNodeProperty.class);
+        return p;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends NodePropertyDescriptor {
+        @Override
+        public String getDisplayName() {
+            return Messages.AntNodeProperty_DisplayName();
+        }
+    }
+}
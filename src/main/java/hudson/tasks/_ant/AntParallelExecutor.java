@@ -0,0 +1,253 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Executor;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Target;
+import org.apache.tools.ant.helper.SingleCheckExecutor;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Ant {@link Executor} that runs targets concurrently as soon as all the targets they depend on are done.
+ *
+ * <p>
+ * Like {@link SingleCheckExecutor}, every target runs at most once even if several requested
+ * targets depend on it. The requested targets still run one after the other, each with whatever it depends on
+ * that hasn't run yet, but within that, the order Ant would have picked between targets that don't depend on
+ * each other is not kept, which is the whole point.
+ *
+ * <p>
+ * This class is loaded by Ant through <tt>-lib</tt> and <tt>-Dant.executor.class</tt>,
+ * so it must not depend on anything but Ant and the JDK. The number of threads is set with the {@link #THREADS}
+ * property, which {@link ParallelTargets} sets to the share of the node's processors of one executor,
+ * and otherwise defaults to the number of processors available to the JVM.
+ * While targets run concurrently, {@link AntTaggingLogger} tags their output with the target name.
+ */
+public class AntParallelExecutor implements Executor {
+    public AntParallelExecutor() {
+    }
+
+    public void executeTargets(Project project, String[] targetNames) throws BuildException {
+        final int threads = getThreads(project);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new Runners());
+        boolean keepGoing = project.isKeepGoingMode();
+        BuildException failure = null;
+        // targets that ran, failed, or were given up on, in earlier phases
+        Set<String> done = new HashSet<String>();
+        // and those of them that ran successfully
+        Set<String> completed = new HashSet<String>();
+        try {
+            // like Ant, one requested target after the other: "clean dist" must not clean while dist builds
+            for (String name : targetNames) {
+                @SuppressWarnings("unchecked")
+                Vector<Target> sorted = project.topoSort(name, project.getTargets(), false);
+                List<Target> phase = new ArrayList<Target>();
+                for (Target t : sorted)
+                    if (done.add(t.getName()))
+                        phase.add(t);
+                BuildException f = executePhase(phase, completed, pool, threads>1, keepGoing);
+                if (f!=null && failure==null)
+                    failure = f;
+                if (failure!=null && !keepGoing)
+                    break;
+            }
+        } catch (InterruptedException e) {
+            throw new BuildException("Interrupted", e);
+        } finally {
+            pool.shutdown();
+        }
+        if (failure!=null)
+            throw failure;
+    }
+
+    /**
+     * Runs the given targets, in dependency order, each as soon as the targets it depends on among them are done.
+     * Those that depend on targets of earlier phases that didn't complete are skipped.
+     *
+     * @param completed
+     *      The targets that ran successfully so far. Those that run successfully now are added to it.
+     * @return
+     *      The first failure, or null if all went well.
+     */
+    private static BuildException executePhase(List<Target> sorted, Set<String> completed, ExecutorService pool,
+                                               boolean tag, boolean keepGoing) throws InterruptedException {
+        // only the dependencies among the targets we are going to run matter
+        Map<String,Target> targets = new LinkedHashMap<String,Target>();
+        for (Target t : sorted)
+            targets.put(t.getName(), t);
+        Map<String,Integer> waitingFor = new HashMap<String,Integer>();
+        Map<String,List<String>> dependents = new HashMap<String,List<String>>();
+        for (Target t : sorted) {
+            int n = 0;
+            for (Enumeration<?> e = t.getDependencies(); e.hasMoreElements();) {
+                String dep = (String)e.nextElement();
+                if (!targets.containsKey(dep)) {
+                    if (!completed.contains(dep))
+                        n = Integer.MIN_VALUE;  // never ready
+                    continue;
+                }
+                n++;
+                List<String> l = dependents.get(dep);
+                if (l==null)
+                    dependents.put(dep, l = new ArrayList<String>());
+                l.add(t.getName());
+            }
+            waitingFor.put(t.getName(), n);
+        }
+
+        CompletionService<String> done = new ExecutorCompletionService<String>(pool);
+        BuildException failure = null;
+        int running = 0;
+        for (Target t : sorted) {
+            if (waitingFor.get(t.getName())==0) {
+                done.submit(new Run(t, tag));
+                running++;
+            }
+        }
+
+        try {
+            while (running>0) {
+                Future<String> f = done.take();
+                running--;
+                String name;
+                try {
+                    name = f.get();
+                } catch (ExecutionException e) {
+                    // the targets that depend on the failed one will never be ready
+                    Throwable cause = e.getCause();
+                    if (failure==null)
+                        failure = cause instanceof BuildException ? (BuildException)cause : new BuildException(cause);
+                    if (!keepGoing)
+                        break;
+                    continue;
+                }
+                completed.add(name);
+
+                List<String> l = dependents.get(name);
+                if (l==null)
+                    continue;
+                for (String d : l) {
+                    int n = waitingFor.get(d)-1;
+                    waitingFor.put(d, n);
+                    if (n==0 && (failure==null || keepGoing)) {
+                        done.submit(new Run(targets.get(d), tag));
+                        running++;
+                    }
+                }
+            }
+        } finally {
+            // wait for what's still running before reporting the failure
+            while (running-->0)
+                done.take();
+        }
+        return failure;
+    }
+
+    public Executor getSubProjectExecutor() {
+        return new SingleCheckExecutor();
+    }
+
+    private static int getThreads(Project project) {
+        String v = project.getProperty(THREADS);
+        if (v!=null) {
+            try {
+                return Math.max(1, Integer.parseInt(v.trim()));
+            } catch (NumberFormatException e) {
+                project.log("Ignoring "+THREADS+"="+v, Project.MSG_WARN);
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Runs one target.
+     */
+    private static final class Run implements java.util.concurrent.Callable<String> {
+        private final Target target;
+        private final boolean tag;
+
+        Run(Target target, boolean tag) {
+            this.target = target;
+            this.tag = tag;
+        }
+
+        public String call() {
+            if (tag)
+                CURRENT.set(target.getName());
+            try {
+                target.performTasks();
+                return target.getName();
+            } finally {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    private static final class Runners implements ThreadFactory {
+        private int n;
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Ant target runner #"+(++n));
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Classes that need to go to the Ant JVM.
+     */
+    static final Class<?>[] CLASSES = {AntParallelExecutor.class, Run.class, Runners.class, AntTaggingLogger.class};
+
+    /**
+     * Name of the target the current thread runs, or null if targets don't run concurrently.
+     */
+    static String getCurrentTarget() {
+        return CURRENT.get();
+    }
+
+    private static final ThreadLocal<String> CURRENT = new ThreadLocal<String>();
+
+    /**
+     * Ant property that sets the number of threads.
+     */
+    public static final String THREADS = "jenkins.ant.executor.threads";
+}
@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.EnvVars;
+import hudson.util.ProcessTree;
+import hudson.util.ProcessTree.OSProcess;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Finds the processes of an Ant build step on the node that runs it:
+ * the Ant JVM, and whatever it forks.
+ *
+ * <p>
+ * They are told apart from the other processes of the node by an environment variable
+ * that they inherit, or else by descending from a process that has it.
+ */
+final class AntProcesses {
+    private AntProcesses() {}
+
+    /**
+     * Adds the variable that identifies the processes to the environment Ant is about to be launched with,
+     * unless it's already there.
+     *
+     * @return
+     *      The value to pass to {@link #find(String)}.
+     */
+    static String mark(EnvVars env) {
+        String cookie = env.get(COOKIE_ENV);
+        if (cookie==null)
+            env.put(COOKIE_ENV, cookie = UUID.randomUUID().toString());
+        return cookie;
+    }
+
+    /**
+     * Lists the processes on this node that belong to the build step, parents before their children.
+     */
+    static List<OSProcess> find(String cookie) {
+        Map<String,String> env = Collections.singletonMap(COOKIE_ENV, cookie);
+        List<OSProcess> r = new ArrayList<OSProcess>();
+        Set<Integer> pids = new HashSet<Integer>();
+        List<OSProcess> others = new ArrayList<OSProcess>();
+        for (OSProcess p : ProcessTree.get()) {
+            if (p.hasMatchingEnvVars(env)) {
+                r.add(p);
+                pids.add(p.getPid());
+            } else {
+                others.add(p);
+            }
+        }
+        // children that were started with a new environment, like <java newenvironment="true">
+        boolean found = !r.isEmpty();
+        while (found) {
+            found = false;
+            for (int i=0; i<others.size(); i++) {
+                OSProcess p = others.get(i);
+                OSProcess parent = p.getParent();
+                if (parent!=null && pids.contains(parent.getPid())) {
+                    r.add(p);
+                    pids.add(p.getPid());
+                    others.remove(i--);
+                    found = true;
+                }
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Describes a process by its executable and, for a JVM, its main class or jar.
+     *
+     * <p>
+     * The other arguments are left out, since they include the sensitive build variables
+     * that Ant gets as <tt>-Dname=value</tt>, and whatever Ant passes on to the programs it runs.
+     */
+    static String describe(List<String> args) {
+        if (args.isEmpty())
+            return "";
+        String exe = getName(args.get(0));
+        if (!isJava(exe))
+            return exe;
+        for (int i=1; i<args.size(); i++) {
+            String a = args.get(i);
+            if (a.equals("-jar") || a.equals("-m") || a.equals("--module"))
+                return i+1<args.size() ? exe+" "+a+" "+getName(args.get(i+1)) : exe;
+            if (OPTIONS_WITH_VALUE.contains(a))
+                i++;
+            else if (!a.startsWith("-"))
+                return exe+" "+a;
+        }
+        return exe;
+    }
+
+    static boolean isJava(String exe) {
+        String name = getName(exe);
+        return name.equals("java") || name.equals("java.exe") || name.equals("javaw.exe");
+    }
+
+    /**
+     * The last part of a path, whatever the platform of the node.
+     */
+    private static String getName(String path) {
+        return path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'))+1);
+    }
+
+    /**
+     * Options of the <tt>java</tt> launcher whose value is the next argument.
+     */
+    private static final Set<String> OPTIONS_WITH_VALUE = new HashSet<String>(Arrays.asList(
+            "-cp", "-classpath", "--class-path", "-p", "--module-path", "--upgrade-module-path",
+            "--add-modules", "--add-reads", "--add-exports", "--add-opens", "--limit-modules", "--patch-module"));
+
+    /**
+     * Environment variable that marks the processes of a build step.
+     */
+    static final String COOKIE_ENV = "ANT_BUILD_STEP_COOKIE";
+}
@@ -0,0 +1,154 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.DemuxInputStream;
+import org.apache.tools.ant.DemuxOutputStream;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Runs Ant targets inside the current JVM, the way <tt>bin/ant</tt> would.
+ *
+ * <p>
+ * This class is loaded in an isolated class loader together with the jars of
+ * an Ant installation, so it must not depend on anything but Ant and the JDK,
+ * and is called reflectively through {@link #run(File, File, List, Map, PrintStream, boolean)}.
+ *
+ * <p>
+ * Interrupting the thread that runs the build stops it at the next target or task.
+ */
+public class AntProjectRunner {
+    /**
+     * Runs the targets and returns the exit code Ant would have returned.
+     *
+     * @param antHome
+     *      The Ant installation whose jars this class is loaded from.
+     * @param targets
+     *      Targets to run, or empty to run the default target.
+     * @param properties
+     *      User properties, just like <tt>-D</tt> on the command line.
+     * @param out
+     *      Receives the output of the build.
+     * @param redirectSystemStreams
+     *      If true, {@link System#out} and {@link System#err} are also captured into the build output
+     *      while the build runs. Only safe when nothing else runs in this JVM.
+     */
+    public static int run(File antHome, File buildFile, List<String> targets, Map<String,String> properties,
+                          PrintStream out, boolean redirectSystemStreams) {
+        return run(antHome, buildFile, targets, properties, out, redirectSystemStreams, null);
+    }
+
+    /**
+     * Same as {@link #run(File, File, List, Map, PrintStream, boolean)}, but loads the tasks and types
+     * through the given class loader rather than the one of Ant, or the latter if null.
+     */
+    public static int run(File antHome, File buildFile, List<String> targets, Map<String,String> properties,
+                          PrintStream out, boolean redirectSystemStreams, ClassLoader coreLoader) {
+        Project project = new Project();
+        if (coreLoader!=null)
+            project.setCoreLoader(coreLoader);
+
+        DefaultLogger logger = new DefaultLogger();
+        logger.setOutputPrintStream(out);
+        logger.setErrorPrintStream(out);
+        logger.setMessageOutputLevel(Project.MSG_INFO);
+        project.addBuildListener(logger);
+        project.addBuildListener(new Interruption());
+
+        PrintStream sysOut = System.out, sysErr = System.err;
+        InputStream sysIn = System.in;
+        if (redirectSystemStreams) {
+            System.setOut(new PrintStream(new DemuxOutputStream(project, false)));
+            System.setErr(new PrintStream(new DemuxOutputStream(project, true)));
+            System.setIn(new DemuxInputStream(project));
+        }
+
+        Throwable error = null;
+        try {
+            out.println("Buildfile: "+buildFile);
+            project.fireBuildStarted();
+            project.init();
+
+            project.setUserProperty("ant.home", antHome.getPath());
+            project.setUserProperty("ant.file", buildFile.getAbsolutePath());
+            for (Map.Entry<String,String> e : properties.entrySet())
+                project.setUserProperty(e.getKey(), e.getValue());
+
+            ProjectHelper.configureProject(project, buildFile);
+
+            Vector<String> v = new Vector<String>(targets);
+            if (v.isEmpty() && project.getDefaultTarget()!=null)
+                v.add(project.getDefaultTarget());
+            project.executeTargets(v);
+        } catch (RuntimeException e) {
+            error = e;
+        } catch (Error e) {
+            error = e;
+        } finally {
+            if (redirectSystemStreams) {
+                System.setOut(sysOut);
+                System.setErr(sysErr);
+                System.setIn(sysIn);
+            }
+            project.fireBuildFinished(error);
+        }
+        return error==null ? 0 : 1;
+    }
+
+    /**
+     * Fails the build when the thread it runs on has been interrupted, since Ant itself doesn't check.
+     */
+    private static final class Interruption implements BuildListener {
+        private void check() {
+            if (Thread.currentThread().isInterrupted())
+                throw new BuildException("Aborted");
+        }
+
+        public void targetStarted(BuildEvent event) {
+            check();
+        }
+
+        public void taskStarted(BuildEvent event) {
+            check();
+        }
+
+        public void buildStarted(BuildEvent event) {}
+        public void buildFinished(BuildEvent event) {}
+        public void targetFinished(BuildEvent event) {}
+        public void taskFinished(BuildEvent event) {}
+        public void messageLogged(BuildEvent event) {}
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.util.Graph;
+import jenkins.model.RunAction2;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
+import org.jfree.data.xy.XYSeries;
+import org.jfree.data.xy.XYSeriesCollection;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import javax.servlet.http.HttpServletResponse;
+import java.awt.Color;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CPU time, memory, I/O and threads of the processes of the Ant build steps of a build,
+ * as sampled by {@link AntResourceSampler}.
+ *
+ * <p>
+ * One instance covers all the Ant build steps of a build, each with its own {@link Series}.
+ */
+@ExportedBean
+public class AntResourceAction implements RunAction2 {
+    private transient Run<?,?> owner;
+
+    private final List<Series> series = new ArrayList<Series>();
+
+    /**
+     * Gets the action of the build, adding it if it's not there yet.
+     */
+    public static AntResourceAction of(AbstractBuild<?,?> build) {
+        synchronized (build) {
+            AntResourceAction a = build.getAction(AntResourceAction.class);
+            if (a==null)
+                build.addAction(a = new AntResourceAction());
+            return a;
+        }
+    }
+
+    public void onAttached(Run<?,?> r) {
+        owner = r;
+    }
+
+    public void onLoad(Run<?,?> r) {
+        owner = r;
+    }
+
+    public Run<?,?> getOwner() {
+        return owner;
+    }
+
+    public String getIconFileName() {
+        return "monitor.png";
+    }
+
+    public String getDisplayName() {
+        return Messages.AntResourceAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return "antResources";
+    }
+
+    public synchronized void add(Series s) {
+        series.add(s);
+    }
+
+    /**
+     * The samples of each build step, in the order they ran.
+     */
+    @Exported(inline=true)
+    public synchronized List<Series> getSeries() {
+        return new ArrayList<Series>(series);
+    }
+
+    /**
+     * CPU time used by all the build steps, in milliseconds.
+     */
+    @Exported
+    public long getCpuTime() {
+        long r = 0;
+        for (Series s : getSeries())
+            r += s.getCpuTime();
+        return r;
+    }
+
+    /**
+     * Largest amount of memory any of the build steps used at a time, in KB.
+     */
+    @Exported
+    public long getPeakRss() {
+        long r = 0;
+        for (Series s : getSeries())
+            r = Math.max(r, s.getPeakRss());
+        return r;
+    }
+
+    public String getCpuTimeString() {
+        return Util.getTimeSpanString(getCpuTime());
+    }
+
+    public String getPeakRssString() {
+        return formatSize(getPeakRss()*1024);
+    }
+
+    /**
+     * Draws the memory and CPU usage of one build step over time.
+     */
+    public void doGraph(StaplerRequest req, StaplerResponse rsp, @QueryParameter int step) throws IOException {
+        List<Series> all = getSeries();
+        if (step<0 || step>=all.size()) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        final Series s = all.get(step);
+        new Graph(owner.getTimeInMillis(), 600, 300) {
+            @Override
+            protected JFreeChart createGraph() {
+                return s.createChart();
+            }
+        }.doPng(req, rsp);
+    }
+
+    /**
+     * Samples of one build step, taken at a fixed interval.
+     *
+     * <p>
+     * CPU time and I/O are cumulative, and also include the processes that have already exited.
+     * Memory and threads are the totals of the processes that were running at the time.
+     * When there are too many samples, every other one is dropped and the interval doubles,
+     * so that long builds take no more room than short ones.
+     */
+    @ExportedBean(defaultVisibility=2)
+    public static final class Series implements Serializable {
+        private String label;
+        private long interval;
+        private int size;
+        private long[] times = new long[16];
+        private long[] cpu = new long[16];
+        private long[] rss = new long[16];
+        private int[] threads = new int[16];
+        private long[] read = new long[16];
+        private long[] write = new long[16];
+        private final List<ProcessUsage> processes = new ArrayList<ProcessUsage>();
+        /**
+         * Only every {@code stride}th call to {@link #add} is kept.
+         */
+        private transient int stride = 1, calls;
+
+        Series(long interval) {
+            this.interval = interval;
+        }
+
+        void setLabel(String label) {
+            this.label = label;
+        }
+
+        void addProcess(ProcessUsage u) {
+            processes.add(u);
+        }
+
+        /**
+         * Adds a sample.
+         *
+         * @param time
+         *      Milliseconds since the build step started.
+         */
+        void add(long time, long cpu, long rss, int threads, long read, long write) {
+            if (calls++%stride!=0)
+                return;
+            if (size==MAX_SAMPLES) {
+                for (int i=0; i<size/2; i++) {
+                    times[i] = times[i*2];
+                    this.cpu[i] = this.cpu[i*2];
+                    this.rss[i] = this.rss[i*2];
+                    this.threads[i] = this.threads[i*2];
+                    this.read[i] = this.read[i*2];
+                    this.write[i] = this.write[i*2];
+                }
+                size /= 2;
+                stride *= 2;
+                interval *= 2;
+            }
+            if (size==times.length) {
+                int n = Math.min(size*2, MAX_SAMPLES);
+                times = copy(times, n);
+                this.cpu = copy(this.cpu, n);
+                this.rss = copy(this.rss, n);
+                this.threads = copy(this.threads, n);
+                this.read = copy(this.read, n);
+                this.write = copy(this.write, n);
+            }
+            times[size] = time;
+            this.cpu[size] = cpu;
+            this.rss[size] = rss;
+            this.threads[size] = threads;
+            this.read[size] = read;
+            this.write[size] = write;
+            size++;
+        }
+
+        private static long[] copy(long[] a, int n) {
+            long[] r = new long[n];
+            System.arraycopy(a, 0, r, 0, Math.min(a.length, n));
+            return r;
+        }
+
+        private static int[] copy(int[] a, int n) {
+            int[] r = new int[n];
+            System.arraycopy(a, 0, r, 0, Math.min(a.length, n));
+            return r;
+        }
+
+        /**
+         * Drops the unused part of the arrays, once the sampling is over.
+         */
+        void trim() {
+            times = copy(times, size);
+            cpu = copy(cpu, size);
+            rss = copy(rss, size);
+            threads = copy(threads, size);
+            read = copy(read, size);
+            write = copy(write, size);
+        }
+
+        @Exported
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * Milliseconds between two samples.
+         */
+        @Exported
+        public long getInterval() {
+            return interval;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        @Exported
+        public long getCpuTime() {
+            return size==0 ? 0 : cpu[size-1];
+        }
+
+        /**
+         * Largest total resident set size of the processes, in KB.
+         * A single process may have had a higher peak between two samples.
+         */
+        @Exported
+        public long getPeakRss() {
+            long r = 0;
+            for (int i=0; i<size; i++)
+                r = Math.max(r, rss[i]);
+            for (ProcessUsage u : processes)
+                r = Math.max(r, u.getPeakRss());
+            return r;
+        }
+
+        @Exported
+        public int getMaxThreads() {
+            int r = 0;
+            for (int i=0; i<size; i++)
+                r = Math.max(r, threads[i]);
+            return r;
+        }
+
+        @Exported
+        public long getReadBytes() {
+            return size==0 ? 0 : read[size-1];
+        }
+
+        @Exported
+        public long getWriteBytes() {
+            return size==0 ? 0 : write[size-1];
+        }
+
+        /**
+         * Every process seen during the build step, in the order they started.
+         */
+        @Exported(inline=true)
+        public List<ProcessUsage> getProcesses() {
+            return processes;
+        }
+
+        public String getCpuTimeString() {
+            return Util.getTimeSpanString(getCpuTime());
+        }
+
+        public String getPeakRssString() {
+            return formatSize(getPeakRss()*1024);
+        }
+
+        public String getReadBytesString() {
+            return formatSize(getReadBytes());
+        }
+
+        public String getWriteBytesString() {
+            return formatSize(getWriteBytes());
+        }
+
+        JFreeChart createChart() {
+            XYSeries mem = new XYSeries(Messages.AntResourceAction_Memory());
+            XYSeries load = new XYSeries(Messages.AntResourceAction_Cpu());
+            for (int i=0; i<size; i++) {
+                double t = times[i]/1000.0;
+                mem.add(t, rss[i]/1024.0);
+                if (i>0 && times[i]>times[i-1])
+                    // 100% is one core
+                    load.add(t, (cpu[i]-cpu[i-1])*100.0/(times[i]-times[i-1]));
+            }
+
+            JFreeChart chart = ChartFactory.createXYLineChart(null, Messages.AntResourceAction_Seconds(),
+                    Messages.AntResourceAction_Memory(), new XYSeriesCollection(mem), PlotOrientation.VERTICAL, true, true, false);
+            chart.setBackgroundPaint(Color.WHITE);
+            XYPlot plot = chart.getXYPlot();
+            plot.setBackgroundPaint(Color.WHITE);
+            plot.setRangeGridlinePaint(Color.LIGHT_GRAY);
+            plot.setDomainGridlinePaint(Color.LIGHT_GRAY);
+
+            plot.setDataset(1, new XYSeriesCollection(load));
+            plot.setRangeAxis(1, new NumberAxis(Messages.AntResourceAction_Cpu()));
+            plot.mapDatasetToRangeAxis(1, 1);
+            XYLineAndShapeRenderer r = new XYLineAndShapeRenderer(true, false);
+            r.setSeriesPaint(0, Color.BLUE);
+            plot.setRenderer(1, r);
+            return chart;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * What one process used.
+     */
+    @ExportedBean(defaultVisibility=3)
+    public static final class ProcessUsage implements Serializable {
+        private final int pid;
+        private final String command;
+        private long cpuTime, peakRss, readBytes, writeBytes;
+        private int maxThreads;
+
+        ProcessUsage(int pid, String command) {
+            this.pid = pid;
+            this.command = command;
+        }
+
+        void update(long cpuTime, long peakRss, long readBytes, long writeBytes, int threads) {
+            this.cpuTime = Math.max(this.cpuTime, cpuTime);
+            this.peakRss = Math.max(this.peakRss, peakRss);
+            this.readBytes = Math.max(this.readBytes, readBytes);
+            this.writeBytes = Math.max(this.writeBytes, writeBytes);
+            this.maxThreads = Math.max(this.maxThreads, threads);
+        }
+
+        @Exported
+        public int getPid() {
+            return pid;
+        }
+
+        /**
+         * The executable and, for a JVM, its main class. Not the other arguments, which may hold secrets.
+         * Not exported either, just in case.
+         */
+        public String getCommand() {
+            return command;
+        }
+
+        /**
+         * User and system CPU time, in milliseconds.
+         */
+        @Exported
+        public long getCpuTime() {
+            return cpuTime;
+        }
+
+        /**
+         * Peak resident set size, in KB.
+         */
+        @Exported
+        public long getPeakRss() {
+            return peakRss;
+        }
+
+        @Exported
+        public long getReadBytes() {
+            return readBytes;
+        }
+
+        @Exported
+        public long getWriteBytes() {
+            return writeBytes;
+        }
+
+        @Exported
+        public int getMaxThreads() {
+            return maxThreads;
+        }
+
+        public String getCpuTimeString() {
+            return Util.getTimeSpanString(cpuTime);
+        }
+
+        public String getPeakRssString() {
+            return formatSize(peakRss*1024);
+        }
+
+        public String getReadBytesString() {
+            return formatSize(readBytes);
+        }
+
+        public String getWriteBytesString() {
+            return formatSize(writeBytes);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static String formatSize(long n) {
+        if (n<1024)
+            return n+" B";
+        if (n<1024*1024)
+            return String.format("%.1f KB", n/1024.0);
+        if (n<1024*1024*1024)
+            return String.format("%.1f MB", n/(1024.0*1024));
+        return String.format("%.1f GB", n/(1024.0*1024*1024));
+    }
+
+    /**
+     * Samples kept per build step, beyond which they are thinned out.
+     */
+    static final int MAX_SAMPLES = 512;
+}
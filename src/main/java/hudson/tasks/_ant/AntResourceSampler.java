@@ -0,0 +1,316 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks._ant.AntResourceAction.ProcessUsage;
+import hudson.tasks._ant.AntResourceAction.Series;
+import hudson.util.ProcessTree.OSProcess;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Samples the CPU time, memory, I/O and threads of the processes of an Ant build step
+ * (see {@link AntProcesses}) from <tt>/proc</tt>, on the node that runs them.
+ *
+ * <p>
+ * The samples are kept on the node until the build step is over, and then go to {@link AntResourceAction}.
+ * Nodes without <tt>/proc</tt> are skipped.
+ */
+public final class AntResourceSampler {
+    private final VirtualChannel channel;
+    private final String cookie;
+
+    private AntResourceSampler(VirtualChannel channel, String cookie) {
+        this.channel = channel;
+        this.cookie = cookie;
+    }
+
+    /**
+     * Starts sampling the processes Ant is about to be launched with the given environment,
+     * or returns null if sampling is disabled or not possible on this node.
+     */
+    public static AntResourceSampler start(Launcher launcher, EnvVars env) throws IOException, InterruptedException {
+        if (INTERVAL<=0)
+            return null;
+        String cookie = AntProcesses.mark(env);
+        VirtualChannel channel = launcher.getChannel();
+        if (!channel.call(new Start(cookie, INTERVAL)))
+            return null;
+        return new AntResourceSampler(channel, cookie);
+    }
+
+    /**
+     * Stops sampling, once Ant has exited.
+     *
+     * @param label
+     *      What to show the samples as.
+     */
+    public Series finish(String label) throws IOException, InterruptedException {
+        Series s = channel.call(new Stop(cookie));
+        if (s!=null)
+            s.setLabel(label);
+        return s;
+    }
+
+    private static final class Start implements Callable<Boolean,IOException> {
+        private final String cookie;
+        private final long interval;
+
+        Start(String cookie, long interval) {
+            this.cookie = cookie;
+            this.interval = interval;
+        }
+
+        public Boolean call() throws IOException {
+            if (!new File("/proc/self/stat").exists())
+                return false;
+            Sampler s = new Sampler(cookie, interval);
+            SAMPLERS.put(cookie, s);
+            getTimer().schedule(s, 0, interval);
+            return true;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Stop implements Callable<Series,IOException> {
+        private final String cookie;
+
+        Stop(String cookie) {
+            this.cookie = cookie;
+        }
+
+        public Series call() throws IOException {
+            Sampler s = SAMPLERS.remove(cookie);
+            if (s==null)
+                return null;
+            s.cancel();
+            synchronized (s) {
+                s.series.trim();
+                return s.series;
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Samples of one build step, taken on the node.
+     */
+    private static final class Sampler extends TimerTask {
+        private final String cookie;
+        private final long start = System.currentTimeMillis();
+        private final Series series;
+        /**
+         * Every process seen so far, including the ones that have exited, whose CPU time and I/O still count.
+         */
+        private final Map<Integer,ProcessUsage> processes = new LinkedHashMap<Integer,ProcessUsage>();
+
+        Sampler(String cookie, long interval) {
+            this.cookie = cookie;
+            this.series = new Series(interval);
+        }
+
+        @Override
+        public synchronized void run() {
+            try {
+                long rss = 0;
+                int threads = 0;
+                for (OSProcess p : AntProcesses.find(cookie)) {
+                    Stat s = Stat.read(p.getPid());
+                    if (s==null)
+                        continue;   // just exited
+                    ProcessUsage u = processes.get(p.getPid());
+                    if (u==null) {
+                        processes.put(p.getPid(), u = new ProcessUsage(p.getPid(), AntProcesses.describe(p.getArguments())));
+                        series.addProcess(u);
+                    }
+                    u.update(s.cpu, s.peakRss, s.readBytes, s.writeBytes, s.threads);
+                    rss += s.rss;
+                    threads += s.threads;
+                }
+                long cpu = 0, read = 0, write = 0;
+                for (ProcessUsage u : processes.values()) {
+                    cpu += u.getCpuTime();
+                    read += u.getReadBytes();
+                    write += u.getWriteBytes();
+                }
+                series.add(System.currentTimeMillis()-start, cpu, rss, threads, read, write);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to sample the processes of "+cookie, e);
+            }
+        }
+    }
+
+    /**
+     * What <tt>/proc</tt> says about a process at one point in time.
+     */
+    static final class Stat {
+        /**
+         * User and system CPU time in milliseconds.
+         */
+        long cpu;
+        /**
+         * Current and peak resident set size in KB.
+         */
+        long rss, peakRss;
+        long readBytes, writeBytes;
+        int threads;
+
+        /**
+         * Reads the stats of a process, or returns null if it's gone.
+         */
+        static Stat read(int pid) {
+            File dir = new File("/proc", String.valueOf(pid));
+            try {
+                Stat s = new Stat();
+                s.parseStat(readFirstLine(new File(dir,"stat")));
+                s.parseStatus(read(new File(dir,"status")));
+                try {
+                    s.parseIo(read(new File(dir,"io")));
+                } catch (IOException e) {
+                    // only readable by the owner of the process, and not everywhere
+                }
+                return s;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Parses <tt>/proc/[pid]/stat</tt>.
+         */
+        void parseStat(String line) throws IOException {
+            // the command in parentheses may contain anything, including spaces and parentheses
+            int p = line.lastIndexOf(')');
+            if (p<0)
+                throw new IOException("Unexpected format: "+line);
+            String[] fields = line.substring(p+1).trim().split(" +");
+            if (fields.length<13)
+                throw new IOException("Unexpected format: "+line);
+            // fields 14 and 15, utime and stime, in clock ticks
+            cpu = (Long.parseLong(fields[11])+Long.parseLong(fields[12]))*1000/CLOCK_TICKS;
+        }
+
+        /**
+         * Parses <tt>/proc/[pid]/status</tt>.
+         */
+        void parseStatus(Map<String,String> status) {
+            rss = kb(status.get("VmRSS"));
+            peakRss = Math.max(rss, kb(status.get("VmHWM")));
+            String t = status.get("Threads");
+            threads = t==null ? 0 : Integer.parseInt(t);
+        }
+
+        /**
+         * Parses <tt>/proc/[pid]/io</tt>.
+         */
+        void parseIo(Map<String,String> io) {
+            String r = io.get("read_bytes"), w = io.get("write_bytes");
+            readBytes = r==null ? 0 : Long.parseLong(r);
+            writeBytes = w==null ? 0 : Long.parseLong(w);
+        }
+
+        private static long kb(String v) {
+            if (v==null)
+                return 0;   // kernel threads, zombies
+            if (v.endsWith(" kB"))
+                v = v.substring(0,v.length()-3).trim();
+            return Long.parseLong(v);
+        }
+
+        private static String readFirstLine(File f) throws IOException {
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f),"US-ASCII"));
+            try {
+                String line = r.readLine();
+                if (line==null)
+                    throw new IOException("Empty "+f);
+                return line;
+            } finally {
+                r.close();
+            }
+        }
+
+        /**
+         * Reads a file of "key: value" lines.
+         */
+        private static Map<String,String> read(File f) throws IOException {
+            Map<String,String> r = new LinkedHashMap<String,String>();
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f),"US-ASCII"));
+            try {
+                String line;
+                while ((line=in.readLine())!=null) {
+                    int p = line.indexOf(':');
+                    if (p>0)
+                        r.put(line.substring(0,p), line.substring(p+1).trim());
+                }
+            } finally {
+                in.close();
+            }
+            return r;
+        }
+    }
+
+    private static synchronized Timer getTimer() {
+        if (timer==null)
+            // one thread samples all the build steps of the node
+            timer = new Timer("Ant resource sampler", true);
+        return timer;
+    }
+
+    private static Timer timer;
+
+    /**
+     * Build steps that are being sampled on this node, keyed by the value of {@link AntProcesses#COOKIE_ENV}.
+     */
+    private static final Map<String,Sampler> SAMPLERS = new ConcurrentHashMap<String,Sampler>();
+
+    private static final Logger LOGGER = Logger.getLogger(AntResourceSampler.class.getName());
+
+    /**
+     * Clock ticks per second, in which <tt>/proc</tt> reports CPU time.
+     * The kernel exposes 100 to user space on all the common architectures.
+     */
+    private static final long CLOCK_TICKS = 100;
+
+    /**
+     * Milliseconds between two samples. 0 or less to not sample.
+     */
+    public static long INTERVAL = Long.getLong(AntResourceSampler.class.getName()+".interval", 0)*1000;
+}
@@ -0,0 +1,308 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.AbstractBuild;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+/**
+ * Masks the values of the sensitive variables of a build in what Ant writes, as it goes to the log.
+ *
+ * <p>
+ * All the values are looked for at once with an Aho-Corasick automaton over the encoded bytes,
+ * so each byte of the output is only looked at a constant number of times no matter how many values
+ * there are. The automaton is built by the first Ant build step of the build and kept in memory for the others,
+ * as long as the values don't change and the build is around. Nothing is persisted.
+ *
+ * <p>
+ * Values are only found within a line, like everything else that processes the output of Ant.
+ */
+public class AntSecretMasker {
+    /**
+     * What the automaton was built from.
+     */
+    private Set<String> secrets;
+    private Charset charset;
+    private Automaton automaton;
+
+    /**
+     * Gets the masker for the given values of the build, building it if it's not there yet or the values have changed.
+     *
+     * @return
+     *      null if there is nothing to mask.
+     */
+    public static AntSecretMasker of(AbstractBuild<?,?> build, Collection<String> secrets, Charset charset) {
+        Set<String> s = new TreeSet<String>();
+        for (String v : secrets) {
+            if (v!=null && v.length()>0)
+                s.add(v);
+        }
+        if (s.isEmpty())
+            return null;
+        AntSecretMasker m;
+        synchronized (MASKERS) {
+            m = MASKERS.get(build);
+            if (m==null)
+                MASKERS.put(build, m = new AntSecretMasker());
+        }
+        m.update(s, charset);
+        return m;
+    }
+
+    private synchronized void update(Set<String> s, Charset cs) {
+        if (automaton!=null && s.equals(secrets) && cs.equals(charset))
+            return;
+        List<byte[]> patterns = new ArrayList<byte[]>();
+        for (String v : s)
+            patterns.add(v.getBytes(cs));
+        automaton = new Automaton(patterns);
+        secrets = s;
+        charset = cs;
+    }
+
+    /**
+     * Wraps the given stream so that the values are masked in what goes through it.
+     */
+    public synchronized LineTransformationOutputStream filter(OutputStream out) {
+        return new MaskingOutputStream(out, automaton);
+    }
+
+    /**
+     * Maskers of the builds that have run an Ant build step, which go away with the builds.
+     * Not kept as an action of the build, which would be persisted with it.
+     */
+    private static final Map<AbstractBuild<?,?>,AntSecretMasker> MASKERS = new WeakHashMap<AbstractBuild<?,?>,AntSecretMasker>();
+
+    /**
+     * Matches many byte strings at once.
+     *
+     * <p>
+     * States are numbered in breadth-first order, with 0 as the root. The root has a transition for every byte,
+     * the other states keep theirs sorted by byte in {@link #labels}, from {@link #first}.
+     */
+    static final class Automaton {
+        private final int[] root = new int[256];
+        private final int[] first;
+        private final byte[] labels;
+        private final int[] targets;
+        private final int[] fail;
+        /**
+         * Length of the longest value that ends in each state, or 0.
+         */
+        private final int[] match;
+
+        Automaton(Collection<byte[]> patterns) {
+            // the trie
+            List<Map<Byte,Integer>> children = new ArrayList<Map<Byte,Integer>>();
+            List<Integer> depth = new ArrayList<Integer>();
+            List<Boolean> terminal = new ArrayList<Boolean>();
+            children.add(new HashMap<Byte,Integer>());
+            depth.add(0);
+            terminal.add(false);
+            for (byte[] p : patterns) {
+                int s = 0;
+                for (byte c : p) {
+                    Integer t = children.get(s).get(c);
+                    if (t==null) {
+                        t = children.size();
+                        children.add(new HashMap<Byte,Integer>());
+                        depth.add(depth.get(s)+1);
+                        terminal.add(false);
+                        children.get(s).put(c, t);
+                    }
+                    s = t;
+                }
+                terminal.set(s, true);
+            }
+
+            // renumber breadth-first, so that the failure of a state is always computed before it
+            int n = children.size();
+            int[] order = new int[n];
+            int[] number = new int[n];
+            int edges = 0;
+            for (int head=0, tail=1; head<tail; head++) {
+                int s = order[head];
+                number[s] = head;
+                Byte[] keys = children.get(s).keySet().toArray(new Byte[0]);
+                Arrays.sort(keys, UNSIGNED);
+                for (Byte c : keys)
+                    order[tail++] = children.get(s).get(c);
+                edges += keys.length;
+            }
+
+            first = new int[n+1];
+            labels = new byte[edges];
+            targets = new int[edges];
+            fail = new int[n];
+            match = new int[n];
+            int e = 0;
+            for (int i=0; i<n; i++) {
+                int s = order[i];
+                first[i] = e;
+                Byte[] keys = children.get(s).keySet().toArray(new Byte[0]);
+                Arrays.sort(keys, UNSIGNED);
+                for (Byte c : keys) {
+                    labels[e] = c;
+                    targets[e++] = number[children.get(s).get(c)];
+                }
+                if (terminal.get(s))
+                    match[i] = depth.get(s);
+            }
+            first[n] = e;
+            for (int k=first[0]; k<first[1]; k++)
+                root[labels[k]&0xFF] = targets[k];
+
+            // failure links, and the longest value that ends in each state through them
+            for (int s=0; s<n; s++) {
+                for (int k=first[s]; k<first[s+1]; k++) {
+                    int t = targets[k];
+                    fail[t] = s==0 ? 0 : next(fail[s], labels[k]);
+                    match[t] = Math.max(match[t], match[fail[t]]);
+                }
+            }
+        }
+
+        /**
+         * The state after reading a byte in the given state.
+         */
+        int next(int s, byte c) {
+            while (s!=0) {
+                int t = transition(s, c);
+                if (t>=0)
+                    return t;
+                s = fail[s];
+            }
+            return root[c&0xFF];
+        }
+
+        private int transition(int s, byte c) {
+            int lo = first[s], hi = first[s+1]-1;
+            int u = c&0xFF;
+            while (lo<=hi) {
+                int mid = (lo+hi)>>>1;
+                int l = labels[mid]&0xFF;
+                if (l<u)
+                    lo = mid+1;
+                else if (l>u)
+                    hi = mid-1;
+                else
+                    return targets[mid];
+            }
+            return -1;
+        }
+
+        /**
+         * Writes the given bytes with each value in them replaced by {@link #MASK}.
+         * Overlapping and adjacent values are replaced as a whole.
+         */
+        void mask(byte[] b, int len, OutputStream out) throws IOException {
+            // ranges to mask, as pairs of start and end (exclusive)
+            int[] ranges = null;
+            int n = 0;
+            int s = 0;
+            for (int i=0; i<len; i++) {
+                s = next(s, b[i]);
+                int m = match[s];
+                if (m==0)
+                    continue;
+                int start = i+1-m, end = i+1;
+                // a longer value may end here and cover ranges found before
+                while (n>0 && ranges[2*n-1]>=start) {
+                    start = Math.min(start, ranges[2*n-2]);
+                    n--;
+                }
+                if (ranges==null)
+                    ranges = new int[8];
+                else if (2*n+2>ranges.length)
+                    ranges = Arrays.copyOf(ranges, ranges.length*2);
+                ranges[2*n] = start;
+                ranges[2*n+1] = end;
+                n++;
+            }
+
+            if (n==0) {
+                out.write(b, 0, len);
+                return;
+            }
+            int pos = 0;
+            for (int i=0; i<n; i++) {
+                out.write(b, pos, ranges[2*i]-pos);
+                out.write(MASK);
+                pos = ranges[2*i+1];
+            }
+            out.write(b, pos, len-pos);
+        }
+    }
+
+    static final class MaskingOutputStream extends LineTransformationOutputStream {
+        private final OutputStream out;
+        private final Automaton automaton;
+
+        MaskingOutputStream(OutputStream out, Automaton automaton) {
+            this.out = out;
+            this.automaton = automaton;
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            automaton.mask(b, len, out);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            out.close();
+        }
+    }
+
+    private static final Comparator<Byte> UNSIGNED = new Comparator<Byte>() {
+        public int compare(Byte a, Byte b) {
+            return (a&0xFF)-(b&0xFF);
+        }
+    };
+
+    /**
+     * What the values are replaced with, the same as Jenkins uses on the command line.
+     */
+    private static final byte[] MASK = {'*','*','*','*','*','*','*','*'};
+}
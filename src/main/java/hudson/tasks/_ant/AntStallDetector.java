@@ -0,0 +1,315 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Result;
+import hudson.remoting.Callable;
+import hudson.triggers.SafeTimerTask;
+import hudson.triggers.Trigger;
+import hudson.util.ProcessTree.OSProcess;
+import hudson.util.StreamCopyThread;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Notices when an Ant build step stops writing to the console, takes thread dumps of its JVMs,
+ * and optionally aborts the build. Both are off unless enabled with {@link #DUMP_AFTER} or {@link #ABORT_AFTER}.
+ *
+ * <p>
+ * The JVMs of the build step, that is Ant and whatever it forks, are found by {@link AntProcesses}.
+ * The thread dumps are taken with the <tt>jcmd</tt> or <tt>jstack</tt> of the JDK they run on,
+ * and kept with the build by {@link AntThreadDumpAction}. What this reports goes through the
+ * {@link AntConsoleAnnotator} of the build step, in between the lines of Ant, which keeps the target index right.
+ */
+public final class AntStallDetector extends SafeTimerTask {
+    private final AbstractBuild<?,?> build;
+    private final Launcher launcher;
+    private final AntConsoleAnnotator aca;
+    private final Executor executor;
+    private final String cookie;
+    /**
+     * When Ant was launched, which may be long after the annotator was created.
+     */
+    private final long started = System.currentTimeMillis();
+
+    /**
+     * {@link AntConsoleAnnotator#getLastOutput()} at the time of the last thread dump,
+     * so that each stall is only dumped once.
+     */
+    private volatile long dumped;
+    /**
+     * True while a thread dump is being taken.
+     */
+    private boolean busy;
+    private volatile boolean finished;
+
+    private AntStallDetector(AbstractBuild<?,?> build, Launcher launcher, AntConsoleAnnotator aca, String cookie) {
+        this.build = build;
+        this.launcher = launcher;
+        this.aca = aca;
+        this.executor = Executor.currentExecutor();
+        this.cookie = cookie;
+    }
+
+    /**
+     * Starts watching the output that goes through the given annotator,
+     * or returns null if neither thread dumps nor aborting are enabled.
+     *
+     * @param env
+     *      The environment Ant is about to be launched with. The variable that identifies its JVMs is added to it.
+     */
+    public static AntStallDetector start(AbstractBuild<?,?> build, Launcher launcher, AntConsoleAnnotator aca, EnvVars env) {
+        if (DUMP_AFTER<=0 && ABORT_AFTER<=0)
+            return null;
+        AntStallDetector d = new AntStallDetector(build, launcher, aca, AntProcesses.mark(env));
+        Trigger.timer.schedule(d, CHECK_INTERVAL, CHECK_INTERVAL);
+        return d;
+    }
+
+    /**
+     * Called once Ant has exited.
+     */
+    public void finish() {
+        finished = true;
+        cancel();
+    }
+
+    @Override
+    protected void doRun() throws Exception {
+        final long last = Math.max(aca.getLastOutput(), started);
+        final long idle = System.currentTimeMillis()-last;
+        final boolean dump = DUMP_AFTER>0 && idle>=DUMP_AFTER;
+        final boolean abort = ABORT_AFTER>0 && idle>=ABORT_AFTER && executor!=null;
+        synchronized (this) {
+            if (finished || busy || !abort && (!dump || dumped==last))
+                return;
+            busy = true;
+        }
+        // running the JDK tools takes a while, which neither the timer nor the shared pool that drains the output
+        // of the builds should wait for
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                try {
+                    if (dump && dumped!=last) {
+                        dumped = last;
+                        dump(TimeUnit.MILLISECONDS.toMinutes(idle));
+                    }
+                    if (abort && !finished) {
+                        finished = true;
+                        cancel();
+                        try {
+                            aca.println(Messages.AntStallDetector_Aborting(TimeUnit.MILLISECONDS.toMinutes(idle)));
+                        } finally {
+                            executor.interrupt(Result.ABORTED);
+                        }
+                    }
+                } catch (IOException e) {
+                    StringWriter w = new StringWriter();
+                    PrintWriter pw = new PrintWriter(w);
+                    pw.println(Messages.AntStallDetector_DumpFailed());
+                    e.printStackTrace(pw);
+                    pw.close();
+                    try {
+                        aca.println(trimEOL(w.toString()));
+                    } catch (IOException x) {
+                        LOGGER.log(Level.WARNING, "Failed to take thread dumps of "+build.getFullDisplayName(), e);
+                    }
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.FINE, "Interrupted while taking thread dumps of "+build.getFullDisplayName(), e);
+                } finally {
+                    synchronized (AntStallDetector.this) {
+                        busy = false;
+                    }
+                }
+            }
+        });
+    }
+
+    private static String trimEOL(String s) {
+        int len = s.length();
+        while (len>0 && (s.charAt(len-1)=='\r' || s.charAt(len-1)=='\n'))
+            len--;
+        return s.substring(0, len);
+    }
+
+    private void dump(long minutes) throws IOException, InterruptedException {
+        String dumps = launcher.getChannel().call(new ThreadDumps(cookie));
+        if (finished)
+            return;     // Ant exited in the mean time
+        if (dumps.length()==0) {
+            aca.println(Messages.AntStallDetector_NoJvm(minutes));
+            return;
+        }
+        String name = AntThreadDumpAction.add(build, dumps);
+        aca.println(Messages.AntStallDetector_Dumped(minutes, name));
+    }
+
+    /**
+     * Takes the thread dumps of all the JVMs on the node that carry the given cookie.
+     * Returns them concatenated, or an empty string if there are none.
+     */
+    private static final class ThreadDumps implements Callable<String,IOException> {
+        private final String cookie;
+
+        ThreadDumps(String cookie) {
+            this.cookie = cookie;
+        }
+
+        public String call() throws IOException {
+            StringBuilder buf = new StringBuilder();
+            for (OSProcess p : AntProcesses.find(cookie)) {
+                List<String> args = p.getArguments();
+                if (args.isEmpty() || !AntProcesses.isJava(args.get(0)))
+                    continue;   // the launcher script of Ant, or something Ant runs
+                // not the arguments, which hold the sensitive build variables
+                buf.append("Process ").append(p.getPid()).append(": ").append(AntProcesses.describe(args)).append("\n\n");
+                buf.append(dump(p)).append("\n\n");
+            }
+            return buf.toString();
+        }
+
+        /**
+         * Tries the tools of the JDK that runs the process first, then those of this JVM, then the PATH.
+         */
+        private String dump(OSProcess p) throws IOException {
+            String pid = String.valueOf(p.getPid());
+            List<List<String>> commands = new ArrayList<List<String>>();
+            String javaHome = p.getEnvironmentVariables().get("JAVA_HOME");
+            File exe = new File(p.getArguments().get(0));
+            for (File bin : new File[] {javaHome==null ? null : new File(javaHome,"bin"), exe.getParentFile(),
+                    new File(System.getProperty("java.home"),"../bin"), new File(System.getProperty("java.home"),"bin")}) {
+                if (bin==null)
+                    continue;
+                commands.add(Arrays.asList(new File(bin,"jcmd").getPath(), pid, "Thread.print"));
+                commands.add(Arrays.asList(new File(bin,"jstack").getPath(), pid));
+            }
+            commands.add(Arrays.asList("jstack", pid));
+
+            String last = null;
+            for (List<String> cmd : commands) {
+                if (cmd.get(0).contains(File.separator) && !new File(cmd.get(0)).exists()
+                        && !new File(cmd.get(0)+".exe").exists())
+                    continue;
+                try {
+                    Output o = run(cmd);
+                    if (o.exitCode==0)
+                        return o.text;
+                    last = Util.join(cmd," ")+" exited with "+o.exitCode+":\n"+o.text;
+                } catch (IOException e) {
+                    last = Util.join(cmd," ")+" failed: "+e;
+                }
+            }
+            if (!File.separator.equals("\\")) {
+                try {
+                    // the JVM prints the dump to its own output, that is the console of the build
+                    if (run(Arrays.asList("kill","-QUIT",pid)).exitCode==0)
+                        return "Sent SIGQUIT. The thread dump is in the console output.";
+                } catch (IOException e) {
+                    // fall through
+                }
+            }
+            return "Failed to take a thread dump. "+last;
+        }
+
+        private static Output run(List<String> cmd) throws IOException {
+            Process proc = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+            proc.getOutputStream().close();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            StreamCopyThread t = new StreamCopyThread("Thread dump output of "+cmd, proc.getInputStream(), out);
+            t.start();
+            Output o = new Output();
+            try {
+                // the tools can hang on a JVM that is in a bad enough state
+                long end = System.currentTimeMillis()+DUMP_TIMEOUT;
+                while (true) {
+                    try {
+                        o.exitCode = proc.exitValue();
+                        break;
+                    } catch (IllegalThreadStateException e) {
+                        if (System.currentTimeMillis()>end) {
+                            proc.destroy();
+                            o.exitCode = -1;
+                            break;
+                        }
+                        Thread.sleep(100);
+                    }
+                }
+                t.join(1000);
+            } catch (InterruptedException e) {
+                proc.destroy();
+                throw (IOException)new IOException("Interrupted").initCause(e);
+            }
+            synchronized (out) {
+                o.text = out.toString();
+            }
+            return o;
+        }
+
+        private static final class Output {
+            int exitCode;
+            String text;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(AntStallDetector.class.getName());
+
+    /**
+     * Milliseconds without output after which thread dumps are taken. 0 or less to never take them, which is the default,
+     * since quiet stretches are normal in some builds. Set in minutes with the system property.
+     */
+    public static long DUMP_AFTER = TimeUnit.MINUTES.toMillis(Long.getLong(AntStallDetector.class.getName()+".dumpAfter", 0));
+
+    /**
+     * Milliseconds without output after which the build is aborted. 0 or less to never abort.
+     */
+    public static long ABORT_AFTER = TimeUnit.MINUTES.toMillis(Long.getLong(AntStallDetector.class.getName()+".abortAfter", 0));
+
+    /**
+     * How often the output is checked, in milliseconds.
+     */
+    public static long CHECK_INTERVAL = 30*1000;
+
+    /**
+     * How long a single <tt>jcmd</tt> or <tt>jstack</tt> may take, in milliseconds.
+     */
+    private static final long DUMP_TIMEOUT = 60*1000;
+}
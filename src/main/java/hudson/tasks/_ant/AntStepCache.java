@@ -0,0 +1,465 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import hudson.util.io.ArchiverFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Remembers the last successful run of an Ant build step in a workspace, so that the step can be
+ * skipped when nothing it consumes has changed since.
+ *
+ * <p>
+ * What the step consumes is summarized in a fingerprint, which covers the build script and the files
+ * it imports, the files that match the declared inputs, the Ant installation, and whatever the caller
+ * passes in, such as the targets and the properties. After a successful run, the fingerprint is kept
+ * on the node along with an archive of the declared outputs. When a later run comes up with the same
+ * fingerprint, the outputs are restored from the archive instead of running Ant.
+ *
+ * <p>
+ * If {@link #SHARED_DIR} is set, the archives are also published there under their fingerprint,
+ * so that the outputs can be reused by other jobs, branches and nodes. The fingerprint only uses paths
+ * relative to the workspace for that reason. An archive only becomes visible once it's complete,
+ * since it's written to a temporary file that's then renamed. Each time an archive is published,
+ * the least recently used ones are deleted until the directory fits in {@link #SHARED_DIR_SIZE}.
+ * Readers that already have an archive open can still read it after that, except on Windows, where
+ * it just can't be deleted until they are done.
+ *
+ * <p>
+ * All the files are read on the node, by as many threads as it has processors.
+ */
+public final class AntStepCache {
+    private final FilePath workspace;
+    private final FilePath dir;
+
+    AntStepCache(FilePath workspace, FilePath dir) {
+        this.workspace = workspace;
+        this.dir = dir;
+    }
+
+    /**
+     * Gets the cache of a build step.
+     *
+     * @param step
+     *      Identifies the build step within the workspace, such as its build script and targets.
+     * @return
+     *      null if the node has nowhere to keep the cache.
+     */
+    public static AntStepCache of(Node node, FilePath workspace, String step) {
+        FilePath root = node==null ? null : node.getRootPath();
+        if (root==null || workspace==null)
+            return null;
+        String key = Util.getDigestOf(workspace.getRemote()+'\0'+step);
+        return new AntStepCache(workspace, root.child("ant-plugin").child("step-cache").child(key));
+    }
+
+    /**
+     * Computes the fingerprint of what the build step consumes.
+     *
+     * @param inputs
+     *      Ant-style patterns of the files in the workspace the build step reads, or null.
+     * @param antHome
+     *      Home of the Ant installation, or null if Ant is taken from the PATH.
+     * @param salt
+     *      Everything else the build step depends on.
+     */
+    public String fingerprint(FilePath buildFile, String inputs, String antHome, String salt) throws IOException, InterruptedException {
+        return workspace.act(new Fingerprint(buildFile.getRemote(), inputs, antHome, salt));
+    }
+
+    /**
+     * If the last successful run in this workspace had the same fingerprint, or any of the runs
+     * whose outputs are in the shared directory, restores those outputs into the workspace.
+     *
+     * @return
+     *      The size of the archive that was restored, or -1 if the build step has to run.
+     */
+    public long restore(String fingerprint) throws IOException, InterruptedException {
+        return workspace.act(new Restore(dir.getRemote(), SHARED_DIR, fingerprint));
+    }
+
+    /**
+     * Records a successful run of the build step.
+     *
+     * @param outputs
+     *      Ant-style patterns of the files in the workspace the build step produces, or null.
+     */
+    public void store(String fingerprint, String outputs) throws IOException, InterruptedException {
+        workspace.act(new Store(dir.getRemote(), SHARED_DIR, SHARED_DIR_SIZE*1024*1024, fingerprint, outputs));
+    }
+
+    private static final class Fingerprint implements FileCallable<String> {
+        private final String buildFile, inputs, antHome, salt;
+
+        Fingerprint(String buildFile, String inputs, String antHome, String salt) {
+            this.buildFile = buildFile;
+            this.inputs = inputs;
+            this.antHome = antHome;
+            this.salt = salt;
+        }
+
+        public String invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            SortedMap<String,String> digests = new TreeMap<String,String>();
+            String base = ws.getPath()+File.separator;
+            for (Map.Entry<String,String> e : AntTargetGraphParser.getDigests(new File(buildFile)).entrySet()) {
+                String path = e.getKey();
+                if (path.startsWith(base))
+                    path = path.substring(base.length()).replace('\\','/');
+                digests.put("script:"+path, String.valueOf(e.getValue()));
+            }
+
+            List<String> keys = new ArrayList<String>();
+            List<File> files = new ArrayList<File>();
+            if (inputs!=null) {
+                for (String f : Util.createFileSet(ws, inputs).getDirectoryScanner().getIncludedFiles()) {
+                    keys.add("input:"+f.replace('\\','/'));
+                    files.add(new File(ws, f));
+                }
+            }
+            if (antHome!=null) {
+                File jar = new File(antHome, "lib/ant.jar");
+                keys.add("ant");
+                files.add(jar);
+            }
+            List<String> d = digestAll(files);
+            for (int i=0; i<keys.size(); i++)
+                digests.put(keys.get(i), d.get(i));
+
+            MessageDigest md = md5();
+            md.update(salt.getBytes("UTF-8"));
+            for (Map.Entry<String,String> e : digests.entrySet())
+                md.update(('\n'+e.getKey()+'='+e.getValue()).getBytes("UTF-8"));
+            return Util.toHexString(md.digest());
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Restore implements FileCallable<Long> {
+        private final String dir, shared, fingerprint;
+
+        Restore(String dir, String shared, String fingerprint) {
+            this.dir = dir;
+            this.shared = shared;
+            this.fingerprint = fingerprint;
+        }
+
+        public Long invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            File fp = new File(dir, FINGERPRINT);
+            if (fp.exists() && fingerprint.equals(new FilePath(fp).readToString().trim())) {
+                File archive = new File(dir, OUTPUTS);
+                if (!archive.exists())
+                    return 0L;  // no outputs
+                long n = untar(archive, ws);
+                if (n>=0)
+                    return n;
+            }
+            if (shared!=null) {
+                File archive = getSharedArchive(new File(shared), fingerprint);
+                long n = untar(archive, ws);
+                if (n>=0) {
+                    // recently used
+                    archive.setLastModified(System.currentTimeMillis());
+                    return n;
+                }
+            }
+            return -1L;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Store implements FileCallable<Void> {
+        private final String dir, shared, fingerprint, outputs;
+        private final long sharedSize;
+
+        Store(String dir, String shared, long sharedSize, String fingerprint, String outputs) {
+            this.dir = dir;
+            this.shared = shared;
+            this.sharedSize = sharedSize;
+            this.fingerprint = fingerprint;
+            this.outputs = outputs;
+        }
+
+        public Void invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            File d = new File(dir);
+            d.mkdirs();
+            // so that nothing matches while the outputs are being replaced
+            File fp = new File(d, FINGERPRINT);
+            fp.delete();
+
+            File archive = new File(d, OUTPUTS);
+            if (outputs==null) {
+                archive.delete();
+            } else {
+                File tmp = new File(d, OUTPUTS+".tmp");
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    new FilePath(ws).archive(ArchiverFactory.TARGZ, out, outputs);
+                } finally {
+                    out.close();
+                }
+                rename(tmp, archive);
+                if (shared!=null)
+                    publish(new File(shared), fingerprint, archive, sharedSize);
+            }
+
+            File tmp = new File(d, FINGERPRINT+".tmp");
+            new FilePath(tmp).write(fingerprint, "UTF-8");
+            rename(tmp, fp);
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Extracts an archive into the workspace.
+     *
+     * @return
+     *      The size of the archive, or -1 if it doesn't exist.
+     */
+    private static long untar(File archive, File ws) throws IOException, InterruptedException {
+        FileInputStream in;
+        try {
+            in = new FileInputStream(archive);
+        } catch (FileNotFoundException e) {
+            // not there, or just evicted
+            return -1;
+        }
+        try {
+            long n = in.getChannel().size();
+            new FilePath(ws).untarFrom(in, FilePath.TarCompression.GZIP);
+            return n;
+        } finally {
+            in.close();
+        }
+    }
+
+    static File getSharedArchive(File shared, String fingerprint) {
+        return new File(new File(shared, fingerprint.substring(0,2)), fingerprint+".tgz");
+    }
+
+    /**
+     * Makes an archive available in the shared directory under its fingerprint,
+     * then evicts the least recently used archives if the directory has grown too big.
+     */
+    static void publish(File shared, String fingerprint, File archive, long maxSize) throws IOException {
+        File target = getSharedArchive(shared, fingerprint);
+        if (target.exists()) {
+            target.setLastModified(System.currentTimeMillis());
+            return;
+        }
+
+        File d = target.getParentFile();
+        d.mkdirs();
+        File tmp = File.createTempFile(fingerprint, ".tmp", d);
+        try {
+            FileInputStream in = new FileInputStream(archive);
+            try {
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    Util.copyStream(in, out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            // if another node has published the same fingerprint in the meantime, its archive is just as good
+            if (!tmp.renameTo(target) && !target.exists())
+                throw new IOException("Failed to rename "+tmp+" to "+target);
+        } finally {
+            tmp.delete();
+        }
+
+        evict(shared, maxSize);
+    }
+
+    /**
+     * Deletes the least recently used archives until the shared directory is no bigger than the given size.
+     */
+    static void evict(File shared, long maxSize) {
+        final Map<File,Long> archives = new HashMap<File,Long>();
+        long total = 0;
+        long now = System.currentTimeMillis();
+        File[] dirs = shared.listFiles();
+        if (dirs==null)
+            return;
+        for (File d : dirs) {
+            File[] files = d.listFiles();
+            if (files==null)
+                continue;
+            for (File f : files) {
+                if (f.getName().endsWith(".tgz")) {
+                    archives.put(f, f.lastModified());
+                    total += f.length();
+                } else if (f.getName().endsWith(".tmp") && f.lastModified()<now-STALE_TMP) {
+                    // left behind by a JVM that died while publishing
+                    f.delete();
+                }
+            }
+        }
+        if (total<=maxSize)
+            return;
+
+        List<File> lru = new ArrayList<File>(archives.keySet());
+        Collections.sort(lru, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long t1 = archives.get(f1), t2 = archives.get(f2);
+                return t1<t2 ? -1 : t1>t2 ? 1 : 0;
+            }
+        });
+        for (File f : lru) {
+            if (total<=maxSize)
+                break;
+            long n = f.length();
+            if (f.delete())
+                total -= n;
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        // on Windows, renameTo doesn't replace an existing file
+        to.delete();
+        if (!from.renameTo(to))
+            throw new IOException("Failed to rename "+from+" to "+to);
+    }
+
+    /**
+     * Computes the digests of the given files concurrently.
+     */
+    static List<String> digestAll(List<File> files) throws IOException, InterruptedException {
+        List<String> r = new ArrayList<String>();
+        if (files.isEmpty())
+            return r;
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(files.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (final File f : files) {
+                futures.add(pool.submit(new java.util.concurrent.Callable<String>() {
+                    public String call() throws IOException {
+                        return digest(f);
+                    }
+                }));
+            }
+            for (Future<String> f : futures) {
+                try {
+                    r.add(f.get());
+                } catch (ExecutionException e) {
+                    Throwable t = e.getCause();
+                    throw t instanceof IOException ? (IOException)t : (IOException)new IOException(t.toString()).initCause(t);
+                }
+            }
+            return r;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Computes the digest of a file. Large files are mapped into memory rather than copied through a buffer.
+     */
+    static String digest(File f) throws IOException {
+        MessageDigest md = md5();
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel ch = in.getChannel();
+            long size = ch.size();
+            if (size<MAP_THRESHOLD) {
+                ByteBuffer buf = ByteBuffer.allocate(8192);
+                while (ch.read(buf)>=0) {
+                    buf.flip();
+                    md.update(buf);
+                    buf.clear();
+                }
+            } else {
+                for (long pos=0; pos<size; pos+=MAP_CHUNK)
+                    md.update(ch.map(MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size-pos)));
+            }
+        } finally {
+            in.close();
+        }
+        return Util.toHexString(md.digest());
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static final String FINGERPRINT = "fingerprint";
+    private static final String OUTPUTS = "outputs.tgz";
+
+    /**
+     * How long a temporary file in the shared directory may be left alone before it's considered abandoned.
+     */
+    private static final long STALE_TMP = 24*60*60*1000L;
+
+    private static final long MAP_THRESHOLD = 1024*1024;
+    private static final long MAP_CHUNK = 64*1024*1024;
+
+    /**
+     * Directory where the outputs of build steps are shared across workspaces and nodes, such as an NFS mount.
+     * It must be at the same path on every node. Null to only reuse the outputs within a workspace.
+     */
+    public static String SHARED_DIR = System.getProperty(AntStepCache.class.getName()+".sharedDir");
+
+    /**
+     * How big {@link #SHARED_DIR} may grow, in megabytes.
+     */
+    public static long SHARED_DIR_SIZE = Long.getLong(AntStepCache.class.getName()+".sharedDirSize", 10*1024);
+}
@@ -0,0 +1,62 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import org.apache.tools.ant.DefaultLogger;
+
+import java.io.PrintStream;
+
+/**
+ * {@link DefaultLogger} that prefixes each line with <tt>[<i>target</i>]</tt> while
+ * {@link AntParallelExecutor} runs targets concurrently, so that their output can be told apart.
+ *
+ * <p>
+ * The line that announces a target isn't tagged, since it already names the target, which keeps it
+ * recognizable to {@link AntConsoleAnnotator}. Each message is written as a whole, so lines of
+ * different targets never mix.
+ */
+public class AntTaggingLogger extends DefaultLogger {
+    public AntTaggingLogger() {
+    }
+
+    @Override
+    protected void printMessage(String message, PrintStream stream, int priority) {
+        String target = AntParallelExecutor.getCurrentTarget();
+        if (target!=null && !message.trim().equals(target+":")) {
+            StringBuilder buf = new StringBuilder();
+            String prefix = "["+target+"] ";
+            for (String line : message.split("\r?\n", -1)) {
+                if (buf.length()>0)
+                    buf.append(LINE_SEP);
+                buf.append(prefix).append(line);
+            }
+            message = buf.toString();
+        }
+        synchronized (AntTaggingLogger.class) {
+            super.printMessage(message, stream, priority);
+        }
+    }
+
+    private static final String LINE_SEP = System.getProperty("line.separator");
+}
@@ -0,0 +1,323 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Targets of an Ant build script and their dependencies, including the targets
+ * brought in by <tt>&lt;import></tt> and <tt>&lt;include></tt>.
+ *
+ * <p>
+ * This only reflects what can be known without running Ant. Conditions like <tt>if</tt> and
+ * <tt>unless</tt> are recorded but not evaluated, and imports whose path uses properties are skipped.
+ *
+ * @see AntTargetGraphParser
+ */
+public final class AntTargetGraph implements Serializable {
+    private final String projectName;
+    private final String defaultTarget;
+    private final Map<String,Target> targets;
+
+    /**
+     * Targets added to each extension point through <tt>extensionOf</tt>.
+     */
+    private final Map<String,List<String>> extensions = new HashMap<String,List<String>>();
+
+    private final List<String> warnings;
+
+    AntTargetGraph(String projectName, String defaultTarget, Map<String,Target> targets, List<String> warnings) {
+        this.projectName = projectName;
+        this.defaultTarget = defaultTarget;
+        this.targets = new LinkedHashMap<String,Target>(targets);
+        this.warnings = new ArrayList<String>(warnings);
+
+        for (Target t : targets.values()) {
+            for (String ep : t.getExtensionOf()) {
+                List<String> l = extensions.get(ep);
+                if (l==null)
+                    extensions.put(ep, l = new ArrayList<String>());
+                l.add(t.getName());
+            }
+        }
+    }
+
+    public String getProjectName() {
+        return projectName;
+    }
+
+    /**
+     * The target that runs when none is specified, or null.
+     */
+    public String getDefaultTarget() {
+        return defaultTarget;
+    }
+
+    public Collection<Target> getTargets() {
+        return Collections.unmodifiableCollection(targets.values());
+    }
+
+    public Set<String> getTargetNames() {
+        return Collections.unmodifiableSet(targets.keySet());
+    }
+
+    public Target getTarget(String name) {
+        return targets.get(name);
+    }
+
+    /**
+     * Problems found while reading the script, such as imports that couldn't be followed.
+     */
+    public List<String> getWarnings() {
+        return Collections.unmodifiableList(warnings);
+    }
+
+    /**
+     * Direct dependencies of a target, including the targets that extend it if it's an extension point.
+     */
+    public List<String> getDependencies(String name) {
+        Target t = targets.get(name);
+        if (t==null)
+            return Collections.emptyList();
+        List<String> ext = extensions.get(name);
+        if (ext==null)
+            return t.getDepends();
+        List<String> r = new ArrayList<String>(t.getDepends());
+        r.addAll(ext);
+        return r;
+    }
+
+    /**
+     * The targets Ant executes for each of the requested targets, in the order it executes them.
+     *
+     * <p>
+     * Like Ant's default executor, each requested target is sorted on its own, so a dependency
+     * shared by two of them shows up under both.
+     *
+     * @param requested
+     *      Targets given on the command line. If empty, the default target.
+     * @throws IllegalArgumentException
+     *      If a target doesn't exist, or if the dependencies are circular.
+     */
+    public Map<String,List<String>> getExecutionPlan(List<String> requested) {
+        if (requested.isEmpty() && defaultTarget!=null)
+            requested = Collections.singletonList(defaultTarget);
+        Map<String,List<String>> r = new LinkedHashMap<String,List<String>>();
+        for (String name : requested)
+            r.put(name, sort(name));
+        return r;
+    }
+
+    /**
+     * The target and everything it depends on, directly or indirectly.
+     */
+    public Set<String> getClosure(String name) {
+        return new LinkedHashSet<String>(sort(name));
+    }
+
+    /**
+     * Splits the requested targets into groups that don't have any target in common,
+     * so that each group can be run by a separate Ant process.
+     *
+     * <p>
+     * Targets within a group keep the order they were requested in, and so do the groups.
+     * Whether two targets that share nothing can really run at the same time (for example,
+     * <tt>clean</tt> and <tt>dist</tt> usually can't) is beyond what the graph can tell.
+     *
+     * @throws IllegalArgumentException
+     *      If a target doesn't exist, or if the dependencies are circular.
+     */
+    public List<List<String>> getIndependentGroups(List<String> requested) {
+        List<Set<String>> closures = new ArrayList<Set<String>>();
+        // indices in the requested targets
+        List<List<Integer>> groups = new ArrayList<List<Integer>>();
+        for (int n=0; n<requested.size(); n++) {
+            Set<String> closure = getClosure(requested.get(n));
+            List<Integer> group = new ArrayList<Integer>();
+            // merge all the groups that overlap with this target into the first one of them
+            int first = -1;
+            for (int i=0; i<groups.size(); i++) {
+                if (Collections.disjoint(closures.get(i), closure))
+                    continue;
+                if (first<0) {
+                    first = i;
+                    group = groups.get(i);
+                    closure.addAll(closures.get(i));
+                    closures.set(i, closure);
+                } else {
+                    group.addAll(groups.remove(i));
+                    closure.addAll(closures.remove(i));
+                    i--;
+                }
+            }
+            group.add(n);
+            if (first<0) {
+                groups.add(group);
+                closures.add(closure);
+            }
+        }
+
+        List<List<String>> r = new ArrayList<List<String>>();
+        for (List<Integer> group : groups) {
+            // merging may have shuffled the targets within a group
+            Collections.sort(group);
+            List<String> names = new ArrayList<String>();
+            for (int i : group)
+                names.add(requested.get(i));
+            r.add(names);
+        }
+        return r;
+    }
+
+    /**
+     * Topologically sorts the dependencies of a target, like Ant's <tt>Project.topoSort</tt>.
+     */
+    private List<String> sort(String root) {
+        List<String> r = new ArrayList<String>();
+        visit(root, null, new HashSet<String>(), new ArrayList<String>(), r);
+        return r;
+    }
+
+    private void visit(String name, String from, Set<String> done, List<String> visiting, List<String> r) {
+        if (done.contains(name))
+            return;
+        if (!targets.containsKey(name)) {
+            String msg = "Target \""+name+"\" does not exist in the project \""+projectName+"\".";
+            if (from!=null)
+                msg += " It is used from target \""+from+"\".";
+            throw new IllegalArgumentException(msg);
+        }
+        int i = visiting.indexOf(name);
+        if (i>=0) {
+            StringBuilder msg = new StringBuilder("Circular dependency: ");
+            for (String v : visiting.subList(i,visiting.size()))
+                msg.append(v).append(" <- ");
+            throw new IllegalArgumentException(msg.append(name).toString());
+        }
+
+        visiting.add(name);
+        for (String dep : getDependencies(name))
+            visit(dep, name, done, visiting, r);
+        visiting.remove(visiting.size()-1);
+        done.add(name);
+        r.add(name);
+    }
+
+    /**
+     * One target or extension point.
+     */
+    public static final class Target implements Serializable {
+        private final String name;
+        private final String description;
+        private final List<String> depends;
+        private final String ifCondition, unlessCondition;
+        private final List<String> extensionOf;
+        private final boolean extensionPoint;
+        private final String file;
+
+        Target(String name, String description, List<String> depends, String ifCondition, String unlessCondition,
+               List<String> extensionOf, boolean extensionPoint, String file) {
+            this.name = name;
+            this.description = description;
+            this.depends = depends;
+            this.ifCondition = ifCondition;
+            this.unlessCondition = unlessCondition;
+            this.extensionOf = extensionOf;
+            this.extensionPoint = extensionPoint;
+            this.file = file;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * Targets listed in the <tt>depends</tt> attribute, in that order.
+         */
+        public List<String> getDepends() {
+            return Collections.unmodifiableList(depends);
+        }
+
+        public String getIf() {
+            return ifCondition;
+        }
+
+        public String getUnless() {
+            return unlessCondition;
+        }
+
+        /**
+         * Extension points this target adds itself to.
+         */
+        public List<String> getExtensionOf() {
+            return Collections.unmodifiableList(extensionOf);
+        }
+
+        public boolean isExtensionPoint() {
+            return extensionPoint;
+        }
+
+        /**
+         * The file that defines this target.
+         */
+        public String getFile() {
+            return file;
+        }
+
+        /**
+         * Same target under another name, as Ant does for imported targets.
+         */
+        Target rename(String newName) {
+            return new Target(newName, description, depends, ifCondition, unlessCondition, extensionOf, extensionPoint, file);
+        }
+
+        /**
+         * Same target with the prefix of an <tt>&lt;include></tt>, which applies to the dependencies as well.
+         */
+        Target prefix(String prefix) {
+            List<String> deps = new ArrayList<String>();
+            for (String d : depends)
+                deps.add(prefix+d);
+            return new Target(prefix+name, description, deps, ifCondition, unlessCondition, extensionOf, extensionPoint, file);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,350 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks._ant.AntTargetGraph.Target;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads {@link AntTargetGraph}s from build scripts.
+ *
+ * <p>
+ * Only the top-level elements of each file are looked at, with a streaming parser,
+ * so even very large scripts are read quickly. The result is cached in the JVM that reads
+ * the script, and reused as long as none of the files involved has changed,
+ * which is checked by comparing the digests of their contents.
+ */
+public final class AntTargetGraphParser {
+    private AntTargetGraphParser() {}
+
+    /**
+     * Reads the build script on the node it's on.
+     */
+    public static AntTargetGraph parse(FilePath buildFile) throws IOException, InterruptedException {
+        return buildFile.act(new Parse());
+    }
+
+    private static final class Parse implements FileCallable<AntTargetGraph> {
+        public AntTargetGraph invoke(File f, VirtualChannel channel) throws IOException {
+            return parse(f);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Reads the build script, or returns the cached result if nothing has changed since.
+     */
+    public static AntTargetGraph parse(File buildFile) throws IOException {
+        return load(buildFile).graph;
+    }
+
+    /**
+     * Digests of the build script and of all the files it imports or includes, keyed by their paths.
+     * Files that were looked for but don't exist map to null.
+     *
+     * @throws IOException
+     *      if the script imports or includes files that can't be told without running Ant,
+     *      since the digests wouldn't notice when they change.
+     */
+    static Map<String,String> getDigests(File buildFile) throws IOException {
+        Entry e = load(buildFile);
+        if (!e.unresolved.isEmpty())
+            throw new IOException(Messages.AntTargetGraphParser_Unresolved(e.unresolved.get(0)));
+        return new LinkedHashMap<String,String>(e.digests);
+    }
+
+    private static Entry load(File buildFile) throws IOException {
+        String key = buildFile.getAbsolutePath();
+        Entry e;
+        synchronized (CACHE) {
+            e = CACHE.get(key);
+        }
+        if (e!=null && e.isUpToDate())
+            return e;
+
+        Loader l = new Loader(buildFile.getAbsoluteFile().getParentFile());
+        Script s = l.load(buildFile.getAbsoluteFile());
+        e = new Entry(new AntTargetGraph(s.name, s.defaultTarget, s.targets, l.warnings), l.digests, l.unresolved);
+        synchronized (CACHE) {
+            CACHE.put(key, e);
+        }
+        return e;
+    }
+
+    /**
+     * Parsed graph, together with the digest of every file it was read from.
+     */
+    private static final class Entry {
+        final AntTargetGraph graph;
+        /**
+         * Digest of each file, or null for files that were looked for but didn't exist.
+         */
+        final Map<String,String> digests;
+        /**
+         * Why some of the files the script is made of aren't in {@link #digests}, such as imports whose file
+         * depends on properties.
+         */
+        final List<String> unresolved;
+
+        Entry(AntTargetGraph graph, Map<String,String> digests, List<String> unresolved) {
+            this.graph = graph;
+            this.digests = digests;
+            this.unresolved = unresolved;
+        }
+
+        boolean isUpToDate() throws IOException {
+            for (Map.Entry<String,String> e : digests.entrySet()) {
+                File f = new File(e.getKey());
+                if (e.getValue()==null ? f.exists() : !f.exists() || !e.getValue().equals(digest(f)))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * One file, with the imported and included targets merged in.
+     */
+    private static final class Script {
+        String name, defaultTarget;
+        final Map<String,Target> targets = new LinkedHashMap<String,Target>();
+        final List<Directive> directives = new ArrayList<Directive>();
+    }
+
+    /**
+     * An <tt>&lt;import></tt> or <tt>&lt;include></tt>.
+     */
+    private static final class Directive {
+        boolean include;
+        String file, as, separator;
+        boolean optional;
+    }
+
+    private static final class Loader {
+        private final File basedir;
+        final Map<String,String> digests = new LinkedHashMap<String,String>();
+        final List<String> warnings = new ArrayList<String>();
+        final List<String> unresolved = new ArrayList<String>();
+        private final Set<String> loaded = new HashSet<String>();
+
+        Loader(File basedir) {
+            this.basedir = basedir;
+        }
+
+        Script load(File f) throws IOException {
+            loaded.add(f.getCanonicalPath());
+            Script s = read(f);
+            for (Directive d : s.directives) {
+                String tag = d.include ? "include" : "import";
+                String path = d.file.replace("${basedir}", basedir.getPath());
+                if (path.contains("${")) {
+                    String w = Messages.AntTargetGraphParser_CannotFollow(tag, d.file, f);
+                    warnings.add(w);
+                    unresolved.add(w);
+                    continue;
+                }
+                File g = new File(path);
+                if (!g.isAbsolute())
+                    g = new File(f.getParentFile(), path);
+                if (!g.exists()) {
+                    digests.put(g.getPath(), null);
+                    if (!d.optional)
+                        warnings.add(Messages.AntTargetGraphParser_NotFound(g, tag, f));
+                    continue;
+                }
+                if (loaded.contains(g.getCanonicalPath()))
+                    continue;   // Ant only imports a file once
+
+                Script c = load(g);
+                String prefix = d.as!=null ? d.as : c.name;
+                for (Target t : c.targets.values()) {
+                    // targets of the importing file win
+                    if (d.include) {
+                        put(s, prefix==null ? t : t.prefix(prefix+d.separator));
+                    } else {
+                        put(s, t);
+                        if (prefix!=null)
+                            put(s, t.rename(prefix+d.separator+t.getName()));
+                    }
+                }
+            }
+            return s;
+        }
+
+        private void put(Script s, Target t) {
+            if (!s.targets.containsKey(t.getName()))
+                s.targets.put(t.getName(), t);
+        }
+
+        /**
+         * Reads the top-level elements of a single file.
+         */
+        private Script read(File f) throws IOException {
+            Script s = new Script();
+            // the digest has to cover the whole file, but the parser may stop before the end
+            byte[] data = readFully(f);
+            try {
+                XMLStreamReader r = FACTORY.createXMLStreamReader(f.toURI().toString(), new ByteArrayInputStream(data));
+                int depth = 0;
+                while (r.hasNext()) {
+                    int ev = r.next();
+                    if (ev==XMLStreamConstants.ENTITY_REFERENCE) {
+                        // the old way of sharing targets, which would need the DTD, and reading whatever it points to
+                        String w = Messages.AntTargetGraphParser_Entity(r.getLocalName(), f);
+                        warnings.add(w);
+                        unresolved.add(w);
+                        continue;
+                    }
+                    if (ev==XMLStreamConstants.END_ELEMENT)
+                        depth--;
+                    if (ev!=XMLStreamConstants.START_ELEMENT)
+                        continue;
+                    depth++;
+                    String tag = r.getLocalName();
+                    if (depth==1) {
+                        s.name = attr(r,"name");
+                        s.defaultTarget = attr(r,"default");
+                    } else if (depth==2) {
+                        if (tag.equals("target") || tag.equals("extension-point")) {
+                            String name = attr(r,"name");
+                            if (name!=null)
+                                s.targets.put(name, new Target(name, attr(r,"description"), list(attr(r,"depends")),
+                                        attr(r,"if"), attr(r,"unless"), list(attr(r,"extensionOf")),
+                                        tag.equals("extension-point"), f.getPath()));
+                        } else if (tag.equals("import") || tag.equals("include")) {
+                            Directive d = new Directive();
+                            d.include = tag.equals("include");
+                            d.file = attr(r,"file");
+                            d.as = attr(r,"as");
+                            d.separator = attr(r,"prefixSeparator");
+                            if (d.separator==null)
+                                d.separator = ".";
+                            d.optional = Boolean.parseBoolean(attr(r,"optional"));
+                            if (d.file!=null)
+                                s.directives.add(d);
+                        }
+                    }
+                }
+                r.close();
+            } catch (XMLStreamException e) {
+                throw (IOException)new IOException("Failed to parse "+f).initCause(e);
+            }
+            digests.put(f.getPath(), digest(data));
+            return s;
+        }
+    }
+
+    private static String attr(XMLStreamReader r, String name) {
+        String v = r.getAttributeValue(null, name);
+        return v==null || v.trim().length()==0 ? null : v.trim();
+    }
+
+    /**
+     * Parses a comma-separated list, like Ant does for <tt>depends</tt>.
+     */
+    private static List<String> list(String value) {
+        if (value==null)
+            return Collections.emptyList();
+        List<String> r = new ArrayList<String>();
+        for (String s : value.split(",")) {
+            s = s.trim();
+            if (s.length()>0)
+                r.add(s);
+        }
+        return r;
+    }
+
+    static String digest(File f) throws IOException {
+        return digest(readFully(f));
+    }
+
+    private static String digest(byte[] data) {
+        try {
+            return Util.toHexString(MessageDigest.getInstance("MD5").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);     // impossible
+        }
+    }
+
+    private static byte[] readFully(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream((int)f.length());
+            Util.copyStream(in, buf);
+            return buf.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    /**
+     * The build script may be anybody's, and is also parsed on the master, so nothing outside of it is read:
+     * neither DTDs nor external entities. Entity references are reported rather than expanded.
+     */
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory f = XMLInputFactory.newInstance();
+        f.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        f.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, false);
+        return f;
+    }
+
+    /**
+     * Recently parsed scripts on this JVM, keyed by the path of the build script.
+     */
+    private static final Map<String,Entry> CACHE = new LinkedHashMap<String,Entry>(16,0.75f,true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+            return size()>CACHE_SIZE;
+        }
+    };
+
+    private static final int CACHE_SIZE = 32;
+}
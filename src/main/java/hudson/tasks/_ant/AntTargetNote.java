@@ -44,7 +44,8 @@ public final class AntTargetNote extends ConsoleNote {
         // still under development. too early to put into production
         if (!ENABLED)   return null;
 
-        MarkupText.SubText t = text.findToken(Pattern.compile(".*(?=:)"));
+        // the note isn't at the start of the line if something prefixed it, such as the name of the group of ParallelAnt
+        MarkupText.SubText t = text.subText(charPos,-1).findToken(Pattern.compile(".*(?=:)"));
         if (t!=null)
             t.addMarkup(0,t.length(),"<b class=ant-target>","</b>");
         return null;
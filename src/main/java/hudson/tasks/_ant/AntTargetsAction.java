@@ -0,0 +1,466 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.Util;
+import hudson.console.PlainTextConsoleOutputStream;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Records when each Ant target of a build started and how long it took,
+ * as detected by {@link AntConsoleAnnotator}.
+ *
+ * <p>
+ * One instance covers all the Ant build steps of a build.
+ *
+ * <p>
+ * In addition, the byte offset of each target in the build log is written to a small
+ * binary side file next to the log (see {@link #getIndexFile()}), so that the output of
+ * a single target can be served without scanning the whole log.
+ */
+@ExportedBean
+public class AntTargetsAction implements RunAction2 {
+    private transient Run<?,?> owner;
+
+    private final List<Target> targets = new ArrayList<Target>();
+
+    /**
+     * The target that's currently running, if any.
+     */
+    private transient Target current;
+
+    /**
+     * Offset in the build log where the output of the current Ant build step starts.
+     */
+    private transient long stepOffset;
+
+    /**
+     * True if the current Ant build step reports exact target events through {@link AntEvents}.
+     * The targets detected in the console output then only go to the index.
+     */
+    private transient boolean exact;
+
+    /**
+     * Targets reported by {@link AntEvents} that haven't finished yet, the innermost last.
+     */
+    private transient List<Target> running;
+
+    public void onAttached(Run<?,?> r) {
+        owner = r;
+    }
+
+    public void onLoad(Run<?,?> r) {
+        owner = r;
+    }
+
+    public Run<?,?> getOwner() {
+        return owner;
+    }
+
+    /**
+     * No link in the side panel of builds whose Ant build steps didn't get to run any targets.
+     */
+    public synchronized String getIconFileName() {
+        return targets.isEmpty() ? null : "clock.png";
+    }
+
+    public String getDisplayName() {
+        return Messages.AntTargetsAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return "antTargets";
+    }
+
+    /**
+     * All the targets in the order they were executed.
+     */
+    @Exported(inline=true)
+    public synchronized List<Target> getTargets() {
+        return new ArrayList<Target>(targets);
+    }
+
+    /**
+     * All the targets, the slowest first.
+     */
+    public List<Target> getTargetsByDuration() {
+        List<Target> r = getTargets();
+        Collections.sort(r, new Comparator<Target>() {
+            public int compare(Target o1, Target o2) {
+                long d1 = o1.getDuration(), d2 = o2.getDuration();
+                return d1<d2 ? 1 : d1>d2 ? -1 : 0;
+            }
+        });
+        return r;
+    }
+
+    /**
+     * Called when a new Ant build step starts to write to the build log.
+     *
+     * @param logOffset
+     *      The current size of the build log, which is where the output of this step begins.
+     * @param exact
+     *      True if the targets of this step will be reported by {@link #targetEvent(String, long, boolean)}.
+     */
+    public synchronized void stepStarted(long logOffset, boolean exact) {
+        this.stepOffset = logOffset;
+        this.exact = exact;
+        this.running = new ArrayList<Target>();
+    }
+
+    /**
+     * Called when an Ant build step is over, to end whatever targets are still running.
+     */
+    public synchronized void stepFinished(long timestamp) {
+        stepFinished(timestamp, -1);
+    }
+
+    /**
+     * Called when an Ant build step is over, to end whatever targets are still running.
+     *
+     * @param logOffset
+     *      The size of the build log once all the output of the step is in, which is where its last target ends,
+     *      or -1 if not known.
+     */
+    public synchronized void stepFinished(long timestamp, long logOffset) {
+        if (logOffset>=0 && owner!=null) {
+            try {
+                IndexEntry.append(getIndexFile(), new IndexEntry(IndexEntry.STEP_END, logOffset, -1));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to update "+getIndexFile(), e);
+            }
+        }
+        finishCurrent(timestamp);
+        if (running!=null) {
+            for (Target t : running)
+                t.finish(timestamp);
+            running = null;
+        }
+        exact = false;
+    }
+
+    /**
+     * Called by {@link AntConsoleAnnotator} when a new target starts, which also ends the current one.
+     *
+     * @param offset
+     *      Byte offset of the target line, relative to the start of the current build step.
+     * @param line
+     *      0-origin line number of the target line within the output of the current build step.
+     */
+    public synchronized void targetStarted(String name, long timestamp, long offset, int line) {
+        if (!exact) {
+            finishCurrent(timestamp);
+            current = new Target(name, timestamp);
+            targets.add(current);
+        }
+
+        if (owner!=null) {
+            try {
+                IndexEntry.append(getIndexFile(), new IndexEntry(name, stepOffset+offset, line));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to update "+getIndexFile(), e);
+            }
+        }
+    }
+
+    /**
+     * Called by {@link AntConsoleAnnotator} when the current target ends, if there's any.
+     */
+    public synchronized void targetFinished(long timestamp) {
+        if (!exact)
+            finishCurrent(timestamp);
+    }
+
+    private void finishCurrent(long timestamp) {
+        if (current!=null) {
+            current.finish(timestamp);
+            current = null;
+        }
+    }
+
+    /**
+     * Called by {@link AntEvents} when Ant reports the start or the end of a target.
+     * Unlike the console output, targets can nest here, for example with {@code <antcall>}.
+     */
+    public synchronized void targetEvent(String name, long timestamp, boolean started) {
+        if (running==null)
+            return; // not in a build step
+        if (started) {
+            Target t = new Target(name, timestamp);
+            targets.add(t);
+            running.add(t);
+        } else {
+            for (int i=running.size()-1; i>=0; i--) {
+                if (running.get(i).getName().equals(name)) {
+                    running.remove(i).finish(timestamp);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * The side file that lists the {@link IndexEntry}s of this build.
+     */
+    public File getIndexFile() {
+        return new File(owner.getRootDir(), "antTargets.idx");
+    }
+
+    /**
+     * Reads all the {@link IndexEntry}s of this build, in the order they were executed.
+     */
+    public List<IndexEntry> getIndex() throws IOException {
+        List<IndexEntry> r = new ArrayList<IndexEntry>();
+        for (IndexEntry e : IndexEntry.read(getIndexFile()))
+            if (!e.isStepEnd())
+                r.add(e);
+        return r;
+    }
+
+    /**
+     * Serves the outline of the console of a finished build, straight from the index rather than
+     * from the targets found in the rendered console. While the build runs, or if it has no index,
+     * responds with 404 and the outline is put together from the console as usual.
+     */
+    public void doOutline(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        if (owner.isBuilding() || getIndex().isEmpty()) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        req.getView(this, "outline.jelly").forward(req, rsp);
+    }
+
+    /**
+     * Serves the plain text output of a target, by seeking straight to it in the build log.
+     *
+     * @param name
+     *      Name of the target. If the target was executed more than once, the first one is used.
+     */
+    public void doJump(StaplerRequest req, StaplerResponse rsp, @QueryParameter String name) throws IOException {
+        // the end of a build step ends its last target too
+        List<IndexEntry> index = IndexEntry.read(getIndexFile());
+        for (int i=0; i<index.size(); i++) {
+            IndexEntry e = index.get(i);
+            if (e.isStepEnd() || !e.getName().equals(name))
+                continue;
+
+            long end = i+1<index.size() ? index.get(i+1).getOffset() : Long.MAX_VALUE;
+            rsp.setContentType("text/plain;charset="+owner.getCharset().name());
+            OutputStream out = new PlainTextConsoleOutputStream(rsp.getOutputStream());
+            InputStream in = openLog(e.getOffset());
+            try {
+                copy(in, out, end-e.getOffset());
+            } finally {
+                in.close();
+            }
+            out.flush();
+            return;
+        }
+        rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+    }
+
+    /**
+     * Opens the build log, positioned at the given offset.
+     */
+    private InputStream openLog(long offset) throws IOException {
+        File log = owner.getLogFile();
+        if (log.getName().endsWith(".gz")) {
+            // can't seek into the compressed log, but at least we don't have to render what we skip
+            InputStream in = new GZIPInputStream(new FileInputStream(log));
+            long skipped = 0;
+            while (skipped<offset) {
+                long n = in.skip(offset-skipped);
+                if (n<=0)   break;
+                skipped += n;
+            }
+            return in;
+        } else {
+            RandomAccessFile raf = new RandomAccessFile(log,"r");
+            raf.seek(offset);
+            return Channels.newInputStream(raf.getChannel());
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long len) throws IOException {
+        byte[] buf = new byte[8192];
+        while (len>0) {
+            int n = in.read(buf,0,(int)Math.min(buf.length,len));
+            if (n<0)    break;
+            out.write(buf,0,n);
+            len -= n;
+        }
+    }
+
+    /**
+     * One record in the target index of a build.
+     */
+    public static final class IndexEntry {
+        private final String name;
+        private final long offset;
+        private final int line;
+
+        public IndexEntry(String name, long offset, int line) {
+            this.name = name;
+            this.offset = offset;
+            this.line = line;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Byte offset of the target line in the build log.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * 0-origin line number of the target line within the output of its Ant build step.
+         */
+        public int getLine() {
+            return line;
+        }
+
+        /**
+         * True if this record marks where the output of an Ant build step ends, rather than a target.
+         */
+        boolean isStepEnd() {
+            return name.equals(STEP_END);
+        }
+
+        static void append(File f, IndexEntry e) throws IOException {
+            boolean created = !f.exists();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f,true)));
+            try {
+                if (created)
+                    out.writeInt(MAGIC);
+                out.writeUTF(e.name);
+                out.writeLong(e.offset);
+                out.writeInt(e.line);
+            } finally {
+                out.close();
+            }
+        }
+
+        static List<IndexEntry> read(File f) throws IOException {
+            List<IndexEntry> r = new ArrayList<IndexEntry>();
+            if (!f.exists())
+                return r;
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                if (in.readInt()!=MAGIC)
+                    throw new IOException("Not a target index: "+f);
+                while (true)
+                    r.add(new IndexEntry(in.readUTF(), in.readLong(), in.readInt()));
+            } catch (EOFException e) {
+                // the end of the index, possibly with a record that was only partially written
+                return r;
+            } finally {
+                in.close();
+            }
+        }
+
+        private static final int MAGIC = 0x414E5431; // "ANT1"
+
+        /**
+         * Name of the records that mark the end of a build step, which no target can have.
+         */
+        static final String STEP_END = "\0";
+    }
+
+    @ExportedBean(defaultVisibility=2)
+    public static final class Target {
+        private final String name;
+        private final long startTime;
+        private long duration;
+
+        Target(String name, long startTime) {
+            this.name = name;
+            this.startTime = startTime;
+        }
+
+        void finish(long timestamp) {
+            duration = Math.max(0, timestamp-startTime);
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * When the target started, in milliseconds since the epoch.
+         */
+        @Exported
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * How long the target took in milliseconds.
+         */
+        @Exported
+        public long getDuration() {
+            return duration;
+        }
+
+        public String getDurationString() {
+            return Util.getTimeSpanString(duration);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(AntTargetsAction.class.getName());
+}
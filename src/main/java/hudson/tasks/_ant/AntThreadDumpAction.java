@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import hudson.model.DirectoryBrowserSupport;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.ServletException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Thread dumps that {@link AntStallDetector} took of the Ant JVMs of a build.
+ *
+ * <p>
+ * The dumps are kept as text files in the build directory, and this action lets them be browsed.
+ */
+public class AntThreadDumpAction implements Action {
+    /**
+     * Saves a thread dump with the build, adding the action if it's not there yet.
+     *
+     * @return
+     *      The name of the file it went to.
+     */
+    public static String add(AbstractBuild<?,?> build, String dump) throws IOException {
+        File dir = getDirectory(build);
+        synchronized (build) {
+            if (build.getAction(AntThreadDumpAction.class)==null)
+                build.addAction(new AntThreadDumpAction());
+            dir.mkdirs();
+            String name = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date());
+            File f = new File(dir, name+".txt");
+            for (int i=2; f.exists(); i++)
+                f = new File(dir, name+"_"+i+".txt");
+            OutputStream out = new FileOutputStream(f);
+            try {
+                out.write(dump.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            return f.getName();
+        }
+    }
+
+    private static File getDirectory(AbstractBuild<?,?> build) {
+        return new File(build.getRootDir(), "ant-thread-dumps");
+    }
+
+    public String getIconFileName() {
+        return "clipboard.png";
+    }
+
+    public String getDisplayName() {
+        return Messages.AntThreadDumpAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return "antThreadDumps";
+    }
+
+    public void doDynamic(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException, InterruptedException {
+        AbstractBuild<?,?> build = req.findAncestorObject(AbstractBuild.class);
+        new DirectoryBrowserSupport(this, new FilePath(getDirectory(build)), getDisplayName(), "clipboard.png", false)
+                .generateResponse(req, rsp, this);
+    }
+}
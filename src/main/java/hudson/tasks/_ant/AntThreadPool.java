@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads shared by all the builds that pass the console output of Ant on to {@link AntConsoleAnnotator},
+ * that is the drainers of {@link AsyncOutputStream}, so that the number of threads stays bounded however many
+ * Ant builds are running.
+ *
+ * <p>
+ * Writing to the log of a build blocks, for as long as the disk, or the channel to a remote log, takes.
+ * So a task must not do more than a bounded amount of writing before it submits itself again, to let
+ * the other builds have their turn. And since one slow log holds a thread while it's being written, there are
+ * several threads per processor, so that it takes as many slow logs at the same time to hold up the others.
+ * Nothing else should go in here.
+ */
+final class AntThreadPool {
+    private AntThreadPool() {}
+
+    /**
+     * Number of threads, which only exist while there's something to do. They mostly wait for the logs,
+     * so there are more of them than processors.
+     */
+    static final int SIZE = Integer.getInteger(AntThreadPool.class.getName()+".size",
+            Math.max(8, 4*Runtime.getRuntime().availableProcessors()));
+
+    static final ExecutorService POOL;
+
+    static {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(SIZE, SIZE, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Ant plugin worker #"+n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        POOL = pool;
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link OutputStream} that hands the bytes over to another {@link OutputStream}
+ * on a separate thread, through a bounded ring buffer.
+ *
+ * <p>
+ * That thread comes from {@link AntThreadPool}, only while there's something in the buffer,
+ * so idle builds don't hold on to any thread. It blocks on the delegate, but only for
+ * {@link #CHUNKS_PER_RUN} chunks at a time, so a build with a slow log doesn't keep it from the others.
+ *
+ * <p>
+ * This is used between the Ant process and {@link AntConsoleAnnotator}, so that the time spent
+ * in the annotation and in sending the log around doesn't push back on the stdout of Ant.
+ * When the buffer is full, the writer either waits or spills the excess to a temporary file,
+ * depending on {@link Overflow}.
+ */
+public class AsyncOutputStream extends OutputStream {
+    /**
+     * What to do when the writer is faster than the delegate and the buffer fills up.
+     */
+    public enum Overflow {
+        /**
+         * Wait until the buffer has room.
+         */
+        BLOCK,
+        /**
+         * Append to a temporary file, which is drained once the buffer is empty.
+         */
+        SPILL
+    }
+
+    private final OutputStream out;
+    private final Overflow overflow;
+    private final Object lock = new Object();
+
+    private final byte[] ring;
+    /**
+     * Index of the first unread byte in {@link #ring}, and the number of bytes available from there.
+     */
+    private int head, size;
+
+    /**
+     * Non-null while we are spilling. Once spilling starts, all the writes go to this file
+     * until the drainer catches up, so that the order of the bytes is preserved.
+     */
+    private File spillFile;
+    private RandomAccessFile spill;
+    private long spillRead, spillWritten;
+
+    /**
+     * True while the drainer is writing a chunk to {@link #out} outside the lock.
+     */
+    private boolean writing;
+    /**
+     * True while the drainer is submitted to {@link AntThreadPool} or running.
+     */
+    private boolean scheduled;
+    private boolean finished;
+    private IOException failure;
+
+    private int maxDepth;
+    private long stallNanos;
+    private long spilledBytes;
+
+    private final String name;
+    private final Runnable drainer = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    public AsyncOutputStream(OutputStream out, int bufferSize, Overflow overflow, String name) {
+        this.out = out;
+        this.overflow = overflow;
+        this.ring = new byte[bufferSize];
+        this.name = name;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte)b},0,1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        synchronized (lock) {
+            while (len>0) {
+                checkFailure();
+                if (finished)
+                    throw new IOException("Stream already closed");
+
+                if (spill!=null) {
+                    spill(b,off,len);
+                    return;
+                }
+
+                if (size==ring.length) {
+                    if (overflow==Overflow.SPILL) {
+                        spill(b,off,len);
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    while (size==ring.length && failure==null) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw (IOException)new InterruptedIOException().initCause(e);
+                        }
+                    }
+                    stallNanos += System.nanoTime()-start;
+                    continue;
+                }
+
+                int tail = (head+size)%ring.length;
+                int n = Math.min(len, Math.min(ring.length-size, ring.length-tail));
+                System.arraycopy(b,off,ring,tail,n);
+                size += n;
+                off += n;
+                len -= n;
+                maxDepth = Math.max(maxDepth,size);
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Makes sure the drainer will run. Called with the lock held.
+     */
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            AntThreadPool.POOL.execute(drainer);
+        }
+    }
+
+    private void spill(byte[] b, int off, int len) throws IOException {
+        if (spill==null) {
+            spillFile = File.createTempFile("ant-console",".spill");
+            spill = new RandomAccessFile(spillFile,"rw");
+        }
+        spill.seek(spillWritten);
+        spill.write(b,off,len);
+        spillWritten += len;
+        spilledBytes += len;
+        schedule();
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure!=null)
+            throw (IOException)new IOException("Failed to write to the console").initCause(failure);
+    }
+
+    /**
+     * Passes what's in the buffer to the delegate, then gives the thread back.
+     */
+    private void drain() {
+        byte[] chunk = new byte[8192];
+        try {
+            for (int i=0; ; i++) {
+                int n;
+                synchronized (lock) {
+                    if (i==CHUNKS_PER_RUN && (size>0 || spill!=null)) {
+                        // let the other builds have their turn
+                        AntThreadPool.POOL.execute(drainer);
+                        return;
+                    }
+
+                    if (size>0) {
+                        n = Math.min(chunk.length, Math.min(size, ring.length-head));
+                        System.arraycopy(ring,head,chunk,0,n);
+                        head = (head+n)%ring.length;
+                        size -= n;
+                    } else if (spill!=null) {
+                        spill.seek(spillRead);
+                        n = spill.read(chunk,0,(int)Math.min(chunk.length,spillWritten-spillRead));
+                        spillRead += n;
+                        if (spillRead==spillWritten)
+                            deleteSpill();
+                    } else {
+                        scheduled = false;
+                        lock.notifyAll();
+                        return; // drained
+                    }
+                    writing = true;
+                    lock.notifyAll();
+                }
+
+                try {
+                    out.write(chunk,0,n);
+                } finally {
+                    synchronized (lock) {
+                        writing = false;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail((IOException)new IOException("Failed to write to the console").initCause(e));
+        }
+    }
+
+    private void fail(IOException e) {
+        synchronized (lock) {
+            failure = e;
+            scheduled = false;
+            lock.notifyAll();
+        }
+    }
+
+    private void deleteSpill() throws IOException {
+        spill.close();
+        spill = null;
+        if (!spillFile.delete())
+            LOGGER.log(Level.FINE, "Failed to delete {0}", spillFile);
+        spillFile = null;
+        spillRead = spillWritten = 0;
+    }
+
+    /**
+     * Waits until everything written so far has been passed to the delegate, then flushes it.
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            boolean interrupted = false;
+            while ((size>0 || spill!=null || writing) && failure==null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    // don't lose the output just because the build was aborted
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            checkFailure();
+        }
+        out.flush();
+    }
+
+    /**
+     * Passes everything to the delegate, but leaves it open.
+     */
+    public void finish() throws IOException {
+        synchronized (lock) {
+            if (finished)   return;
+            finished = true;
+
+            boolean interrupted = false;
+            while (scheduled) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    // don't lose the output just because the build was aborted
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            if (spill!=null)
+                deleteSpill();
+            checkFailure();
+        }
+        out.flush();
+
+        LOGGER.log(Level.FINE, "Console of {0}: max queue depth {1} bytes, writer stalled for {2}ms, spilled {3} bytes",
+                new Object[]{name, maxDepth, getStallTime(), spilledBytes});
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    /**
+     * The maximum number of bytes that were waiting in the buffer at any one time.
+     */
+    public int getMaxDepth() {
+        synchronized (lock) {
+            return maxDepth;
+        }
+    }
+
+    /**
+     * The number of bytes that are currently waiting in the buffer.
+     */
+    public int getDepth() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    /**
+     * The total time in milliseconds the writer spent waiting for the buffer to have room.
+     */
+    public long getStallTime() {
+        synchronized (lock) {
+            return stallNanos/1000000;
+        }
+    }
+
+    /**
+     * The total number of bytes that had to be spilled to a temporary file.
+     */
+    public long getSpilledBytes() {
+        synchronized (lock) {
+            return spilledBytes;
+        }
+    }
+
+    /**
+     * How many chunks the drainer writes before letting the tasks of the other builds run.
+     */
+    private static final int CHUNKS_PER_RUN = 64;
+
+    private static final Logger LOGGER = Logger.getLogger(AsyncOutputStream.class.getName());
+
+    /**
+     * Size of the buffer placed between the Ant process and {@link AntConsoleAnnotator}.
+     * 0 (the default) annotates directly on the thread that pumps the process output.
+     */
+    public static int BUFFER_SIZE = Integer.getInteger(AsyncOutputStream.class.getName()+".bufferSize", 0);
+
+    /**
+     * The {@link Overflow} behaviour of that buffer.
+     */
+    public static Overflow OVERFLOW = getOverflow(System.getProperty(AsyncOutputStream.class.getName()+".overflow"));
+
+    /**
+     * Parses the system property, falling back to {@link Overflow#BLOCK} rather than failing every Ant build on a typo.
+     */
+    static Overflow getOverflow(String value) {
+        if (value==null)
+            return Overflow.BLOCK;
+        try {
+            return Overflow.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Unknown {0}.overflow \"{1}\", expected one of {2}. Using BLOCK",
+                    new Object[] {AsyncOutputStream.class.getName(), value, Arrays.toString(Overflow.values())});
+            return Overflow.BLOCK;
+        }
+    }
+}
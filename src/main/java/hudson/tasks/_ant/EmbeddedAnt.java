@@ -0,0 +1,265 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.Callable;
+import hudson.remoting.RemoteOutputStream;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs Ant builds inside the JVM of the node itself, without launching any process.
+ *
+ * <p>
+ * The jars of the Ant installation are loaded in a class loader that doesn't see Jenkins,
+ * so the build gets the Ant version it asked for, not the one bundled with Jenkins.
+ * That class loader is kept for the subsequent builds with the same installation,
+ * but each build gets its own Ant project, and builds that run at the same time get their own class loaders,
+ * so they don't share the static state of Ant and its tasks.
+ *
+ * <p>
+ * Since a build could take the JVM down with it, this never happens on the master, and only where
+ * {@link System#exit(int)} can be blocked for the threads of the builds. Ant runs on a thread of its own,
+ * which is interrupted when the build is aborted, and gives up at the next target or task.
+ *
+ * <p>
+ * Unlike {@link AntDaemons}, {@link System#out} is not captured, since other builds run in the same JVM.
+ * Whatever the tasks print there directly ends up in the log of the node.
+ */
+public final class EmbeddedAnt {
+    private EmbeddedAnt() {}
+
+    /**
+     * Runs the build in the JVM of the current node.
+     *
+     * @return
+     *      The exit code of the build, or null if the build can't be run this way.
+     */
+    public static Integer run(Launcher launcher, String antHome, FilePath buildFile, List<String> targets,
+                              Map<String,String> properties, OutputStream out) throws IOException, InterruptedException {
+        Node node = Computer.currentComputer().getNode();
+        FilePath root = node==null ? null : node.getRootPath();
+        if (root==null || node instanceof Jenkins)
+            return null;
+        FilePath jar = AgentJar.install(root, "ant-runner", getRunnerJar());
+
+        RemoteSink sink = new RemoteSink(out);
+        Integer r = launcher.getChannel().call(new Run(antHome, jar.getRemote(), buildFile.getRemote(),
+                new ArrayList<String>(targets), new HashMap<String,String>(properties), new RemoteOutputStream(sink)));
+        if (r!=null)
+            sink.awaitClose(FINISH_TIMEOUT);
+        return r;
+    }
+
+    private static synchronized byte[] getRunnerJar() throws IOException {
+        if (runnerJar==null)
+            runnerJar = AgentJar.build(AntProjectRunner.class);
+        return runnerJar;
+    }
+
+    private static byte[] runnerJar;
+
+    private static final class Run implements Callable<Integer,IOException> {
+        private final String antHome, runnerJar, buildFile;
+        private final ArrayList<String> targets;
+        private final HashMap<String,String> properties;
+        private final OutputStream out;
+
+        Run(String antHome, String runnerJar, String buildFile, ArrayList<String> targets,
+            HashMap<String,String> properties, OutputStream out) {
+            this.antHome = antHome;
+            this.runnerJar = runnerJar;
+            this.buildFile = buildFile;
+            this.targets = targets;
+            this.properties = properties;
+            this.out = out;
+        }
+
+        public Integer call() throws IOException {
+            if (!NoExit.install())
+                return null;
+            final PrintStream ps = new PrintStream(out, true);
+            final String key = antHome+'\0'+runnerJar;
+            final ClassLoader cl;
+            try {
+                cl = getClassLoader(key);
+            } catch (IOException e) {
+                ps.close();
+                throw e;
+            }
+
+            final Object[] result = new Object[1];
+            Thread t = new Thread(GROUP, "Embedded Ant build of "+buildFile) {
+                @Override
+                public void run() {
+                    try {
+                        Method m = cl.loadClass(AntProjectRunner.class.getName()).getMethod("run",
+                                File.class, File.class, List.class, Map.class, PrintStream.class, boolean.class);
+                        result[0] = m.invoke(null, new File(antHome), new File(buildFile), targets, properties, ps, false);
+                    } catch (InvocationTargetException e) {
+                        e.getCause().printStackTrace(ps);
+                        result[0] = 1;
+                    } catch (Exception e) {
+                        result[0] = e;
+                    } finally {
+                        // only now, even if the build was aborted, since nobody else may use the class loader before
+                        releaseClassLoader(key, cl);
+                        ps.close();
+                    }
+                }
+            };
+            t.setContextClassLoader(cl);
+            t.setDaemon(true);
+            t.start();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                // the build was aborted, and Ant gives up at its next target or task
+                t.interrupt();
+                throw (IOException)new InterruptedIOException("Aborted the embedded Ant build of "+buildFile).initCause(e);
+            }
+            if (result[0] instanceof Exception)
+                throw (IOException)new IOException("Failed to load Ant from "+antHome).initCause((Exception)result[0]);
+            return (Integer)result[0];
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Blocks {@link System#exit(int)} on the threads of the embedded builds, and leaves everything else
+     * to the security manager that was there before, if any.
+     */
+    private static final class NoExit extends SecurityManager {
+        private final SecurityManager next;
+
+        private NoExit(SecurityManager next) {
+            this.next = next;
+        }
+
+        @Override
+        public void checkPermission(Permission perm) {
+            if (next!=null)
+                next.checkPermission(perm);
+        }
+
+        @Override
+        public void checkPermission(Permission perm, Object context) {
+            if (next!=null)
+                next.checkPermission(perm, context);
+        }
+
+        @Override
+        public void checkExit(int status) {
+            for (ThreadGroup g=Thread.currentThread().getThreadGroup(); g!=null; g=g.getParent()) {
+                if (g==GROUP)
+                    throw new SecurityException("An Ant build running inside the JVM of the node called System.exit("+status+")");
+            }
+            if (next!=null)
+                next.checkExit(status);
+        }
+
+        /**
+         * Installs the security manager unless it's already there.
+         *
+         * @return
+         *      false if the JVM doesn't allow it, as Java 18 and later don't by default.
+         */
+        static synchronized boolean install() {
+            SecurityManager sm = System.getSecurityManager();
+            if (sm instanceof NoExit)
+                return true;
+            try {
+                System.setSecurityManager(new NoExit(sm));
+                return true;
+            } catch (UnsupportedOperationException e) {
+                return false;
+            } catch (SecurityException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Threads of the embedded builds, and of whatever they start.
+     */
+    private static final ThreadGroup GROUP = new ThreadGroup("Embedded Ant builds");
+
+    /**
+     * Class loaders of the Ant installations on this node that no build uses right now,
+     * keyed by the installation and the runner jar.
+     */
+    private static final Map<String,LinkedList<ClassLoader>> IDLE = new HashMap<String,LinkedList<ClassLoader>>();
+
+    private static ClassLoader getClassLoader(String key) throws IOException {
+        synchronized (IDLE) {
+            LinkedList<ClassLoader> idle = IDLE.get(key);
+            if (idle!=null && !idle.isEmpty())
+                return idle.removeFirst();
+        }
+        int i = key.indexOf('\0');
+        File[] libs = new File(key.substring(0,i),"lib").listFiles();
+        if (libs==null)
+            throw new IOException("No Ant installation found at "+key.substring(0,i));
+        List<URL> urls = new ArrayList<URL>();
+        for (File lib : libs)
+            if (lib.getName().endsWith(".jar"))
+                urls.add(lib.toURI().toURL());
+        urls.add(new File(key.substring(i+1)).toURI().toURL());
+        return new URLClassLoader(urls.toArray(new URL[urls.size()]), ClassLoader.getSystemClassLoader().getParent());
+    }
+
+    private static void releaseClassLoader(String key, ClassLoader cl) {
+        synchronized (IDLE) {
+            LinkedList<ClassLoader> idle = IDLE.get(key);
+            if (idle==null)
+                IDLE.put(key, idle = new LinkedList<ClassLoader>());
+            idle.addFirst(cl);
+        }
+    }
+
+    /**
+     * How long to wait for the build output to arrive after the build has finished.
+     */
+    private static final long FINISH_TIMEOUT = 10*1000;
+}
@@ -0,0 +1,238 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.Util;
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Runs several Ant processes at the same time, each on its own group of targets,
+ * and merges their output into the build log.
+ *
+ * <p>
+ * The output of each process is annotated on its own, then each line is prefixed with the
+ * name of its group and written to the log as a whole, so lines of different groups never mix.
+ * The prefix thus comes before the notes, which {@link AntTargetNote} takes into account.
+ *
+ * @see AntTargetGraph#getIndependentGroups(List)
+ */
+public final class ParallelAnt {
+    private final Launcher launcher;
+    private final EnvVars env;
+    private final FilePath pwd;
+    private final TaskListener listener;
+    private final Charset charset;
+    private final AntSecretMasker masker;
+
+    /**
+     * @param masker
+     *      Masks the sensitive values in the output of each process, or null.
+     */
+    public ParallelAnt(Launcher launcher, EnvVars env, FilePath pwd, TaskListener listener, Charset charset, AntSecretMasker masker) {
+        this.launcher = launcher;
+        this.env = env;
+        this.pwd = pwd;
+        this.listener = listener;
+        this.charset = charset;
+        this.masker = masker;
+    }
+
+    /**
+     * Runs the commands, at most {@code parallelism} of them at a time, and waits for all of them.
+     *
+     * <p>
+     * This all happens on the calling thread, which has to wait for the build step anyway.
+     * Rather than having a thread wait for each process, it checks which ones have exited,
+     * every {@link #POLL_INTERVAL} milliseconds at first and less and less often up to {@link #MAX_POLL_INTERVAL}
+     * while none exits, since on a slave each check is a round trip per process.
+     * Note that {@link Proc} itself still has a thread per process copy the output on a local launcher,
+     * which this can't avoid.
+     *
+     * @param labels
+     *      Prefix of the output of each command.
+     * @return
+     *      0 if all the commands succeeded, or else the exit code of the first one that failed.
+     */
+    public int run(List<ArgumentListBuilder> commands, List<String> labels, int parallelism) throws IOException, InterruptedException {
+        PrintStream log = listener.getLogger();
+        long start = System.currentTimeMillis();
+
+        List<Group> groups = new ArrayList<Group>();
+        for (int i=0; i<commands.size(); i++)
+            groups.add(new Group(commands.get(i), labels.get(i), log));
+        LinkedList<Group> pending = new LinkedList<Group>(groups);
+        List<Group> running = new ArrayList<Group>();
+        long interval = POLL_INTERVAL;
+        try {
+            while (!pending.isEmpty() || !running.isEmpty()) {
+                while (running.size()<Math.max(1,parallelism) && !pending.isEmpty()) {
+                    Group g = pending.removeFirst();
+                    running.add(g);
+                    g.start();
+                }
+
+                boolean exited = false;
+                for (Iterator<Group> itr=running.iterator(); itr.hasNext();) {
+                    Group g = itr.next();
+                    if (!g.proc.isAlive()) {
+                        g.finish();
+                        itr.remove();
+                        exited = true;
+                    }
+                }
+                if (exited) {
+                    interval = POLL_INTERVAL;
+                } else {
+                    Thread.sleep(interval);
+                    interval = Math.min(interval*2, MAX_POLL_INTERVAL);
+                }
+            }
+        } catch (InterruptedException e) {
+            kill(running);
+            throw e;
+        } catch (IOException e) {
+            kill(running);
+            throw e;
+        }
+
+        int r = 0;
+        long sequential = 0;
+        Group longest = null;
+        for (Group g : groups) {
+            if (r==0)
+                r = g.exitCode;
+            sequential += g.duration;
+            if (longest==null || g.duration>longest.duration)
+                longest = g;
+        }
+
+        // longest is the critical path, and the best this could have done
+        long elapsed = Math.max(1, System.currentTimeMillis()-start);
+        log.println(Messages.ParallelAnt_Speedup(Util.getTimeSpanString(elapsed), Util.getTimeSpanString(sequential),
+                String.format("%.1f", sequential/(double)elapsed), longest.label, Util.getTimeSpanString(longest.duration)));
+        return r;
+    }
+
+    private static void kill(List<Group> groups) throws IOException, InterruptedException {
+        for (Group g : groups) {
+            if (g.proc!=null)
+                g.proc.kill();
+        }
+    }
+
+    /**
+     * One Ant process.
+     */
+    private final class Group {
+        private final ArgumentListBuilder cmd;
+        private final String label;
+        private final OutputStream log;
+        private PrefixedOutputStream prefixed;
+        private AntConsoleAnnotator aca;
+        private LineTransformationOutputStream masked;
+        Proc proc;
+        long start;
+        int exitCode;
+        long duration;
+
+        Group(ArgumentListBuilder cmd, String label, OutputStream log) {
+            this.cmd = cmd;
+            this.label = label;
+            this.log = log;
+        }
+
+        void start() throws IOException {
+            start = System.currentTimeMillis();
+            prefixed = new PrefixedOutputStream(log, ("["+label+"] ").getBytes(charset));
+            aca = new AntConsoleAnnotator(prefixed, charset);
+            masked = masker!=null ? masker.filter(aca) : null;
+            proc = launcher.launch().cmds(cmd).envs(env).stdout(masked!=null ? masked : aca).pwd(pwd).start();
+        }
+
+        /**
+         * Called once the process has exited.
+         */
+        void finish() throws IOException, InterruptedException {
+            try {
+                // returns right away, once the output has been copied
+                exitCode = proc.join();
+            } finally {
+                if (masked!=null)
+                    masked.forceEol();
+                aca.forceEol();
+                prefixed.forceEol();
+            }
+            duration = System.currentTimeMillis()-start;
+        }
+    }
+
+    /**
+     * Writes each line with a prefix, atomically with respect to the other writers of the same stream.
+     */
+    static final class PrefixedOutputStream extends LineTransformationOutputStream {
+        private final OutputStream out;
+        private final byte[] prefix;
+
+        PrefixedOutputStream(OutputStream out, byte[] prefix) {
+            this.out = out;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            synchronized (out) {
+                out.write(prefix);
+                out.write(b,0,len);
+                if (len==0 || b[len-1]!='\n')
+                    out.write('\n');   // the last line of the process
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * How often to check whether the processes have exited, in milliseconds, right after one has.
+     */
+    private static final long POLL_INTERVAL = 200;
+
+    /**
+     * How often to check at most, in milliseconds, while none exits.
+     */
+    private static final long MAX_POLL_INTERVAL = 3200;
+}
@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import hudson.FilePath;
+import hudson.model.Node;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.IOException;
+
+/**
+ * Makes Ant run independent targets concurrently within a single Ant JVM,
+ * by replacing its executor with {@link AntParallelExecutor}.
+ */
+public final class ParallelTargets {
+    private ParallelTargets() {}
+
+    /**
+     * Adds the executor, and the logger that tags the output of each target, to the Ant command line.
+     *
+     * @param targets
+     *      The targets and options of the build step. If they already pick a logger, it's left alone,
+     *      and the output of concurrent targets isn't tagged. Likewise for the number of threads.
+     * @param threads
+     *      How many targets may run at the same time, or 0 to leave it to the executor,
+     *      which then runs as many as the Ant JVM sees processors.
+     * @return
+     *      false if the node has no root directory to put the executor in.
+     */
+    public static boolean addTo(ArgumentListBuilder args, Node node, String targets, int threads) throws IOException, InterruptedException {
+        FilePath root = node==null ? null : node.getRootPath();
+        if (root==null)
+            return false;
+
+        FilePath jar = AgentJar.install(root, "ant-executor", getJar());
+        args.add("-lib", jar.getRemote());
+        args.add("-Dant.executor.class="+AntParallelExecutor.class.getName());
+        if (threads>0 && !targets.contains("-D"+AntParallelExecutor.THREADS+"="))
+            args.add("-D"+AntParallelExecutor.THREADS+"="+threads);
+        if (!(" "+targets.replaceAll("\\s+"," ")+" ").contains(" -logger "))
+            args.add("-logger", AntTaggingLogger.class.getName());
+        return true;
+    }
+
+    private static synchronized byte[] getJar() throws IOException {
+        if (jar==null)
+            jar = AgentJar.build(AntParallelExecutor.CLASSES);
+        return jar;
+    }
+
+    private static byte[] jar;
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks._ant;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Local end of an output stream that's written to from another node through
+ * a {@link hudson.remoting.RemoteOutputStream}.
+ *
+ * <p>
+ * Writes arrive asynchronously, so they can still be in flight when the remote call that
+ * produced them has already returned. The remote side closes the stream when it's done,
+ * and {@link #awaitClose(long)} waits for that. The delegate itself is never closed.
+ */
+final class RemoteSink extends OutputStream {
+    private final OutputStream out;
+    private boolean closed;
+
+    RemoteSink(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.flush();
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the remote side closes the stream, or the timeout expires.
+     */
+    synchronized void awaitClose(long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis()+timeout;
+        long remaining;
+        while (!closed && (remaining=end-System.currentTimeMillis())>0)
+            wait(remaining);
+    }
+}
@@ -23,6 +23,7 @@
  */
 package hudson.tasks.Ant;
 f=namespace(lib.FormTagLib)
+st=namespace("jelly:stapler")
 
 if (descriptor.installations.length != 0) {
     f.entry(title:_("Ant Version")) {
@@ -36,7 +37,13 @@ if (descriptor.installations.length != 0) {
 }
 
 f.entry(title:_("Targets"),field:"targets") {
-    f.expandableTextbox()
+    if (instance?.targets?.contains("\n"))
+        f.expandableTextbox()
+    else {
+        // suggests the targets of the build script in the workspace, which targets.js asks for with the build file
+        st.adjunct(includes:"hudson.tasks.Ant.targets")
+        f.textbox(clazz:"ant-targets", autoCompleteDelimChar:" ")
+    }
 }
 
 f.advanced {
@@ -49,4 +56,28 @@ f.advanced {
     f.entry(title:_("Java Options"),field:"antOpts") {
         f.expandableTextbox()
     }
+    f.entry(title:_("Execution Mode"),field:"executionMode") {
+        select(class:"setting-input",name:"ant.executionMode") {
+            hudson.tasks.Ant.ExecutionMode.values().each { m ->
+                f.option(selected:m==instance?.executionMode, value:m.name(), m.displayName)
+            }
+        }
+    }
+    f.entry(title:_("Parallel Targets"),field:"parallelism") {
+        f.textbox()
+    }
+    f.entry(title:_("Run Independent Targets Concurrently"),field:"parallelTargets") {
+        f.checkbox()
+    }
+    f.entry(title:_("Flight Recording"),field:"flightRecording") {
+        f.checkbox()
+    }
+    f.optionalBlock(title:_("Skip When Unchanged"),field:"skipWhenUnchanged",inline:true) {
+        f.entry(title:_("Inputs"),field:"inputs") {
+            f.textbox()
+        }
+        f.entry(title:_("Outputs"),field:"outputs") {
+            f.textbox()
+        }
+    }
 }
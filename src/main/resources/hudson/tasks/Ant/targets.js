@@ -0,0 +1,39 @@
+// the auto-completion of the core only sends what's been typed, but the targets come from the build file,
+// so this takes over the targets field before the core gets to it, and sends the build file along.
+Behaviour.specify("INPUT.ant-targets", "ant-targets", -1, function(e) {
+    var url = e.getAttribute("autoCompleteUrl");
+    if (url==null)  return;
+    Element.removeClassName(e, "auto-complete");
+
+    var div = document.createElement("DIV");
+    e.parentNode.insertBefore(div, $(e).next()||null);
+    e.style.position = "relative";
+
+    var ds = new YAHOO.util.XHRDataSource(url);
+    ds.responseType = YAHOO.util.XHRDataSource.TYPE_JSON;
+    ds.responseSchema = {
+        resultsList: "suggestions",
+        fields: ["name"]
+    };
+
+    var ac = new YAHOO.widget.AutoComplete(e, div, ds);
+    ac.generateRequest = function(query) {
+        var r = "?value=" + query;
+        var f = findNearBy(e, "buildFile");
+        if (f!=null)
+            r += "&buildFile=" + encodeURIComponent(f.value);
+        return r;
+    };
+    ac.autoHighlight = false;
+    ac.prehighlightClassName = "yui-ac-prehighlight";
+    ac.animSpeed = 0;
+    ac.formatResult = ac.formatEscapedResult;
+    ac.useShadow = true;
+    ac.delimChar = e.getAttribute("autoCompleteDelimChar");
+    ac.doBeforeExpandContainer = function(textbox, container) {
+        container.style.width = textbox.clientWidth + "px";
+        var Dom = YAHOO.util.Dom;
+        Dom.setXY(container, [Dom.getX(textbox), Dom.getY(textbox)+textbox.offsetHeight]);
+        return true;
+    };
+});
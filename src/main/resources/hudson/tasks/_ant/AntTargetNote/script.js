@@ -2,6 +2,7 @@
     // created on demand
     var outline = null;
     var loading = false;
+    var indexed = false;    // true if the outline came from the index
 
     var queue = []; // ant targets are queued up until we load outline.
 
@@ -10,19 +11,45 @@
 
         if (!loading) {
             loading = true;
-            var u = new Ajax.Updater(document.getElementById("side-panel"),
-                rootURL+"/descriptor/hudson.tasks._ant.AntTargetNote/outline",
-                {insertion: Insertion.Bottom, onComplete: function() {
-                    if (!u.success())   return; // we can't us onSuccess because that kicks in before onComplete
-                    outline = document.getElementById("console-outline-body");
-                    loading = false;
-                    queue.each(handle);
-                }});
+            if (location.pathname.match(/\/console(Full)?$/))
+                loadIndex();
+            else
+                loadScan();
         }
         return true;
     }
 
+    // once the build is over, the outline comes from the index of the build, which knows all the targets
+    // even when the console is truncated. links jump to the output of each target.
+    function loadIndex() {
+        var u = new Ajax.Updater({success: document.getElementById("side-panel")},
+            "antTargets/outline",
+            {insertion: Insertion.Bottom, method: "get", onComplete: function() {
+                if (!u.success()) {
+                    loadScan();     // still running, or no index
+                    return;
+                }
+                outline = document.getElementById("console-outline-body");
+                indexed = true;
+                loading = false;
+                queue = [];
+            }});
+    }
+
+    // otherwise the outline is put together from the targets in the console, as they are rendered
+    function loadScan() {
+        var u = new Ajax.Updater(document.getElementById("side-panel"),
+            rootURL+"/descriptor/hudson.tasks._ant.AntTargetNote/outline",
+            {insertion: Insertion.Bottom, onComplete: function() {
+                if (!u.success())   return; // we can't us onSuccess because that kicks in before onComplete
+                outline = document.getElementById("console-outline-body");
+                loading = false;
+                queue.each(handle);
+            }});
+    }
+
     function handle(e) {
+        if (indexed)    return;
         if (loadOutline()) {
             queue.push(e);
         } else {
@@ -26,20 +26,39 @@ package hudson.tasks;
 import com.gargoylesoftware.htmlunit.html.HtmlButton;
 import com.gargoylesoftware.htmlunit.html.HtmlForm;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import hudson.EnvVars;
 import hudson.Functions;
+import hudson.Launcher;
+import hudson.Util;
 import hudson.matrix.Axis;
 import hudson.matrix.AxisList;
 import hudson.matrix.MatrixRun;
 import hudson.matrix.MatrixProject;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
 import hudson.model.Cause.UserCause;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.EnvironmentContributor;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Node;
 import hudson.model.ParametersDefinitionProperty;
 import hudson.model.PasswordParameterDefinition;
+import hudson.model.Result;
+import hudson.model.Run;
 import hudson.model.StringParameterDefinition;
+import hudson.model.TaskListener;
 import hudson.tasks.Ant.AntInstallation;
 import hudson.tasks.Ant.AntInstallation.DescriptorImpl;
 import hudson.tasks.Ant.AntInstaller;
+import hudson.tasks._ant.AntCacheAction;
+import hudson.tasks._ant.AntEnvironmentCache;
+import hudson.tasks._ant.AntFlightRecordingAction;
+import hudson.tasks._ant.AntResourceAction;
+import hudson.tasks._ant.AntResourceSampler;
+import hudson.tasks._ant.AntStallDetector;
+import hudson.tasks._ant.AntTargetsAction;
+import hudson.tasks._ant.AntThreadDumpAction;
 import hudson.tools.InstallSourceProperty;
 import hudson.tools.ToolProperty;
 import hudson.tools.ToolPropertyDescriptor;
@@ -48,6 +67,11 @@ import org.jvnet.hudson.test.Bug;
 import org.jvnet.hudson.test.ExtractResourceSCM;
 import org.jvnet.hudson.test.HudsonTestCase;
 import org.jvnet.hudson.test.SingleFileSCM;
+import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.TestExtension;
+
+import java.io.File;
+import java.util.Arrays;
 
 /**
  * @author Kohsuke Kawaguchi
@@ -73,6 +97,7 @@ public class AntTest extends HudsonTestCase {
         assertEquals("-b",a.getAntOpts());
         assertEquals("c.xml",a.getBuildFile());
         assertEquals("d=e",a.getProperties());
+        assertEquals(Ant.ExecutionMode.FORK,a.getExecutionMode());
     }
 
     /**
@@ -189,6 +214,393 @@ public class AntTest extends HudsonTestCase {
                    log.matches("(?s).*vFOOHOME=Foo (?!" + homeVar + ").*"));
     }
 
+    public void testPropertyFile() throws Exception {
+        String antName = configureDefaultAnt().getName();
+        FreeStyleProject project = createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("ant-job.zip")));
+        project.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("vFOO", "foo", ""),
+                new PasswordParameterDefinition("password", "12345", "")));
+        project.getBuildersList().add(new Ant("", antName, null, null, "vBAR=bar\n"));
+        int threshold = Ant.PROPERTY_FILE_THRESHOLD;
+        Ant.PROPERTY_FILE_THRESHOLD = 1;
+        try {
+            FreeStyleBuild build = project.scheduleBuild2(0, new UserCause()).get();
+            assertBuildStatusSuccess(build);
+            String log = getLog(build);
+            assertTrue(log, log.contains("-propertyfile"));
+            assertTrue(log, log.contains("vFOO=foo"));
+            assertTrue(log, log.contains("vBAR=bar"));
+            // still on the command line, masked
+            assertTrue(log, log.contains("-Dpassword=********"));
+            assertFalse(log, log.contains("-DvFOO=foo"));
+        } finally {
+            Ant.PROPERTY_FILE_THRESHOLD = threshold;
+        }
+    }
+
+    public void testEnvironmentOfEarlierStepsIsReused() throws Exception {
+        String antName = configureDefaultAnt().getName();
+        FreeStyleProject project = createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("ant-job.zip")));
+        final int[] computed = new int[2];
+        project.getBuildersList().add(new Ant("", antName, null, null, null));
+        project.getBuildersList().add(new CountEnvironments(computed, 0));
+        project.getBuildersList().add(new Ant("", antName, null, null, null));
+        project.getBuildersList().add(new CountEnvironments(computed, 1));
+        FreeStyleBuild build = project.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(build);
+        assertTrue(computed[0]>0);
+        assertEquals("the second step computed the environment again", computed[0], computed[1]);
+        // the cache isn't persisted with the build
+        assertFalse(Util.loadFile(new File(build.getRootDir(), "build.xml")).contains(AntEnvironmentCache.class.getName()));
+    }
+
+    @TestExtension("testEnvironmentOfEarlierStepsIsReused")
+    public static class CountingContributor extends EnvironmentContributor {
+        static int count;
+
+        @Override
+        public void buildEnvironmentFor(Run r, EnvVars envs, TaskListener listener) {
+            count++;
+        }
+    }
+
+    private static class CountEnvironments extends TestBuilder {
+        private final int[] computed;
+        private final int i;
+
+        CountEnvironments(int[] computed, int i) {
+            this.computed = computed;
+            this.i = i;
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) {
+            computed[i] = CountingContributor.count;
+            return true;
+        }
+    }
+
+    public void testEnvironmentIsComputedAgainForNewActions() throws Exception {
+        String antName = configureDefaultAnt().getName();
+        FreeStyleProject project = createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("ant-job.zip")));
+        project.getBuildersList().add(new Ant("", antName, null, null, "vFOO=$FOO\n"));
+        // a build step in between that changes the environment
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) {
+                build.addAction(new FooAction("changed"));
+                return true;
+            }
+        });
+        project.getBuildersList().add(new Ant("", antName, null, null, "vFOO=$FOO\n"));
+        FreeStyleBuild build = project.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(build);
+        assertLogContains("vFOO=changed", build);
+    }
+
+    /**
+     * Like EnvInject does, a build step changes what an existing action contributes.
+     */
+    public void testEnvironmentIsComputedAgainForChangedActions() throws Exception {
+        String antName = configureDefaultAnt().getName();
+        FreeStyleProject project = createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("ant-job.zip")));
+        final FooAction foo = new FooAction("before");
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) {
+                build.addAction(foo);
+                return true;
+            }
+        });
+        project.getBuildersList().add(new Ant("", antName, null, null, "vFOO=$FOO\n"));
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) {
+                foo.value = "changed";
+                return true;
+            }
+        });
+        project.getBuildersList().add(new Ant("", antName, null, null, "vFOO=$FOO\n"));
+        FreeStyleBuild build = project.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(build);
+        assertLogContains("vFOO=before", build);
+        assertLogContains("vFOO=changed", build);
+    }
+
+    private static class FooAction implements EnvironmentContributingAction {
+        String value;
+
+        FooAction(String value) {
+            this.value = value;
+        }
+
+        public void buildEnvVars(AbstractBuild<?,?> build, EnvVars env) {
+            env.put("FOO", value);
+        }
+        public String getIconFileName() {
+            return null;
+        }
+        public String getDisplayName() {
+            return null;
+        }
+        public String getUrlName() {
+            return null;
+        }
+    }
+
+    public void testInstallationCacheIsInvalidated() throws Exception {
+        AntInstallation ant = configureDefaultAnt();
+        FreeStyleProject project = createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("ant-job.zip")));
+        project.getBuildersList().add(new Ant("", ant.getName(), null, null, null));
+        assertBuildStatusSuccess(project.scheduleBuild2(0, new UserCause()).get());
+
+        // same name, but there's no Ant there
+        hudson.getDescriptorByType(Ant.DescriptorImpl.class).setInstallations(
+                new AntInstallation(ant.getName(), createTmpDir().getPath(), NO_PROPERTIES));
+        FreeStyleBuild build = project.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatus(Result.FAILURE, build);
+        assertLogContains(hudson.tasks._ant.Messages.Ant_ExecutableNotFound(ant.getName()), build);
+    }
+
+    public void testDaemon() throws Exception {
+        assertWithoutFork(Ant.ExecutionMode.DAEMON);
+    }
+
+    public void testEmbedded() throws Exception {
+        assertWithoutFork(Ant.ExecutionMode.EMBEDDED, createSlave());
+    }
+
+    /**
+     * A build that takes the JVM down with it mustn't take the master.
+     */
+    public void testEmbeddedNotOnMaster() throws Exception {
+        String antName = configureDefaultAnt().getName();
+        FreeStyleProject project = createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("ant-job.zip")));
+        project.getBuildersList().add(new Ant("", antName, null, null, null, Ant.ExecutionMode.EMBEDDED, 0, false, false, null, null, false));
+        FreeStyleBuild build = project.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(build);
+        assertLogContains(hudson.tasks._ant.Messages.Ant_EmbeddedUnavailable(), build);
+    }
+
+    private void assertWithoutFork(Ant.ExecutionMode mode) throws Exception {
+        assertWithoutFork(mode, null);
+    }
+
+    private void assertWithoutFork(Ant.ExecutionMode mode, Node node) throws Exception {
+        String antName = configureDefaultAnt().getName();
+        FreeStyleProject project = createFreeStyleProject();
+        if (node!=null)
+            project.setAssignedNode(node);
+        project.setScm(new ExtractResourceSCM(getClass().getResource("ant-job.zip")));
+        project.getBuildersList().add(new Ant("-DvFOO=foo", antName, null, null, "vBAR=bar\n", mode, 0, false, false, null, null, false));
+        // the second build reuses what the first one has set up
+        for (int i=0; i<2; i++) {
+            FreeStyleBuild build = project.scheduleBuild2(0, new UserCause()).get();
+            assertBuildStatusSuccess(build);
+            String log = getLog(build);
+            assertFalse(log, log.contains("Forking Ant instead"));
+            assertTrue(log, log.contains("BUILD SUCCESSFUL"));
+            assertTrue(log, log.contains("vFOO=foo"));
+            assertTrue(log, log.contains("vBAR=bar"));
+        }
+    }
+
+    public void testParallelTargets() throws Exception {
+        String antName = configureDefaultAnt().getName();
+        FreeStyleProject project = createFreeStyleProject();
+        project.setScm(new SingleFileSCM("build.xml", "<project>"
+                + "<target name='init'/>"
+                + "<target name='a' depends='init'><echo>in a</echo></target>"
+                + "<target name='b' depends='init'><echo>in b</echo></target>"
+                + "<target name='c'><echo>in c</echo></target>"
+                + "</project>"));
+        project.getBuildersList().add(new Ant("a b c", antName, null, null, null, null, 2, false, false, null, null, false));
+        FreeStyleBuild build = project.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(build);
+        String log = getLog(build);
+        // a and b share init, so they have to go to the same process
+        assertTrue(log, log.matches("(?s).*\\[a,b\\] +\\[echo\\] in b.*"));
+        assertTrue(log, log.matches("(?s).*\\[c\\] +\\[echo\\] in c.*"));
+        assertTrue(log, log.contains("one after another"));
+    }
+
+    public void testParallelTargetsInOneJvm() throws Exception {
+        String antName = configureDefaultAnt().getName();
+        FreeStyleProject project = createFreeStyleProject();
+        project.setScm(new SingleFileSCM("build.xml", "<project default='all'>"
+                + "<target name='a'><sleep seconds='1'/><echo>in a</echo></target>"
+                + "<target name='b'><echo>in b</echo></target>"
+                + "<target name='all' depends='a,b'><echo>in all</echo></target>"
+                + "</project>"));
+        project.getBuildersList().add(new Ant("all", antName, null, null, null, null, 0, true, false, null, null, false));
+        FreeStyleBuild build = project.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(build);
+        String log = getLog(build);
+        // b doesn't wait for a
+        assertTrue(log, log.indexOf("in b")<log.indexOf("in a"));
+        assertTrue(log, log.indexOf("in a")<log.indexOf("in all"));
+        assertEquals(3, build.getAction(AntTargetsAction.class).getTargets().size());
+    }
+
+    public void testParallelTargetsKeepCommandLineOrder() throws Exception {
+        String antName = configureDefaultAnt().getName();
+        FreeStyleProject project = createFreeStyleProject();
+        project.setScm(new SingleFileSCM("build.xml", "<project>"
+                + "<target name='clean'><sleep seconds='1'/><echo>in clean</echo></target>"
+                + "<target name='compile'><echo>in compile</echo></target>"
+                + "<target name='dist' depends='compile'><echo>in dist</echo></target>"
+                + "</project>"));
+        project.getBuildersList().add(new Ant("clean dist", antName, null, null, null, null, 0, true, false, null, null, false));
+        FreeStyleBuild build = project.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(build);
+        String log = getLog(build);
+        // dist and what it depends on wait for clean, even though they don't depend on it
+        assertTrue(log, log.indexOf("in clean")<log.indexOf("in compile"));
+        assertTrue(log, log.indexOf("in compile")<log.indexOf("in dist"));
+    }
+
+    public void testCoalesce() throws Exception {
+        String antName = configureDefaultAnt().getName();
+        FreeStyleProject project = createFreeStyleProject();
+        project.setScm(new SingleFileSCM("build.xml", "<project>"
+                + "<target name='a'><echo>in a</echo></target>"
+                + "<target name='b'><fail>b is broken</fail></target>"
+                + "<target name='c'><echo>in c</echo></target>"
+                + "</project>"));
+        project.getBuildersList().add(new Ant("a", antName, null, null, null));
+        project.getBuildersList().add(new Ant("c", antName, null, null, null));
+        boolean coalesce = Ant.COALESCE;
+        Ant.COALESCE = true;
+        try {
+            FreeStyleBuild build = project.scheduleBuild2(0, new UserCause()).get();
+            assertBuildStatusSuccess(build);
+            String log = getLog(build);
+            assertEquals(log, log.indexOf("BUILD SUCCESSFUL"), log.lastIndexOf("BUILD SUCCESSFUL"));
+            assertTrue(log, log.contains("in c"));
+            assertLogContains(hudson.tasks._ant.Messages.Ant_Coalesced(), build);
+
+            // the failure is reported by the second build step, and the third one doesn't run
+            project.getBuildersList().replaceBy(Arrays.asList(new Ant("a", antName, null, null, null),
+                    new Ant("b", antName, null, null, null), new Ant("c", antName, null, null, null)));
+            build = project.scheduleBuild2(0, new UserCause()).get();
+            assertBuildStatus(Result.FAILURE, build);
+            log = getLog(build);
+            assertTrue(log, log.contains("in a"));
+            assertTrue(log, log.contains("b is broken"));
+            assertFalse(log, log.contains("in c"));
+            assertEquals(2, build.getAction(AntTargetsAction.class).getTargets().size());
+        } finally {
+            Ant.COALESCE = coalesce;
+        }
+    }
+
+    public void testSkipWhenUnchanged() throws Exception {
+        String antName = configureDefaultAnt().getName();
+        FreeStyleProject project = createFreeStyleProject();
+        project.setScm(new SingleFileSCM("build.xml", "<project default='dist'>"
+                + "<target name='dist'><mkdir dir='dist'/><echo file='dist/out.txt'>${v}</echo></target>"
+                + "</project>"));
+        project.getBuildersList().add(new Ant("-Dv=1", antName, null, null, null, null, 0, false, true, "build.xml", "dist/**", false));
+
+        FreeStyleBuild build = project.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(build);
+        assertLogContains("BUILD SUCCESSFUL", build);
+
+        // nothing has changed, so the output comes back without running Ant
+        build.getWorkspace().child("dist").deleteRecursive();
+        build = project.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(build);
+        assertLogNotContains("BUILD SUCCESSFUL", build);
+        assertEquals("1", build.getWorkspace().child("dist/out.txt").readToString().trim());
+        assertEquals(1, build.getAction(AntCacheAction.class).getHits());
+
+        project.getBuildersList().replace(new Ant("-Dv=2", antName, null, null, null, null, 0, false, true, "build.xml", "dist/**", false));
+        build = project.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(build);
+        assertEquals("2", build.getWorkspace().child("dist/out.txt").readToString().trim());
+    }
+
+    public void testStallDetector() throws Exception {
+        String antName = configureDefaultAnt().getName();
+        FreeStyleProject project = createFreeStyleProject();
+        project.setScm(new SingleFileSCM("build.xml", "<project default='hang'>"
+                + "<target name='hang'><echo>hanging</echo><sleep seconds='300'/></target>"
+                + "</project>"));
+        project.getBuildersList().add(new Ant("", antName, null, null, null));
+        long dumpAfter = AntStallDetector.DUMP_AFTER, abortAfter = AntStallDetector.ABORT_AFTER, interval = AntStallDetector.CHECK_INTERVAL;
+        AntStallDetector.DUMP_AFTER = 2000;
+        AntStallDetector.ABORT_AFTER = 5000;
+        AntStallDetector.CHECK_INTERVAL = 200;
+        try {
+            long start = System.currentTimeMillis();
+            FreeStyleBuild build = project.scheduleBuild2(0, new UserCause()).get();
+            assertBuildStatus(Result.ABORTED, build);
+            assertTrue(System.currentTimeMillis()-start < 120*1000);
+            assertNotNull(getLog(build), build.getAction(AntThreadDumpAction.class));
+            assertTrue(new File(build.getRootDir(), "ant-thread-dumps").list().length>0);
+        } finally {
+            AntStallDetector.DUMP_AFTER = dumpAfter;
+            AntStallDetector.ABORT_AFTER = abortAfter;
+            AntStallDetector.CHECK_INTERVAL = interval;
+        }
+    }
+
+    public void testResourceSampler() throws Exception {
+        if (!new File("/proc/self/stat").exists())
+            return;     // only works on Linux
+        String antName = configureDefaultAnt().getName();
+        FreeStyleProject project = createFreeStyleProject();
+        project.setScm(new SingleFileSCM("build.xml", "<project default='wait'>"
+                + "<target name='wait'><sleep seconds='2'/></target>"
+                + "</project>"));
+        project.getBuildersList().add(new Ant("wait", antName, null, null, null));
+        long interval = AntResourceSampler.INTERVAL;
+        AntResourceSampler.INTERVAL = 100;
+        try {
+            FreeStyleBuild build = project.scheduleBuild2(0, new UserCause()).get();
+            assertBuildStatusSuccess(build);
+            AntResourceAction a = build.getAction(AntResourceAction.class);
+            assertEquals(1, a.getSeries().size());
+            AntResourceAction.Series s = a.getSeries().get(0);
+            assertEquals("wait", s.getLabel());
+            assertTrue(s.size()>5);
+            assertFalse(s.getProcesses().isEmpty());
+            assertTrue(a.getPeakRss()>0);
+            assertTrue(a.getCpuTime()>0);
+        } finally {
+            AntResourceSampler.INTERVAL = interval;
+        }
+    }
+
+    public void testFlightRecording() throws Exception {
+        String antName = configureDefaultAnt().getName();
+        FreeStyleProject project = createFreeStyleProject();
+        project.setScm(new SingleFileSCM("build.xml", "<project default='a'><target name='a'><echo>in a</echo></target></project>"));
+        project.getBuildersList().add(new Ant("a", antName, null, null, null, null, 0, false, false, null, null, true));
+        FreeStyleBuild build = project.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(build);
+        String log = getLog(build);
+        if (log.contains(hudson.tasks._ant.Messages.AntFlightRecorder_UnknownJvm()))
+            return;     // neither JAVA_HOME nor a JDK on the PATH
+        if (System.getProperty("java.version").startsWith("1.") && build.getAction(AntFlightRecordingAction.class)==null)
+            return;     // no JFR in this JVM
+
+        AntFlightRecordingAction a = build.getAction(AntFlightRecordingAction.class);
+        assertEquals(1, a.getRecordings().size());
+        AntFlightRecordingAction.Recording r = a.getRecordings().get(0);
+        assertEquals("a", r.getLabel());
+        assertNotNull(r.getFile());
+        assertTrue(new File(build.getRootDir(), "ant-flight-recordings/"+r.getFile()).length()>0);
+        if (r.getSummary().getError()==null)
+            assertTrue(r.getSummary().getDuration()>0);
+    }
+
     @Bug(7108)
     public void testEscapeXmlInParameters() throws Exception {
         String antName = configureDefaultAnt().getName();
@@ -0,0 +1,125 @@
+package hudson.tasks._ant;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link AntAdmission}.
+ */
+public class AntAdmissionTest {
+    private final PrintStream log = new PrintStream(new ByteArrayOutputStream());
+
+    @Test
+    public void testHeap() {
+        assertEquals(AntAdmission.DEFAULT_HEAP, AntAdmission.getHeap(null));
+        assertEquals(AntAdmission.DEFAULT_HEAP, AntAdmission.getHeap("-Dfoo=-Xmx2g"));
+        assertEquals(512, AntAdmission.getHeap("-Xms128m -Xmx512m"));
+        // the last one wins, like in the JVM
+        assertEquals(2048, AntAdmission.getHeap("-Xmx512m -XX:MaxHeapSize=2G"));
+        assertEquals(1, AntAdmission.getHeap("-Xmx1024k"));
+        assertEquals(64, AntAdmission.getHeap("-Xmx67108864"));
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        AntAdmission a = new AntAdmission("node");
+        AntAdmission.Ticket t1 = a.acquire(2, 0, 1, 1024, log);
+        AntAdmission.Ticket t2 = a.acquire(2, 0, 1, 1024, log);
+        assertEquals(2, a.getProcesses());
+        assertEquals(2048, a.getMemory());
+        t1.release();
+        t2.release();
+
+        // too large on its own, but let in when nothing else runs
+        AntAdmission.Ticket t3 = a.acquire(0, 1024, 2, 4096, log);
+        assertEquals(0, t3.getWaited());
+        t3.release();
+        assertEquals(0, a.getProcesses());
+        assertEquals(0, a.getMemory());
+    }
+
+    /**
+     * A large build step isn't overtaken by the small ones that arrive after it.
+     */
+    @Test
+    public void testFairness() throws Exception {
+        final AntAdmission a = new AntAdmission("node");
+        AntAdmission.Ticket running = a.acquire(0, 4096, 1, 1024, log);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(2);
+
+        Thread large = start(a, 4096, "large", order, done);
+        waitForQueue(a, 1);
+        Thread small = start(a, 1024, "small", order, done);
+        waitForQueue(a, 2);
+        // the small one would fit, but isn't let in before the large one
+        Thread.sleep(100);
+        assertTrue(order.isEmpty());
+
+        running.release();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals("large", order.get(0));
+        assertEquals("small", order.get(1));
+        large.join();
+        small.join();
+    }
+
+    @Test
+    public void testInterrupt() throws Exception {
+        final AntAdmission a = new AntAdmission("node");
+        AntAdmission.Ticket running = a.acquire(1, 0, 1, 1024, log);
+        final boolean[] interrupted = new boolean[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    a.acquire(1, 0, 1, 1024, log);
+                } catch (InterruptedException e) {
+                    interrupted[0] = true;
+                }
+            }
+        };
+        t.start();
+        waitForQueue(a, 1);
+        t.interrupt();
+        t.join();
+        assertTrue(interrupted[0]);
+        assertEquals(0, a.getQueueLength());
+        running.release();
+    }
+
+    private Thread start(final AntAdmission a, final long memory, final String name, final List<String> order, final CountDownLatch done) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    AntAdmission.Ticket t = a.acquire(0, 4096, 1, memory, log);
+                    order.add(name);
+                    done.countDown();
+                    // the small one only goes once the large one is done
+                    Thread.sleep(50);
+                    t.release();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    private void waitForQueue(AntAdmission a, int n) throws InterruptedException {
+        for (int i=0; i<1000 && a.getQueueLength()<n; i++)
+            Thread.sleep(10);
+        assertEquals(n, a.getQueueLength());
+    }
+}
@@ -0,0 +1,31 @@
+package hudson.tasks._ant;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link AntCoalescedSteps}.
+ */
+public class AntCoalescedStepsTest {
+    @Test
+    public void testFailedStep() {
+        List<List<String>> plans = Arrays.asList(
+                Arrays.asList("init","compile"),
+                Arrays.asList("init","compile","test"),
+                Arrays.asList("init","dist"));
+
+        assertEquals(0, AntCoalescedSteps.getFailedStep(plans, Collections.<String>emptyList()));
+        assertEquals(0, AntCoalescedSteps.getFailedStep(plans, Arrays.asList("init")));
+        assertEquals(0, AntCoalescedSteps.getFailedStep(plans, Arrays.asList("init","compile")));
+        // the second run of init belongs to the second step
+        assertEquals(1, AntCoalescedSteps.getFailedStep(plans, Arrays.asList("init","compile","init")));
+        // targets called with <antcall> don't get in the way
+        assertEquals(1, AntCoalescedSteps.getFailedStep(plans, Arrays.asList("init","compile","init","compile","test","helper")));
+        assertEquals(2, AntCoalescedSteps.getFailedStep(plans, Arrays.asList("init","compile","init","compile","test","init","dist")));
+    }
+}
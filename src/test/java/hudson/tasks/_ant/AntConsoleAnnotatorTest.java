@@ -0,0 +1,122 @@
+package hudson.tasks._ant;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the {@link AntConsoleAnnotator} class.
+ */
+public class AntConsoleAnnotatorTest {
+
+    @Test
+    public void testAsciiCompatibleCharsets() {
+        assertTrue(AntConsoleAnnotator.isAsciiCompatible(Charset.forName("UTF-8")));
+        assertTrue(AntConsoleAnnotator.isAsciiCompatible(Charset.forName("US-ASCII")));
+        assertTrue(AntConsoleAnnotator.isAsciiCompatible(Charset.forName("ISO-8859-1")));
+        assertTrue(AntConsoleAnnotator.isAsciiCompatible(Charset.forName("windows-1252")));
+        assertFalse(AntConsoleAnnotator.isAsciiCompatible(Charset.forName("UTF-16BE")));
+    }
+
+    @Test
+    public void testEncodedNotesAreIdentical() throws IOException {
+        assertArrayEquals(new AntTargetNote().encodeToBytes().toByteArray(), AntConsoleAnnotator.EncodedNotes.TARGET);
+        assertArrayEquals(new AntOutcomeNote().encodeToBytes().toByteArray(), AntConsoleAnnotator.EncodedNotes.OUTCOME);
+    }
+
+    @Test
+    public void testAnnotateUtf8() throws IOException {
+        assertAnnotated(Charset.forName("UTF-8"));
+    }
+
+    @Test
+    public void testAnnotateWithDecodingFallback() throws IOException {
+        assertAnnotated(Charset.forName("UTF-16BE"));
+    }
+
+    @Test
+    public void testTargetTimings() throws IOException {
+        AntTargetsAction targets = new AntTargetsAction();
+        AntConsoleAnnotator aca = new AntConsoleAnnotator(new ByteArrayOutputStream(), Charset.forName("UTF-8"), targets);
+        aca.write("Buildfile: build.xml\n\nbar:\n     [echo] def\n\nfoo:\n     [echo] abc\n\nBUILD SUCCESSFUL\n".getBytes("UTF-8"));
+        aca.forceEol();
+
+        List<AntTargetsAction.Target> list = targets.getTargets();
+        assertEquals(2, list.size());
+        assertEquals("bar", list.get(0).getName());
+        assertEquals("foo", list.get(1).getName());
+        assertTrue(list.get(0).getStartTime()<=list.get(1).getStartTime());
+        assertTrue(list.get(1).getDuration()>=0);
+    }
+
+    /**
+     * Our own lines go between those of Ant, and count towards where the targets after them are.
+     */
+    @Test
+    public void testPrintln() throws IOException {
+        final long[] offset = new long[1];
+        final int[] line = new int[1];
+        AntTargetsAction targets = new AntTargetsAction() {
+            @Override
+            public synchronized void targetStarted(String name, long timestamp, long o, int l) {
+                offset[0] = o;
+                line[0] = l;
+            }
+        };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AntConsoleAnnotator aca = new AntConsoleAnnotator(out, Charset.forName("UTF-8"), targets);
+        aca.write("Buildfile: build.xml\n    [input] Continue? ".getBytes("UTF-8"));
+        aca.println("Stalled\nfor a while");
+        aca.write("y\n\nfoo:\n".getBytes("UTF-8"));
+        aca.forceEol();
+
+        String s = out.toString("UTF-8");
+        assertTrue(s, s.startsWith("Buildfile: build.xml\nStalled\nfor a while\n    [input] Continue? y\n\n"));
+        byte[] b = out.toByteArray();
+        assertEquals(b.length-"foo:\n".length()-AntConsoleAnnotator.EncodedNotes.TARGET.length, offset[0]);
+        assertEquals(5, line[0]);
+    }
+
+    /**
+     * Both the byte-level fast path and the decoding path need to produce the same output.
+     */
+    private void assertAnnotated(Charset cs) throws IOException {
+        byte[] target = new AntTargetNote().encodeToBytes().toByteArray();
+        byte[] outcome = new AntOutcomeNote().encodeToBytes().toByteArray();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream in = new ByteArrayOutputStream();
+        line(cs, in, expected, null, "Buildfile: build.xml\n");
+        line(cs, in, expected, null, "\n");
+        line(cs, in, expected, target, "init:\r\n");
+        line(cs, in, expected, null, "not-a-target:\n");
+        line(cs, in, expected, null, "\n");
+        line(cs, in, expected, null, "    [echo] has space:\n");
+        line(cs, in, expected, null, "\n");
+        line(cs, in, expected, target, "caf\u00e9:\n");
+        line(cs, in, expected, null, "\n");
+        line(cs, in, expected, outcome, "BUILD SUCCESSFUL\r\n");
+        line(cs, in, expected, outcome, "BUILD FAILED\n");
+        line(cs, in, expected, null, "BUILD FAILED!\n");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AntConsoleAnnotator aca = new AntConsoleAnnotator(out, cs);
+        aca.write(in.toByteArray());
+        aca.forceEol();
+
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+    }
+
+    private void line(Charset cs, ByteArrayOutputStream in, ByteArrayOutputStream expected, byte[] note, String line) throws IOException {
+        byte[] b = line.getBytes(cs.name());
+        in.write(b);
+        if (note!=null)
+            expected.write(note);
+        expected.write(b);
+    }
+}
@@ -0,0 +1,59 @@
+package hudson.tasks._ant;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link AntErgonomics}.
+ */
+public class AntErgonomicsTest {
+    private static final long GB = 1024L*1024*1024;
+    private static final AntJvm JAVA_11 = AntJvm.parse("11.0.2", null);
+
+    @Test
+    public void testShareOfTheNode() {
+        assertEquals(Arrays.asList("-XX:ActiveProcessorCount=2",
+                "-XX:ParallelGCThreads=2", "-XX:ConcGCThreads=1", "-Xmx2048m"),
+                AntErgonomics.getOptions(16, 32*GB, 8, null, JAVA_11));
+        // never less than one processor, nor a tiny heap
+        assertEquals(Arrays.asList("-XX:ActiveProcessorCount=1",
+                "-XX:ParallelGCThreads=1", "-XX:ConcGCThreads=1", "-Xmx256m"),
+                AntErgonomics.getOptions(2, GB, 4, null, JAVA_11));
+        // a node to itself needs nothing
+        assertEquals(Collections.emptyList(), AntErgonomics.getOptions(16, 32*GB, 1, null, JAVA_11));
+    }
+
+    @Test
+    public void testUserOptionsWin() {
+        assertEquals(Arrays.asList("-XX:ActiveProcessorCount=4", "-XX:ConcGCThreads=1"),
+                AntErgonomics.getOptions(16, 32*GB, 4, "-Xmx6g -XX:ParallelGCThreads=8 -Dfoo=bar", JAVA_11));
+        assertFalse(AntErgonomics.getOptions(16, 32*GB, 4, "-XX:MaxRAMPercentage=25", JAVA_11).contains("-Xmx4096m"));
+        // without knowing the memory, the heap is left alone
+        assertEquals(Arrays.asList("-XX:ActiveProcessorCount=4",
+                "-XX:ParallelGCThreads=4", "-XX:ConcGCThreads=1"),
+                AntErgonomics.getOptions(16, -1, 4, "", JAVA_11));
+    }
+
+    @Test
+    public void testOnlyOptionsTheJvmUnderstands() {
+        List<String> all = Arrays.asList("-XX:ActiveProcessorCount=4", "-XX:ParallelGCThreads=4", "-XX:ConcGCThreads=1");
+        List<String> old = Arrays.asList("-XX:ParallelGCThreads=4", "-XX:ConcGCThreads=1");
+        assertEquals(all, AntErgonomics.getOptions(16, -1, 4, null, AntJvm.parse("1.8.0_191", null)));
+        assertEquals(old, AntErgonomics.getOptions(16, -1, 4, null, AntJvm.parse("1.8.0_181", null)));
+        assertEquals(old, AntErgonomics.getOptions(16, -1, 4, null, AntJvm.parse("9.0.4", null)));
+        assertEquals(all, AntErgonomics.getOptions(16, -1, 4, null, AntJvm.parse("17", null)));
+        // nor when it can't tell
+        assertEquals(old, AntErgonomics.getOptions(16, -1, 4, null, null));
+    }
+
+    @Test
+    public void testMemory() {
+        // whatever the node is, it has some
+        assertTrue(AntErgonomics.getMemory()!=0);
+    }
+}
@@ -0,0 +1,148 @@
+package hudson.tasks._ant;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static hudson.tasks._ant.AntEventListener.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link AntEvents}.
+ */
+public class AntEventsTest {
+
+    @Test
+    public void testDecodeInSmallPieces() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        record(out, TARGET_STARTED, 1000, "compile", false);
+        record(out, TASK_STARTED, 1001, "javac", false);
+        record(out, TASK_FINISHED, 1500, "javac", false);
+        // <antcall> makes targets nest
+        record(out, TARGET_STARTED, 1600, "caf\u00e9", false);
+        record(out, TARGET_FINISHED, 1700, "caf\u00e9", false);
+        record(out, TARGET_FINISHED, 2000, "compile", true);
+        byte[] bytes = buf.toByteArray();
+
+        AntTargetsAction targets = new AntTargetsAction();
+        targets.stepStarted(0, true);
+        AntEvents.Decoder decoder = new AntEvents.Decoder(targets);
+        // feed it in odd chunks, as the channel would
+        for (int i=0; i<bytes.length; i+=3)
+            decoder.write(bytes, i, Math.min(3, bytes.length-i));
+        decoder.close();
+
+        List<AntTargetsAction.Target> list = targets.getTargets();
+        assertEquals(2, list.size());
+        assertEquals("compile", list.get(0).getName());
+        assertEquals(1000, list.get(0).getDuration());
+        assertEquals("caf\u00e9", list.get(1).getName());
+        assertEquals(100, list.get(1).getDuration());
+    }
+
+    @Test
+    public void testConsoleTargetsAreIgnoredWithEvents() {
+        AntTargetsAction targets = new AntTargetsAction();
+        targets.stepStarted(0, true);
+        targets.targetStarted("compile", 1000, 0, 0);
+        targets.stepFinished(2000);
+        assertTrue(targets.getTargets().isEmpty());
+    }
+
+    /**
+     * Many builds at the same time still only take one thread to receive their events.
+     */
+    @Test
+    public void testReceiverThreadIsShared() throws Exception {
+        final int n = 100;
+        final CountDownLatch closed = new CountDownLatch(n);
+        List<ByteArrayOutputStream> sinks = new ArrayList<ByteArrayOutputStream>();
+        List<Integer> ports = new ArrayList<Integer>();
+        // make sure the receiver thread is counted as already there
+        new AntEvents.Close(new AntEvents.Open(new ByteArrayOutputStream()).call()).call();
+        int before = Thread.activeCount();
+
+        for (int i=0; i<n; i++) {
+            ByteArrayOutputStream sink = new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    closed.countDown();
+                }
+            };
+            sinks.add(sink);
+            ports.add(new AntEvents.Open(sink).call());
+        }
+        List<Socket> sockets = new ArrayList<Socket>();
+        for (int i=0; i<n; i++) {
+            Socket s = new Socket(InetAddress.getByName(null), ports.get(i));
+            sockets.add(s);
+            s.getOutputStream().write(("events of #"+i).getBytes("US-ASCII"));
+        }
+        assertTrue(Thread.activeCount()-before<=1);
+        for (Socket s : sockets)
+            s.close();
+
+        assertTrue(closed.await(30, TimeUnit.SECONDS));
+        for (int i=0; i<n; i++)
+            assertEquals("events of #"+i, sinks.get(i).toString("US-ASCII"));
+        for (Integer port : ports)
+            new AntEvents.Close(port).call();
+    }
+
+    @Test
+    public void testCloseBeforeConnecting() throws Exception {
+        final CountDownLatch closed = new CountDownLatch(1);
+        int port = new AntEvents.Open(new OutputStream() {
+            @Override
+            public void write(int b) {
+                fail();
+            }
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        }).call();
+        // so there's nothing to wait for
+        assertFalse(new AntEvents.Close(port).call());
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Ant may have come and gone before the receiver got to accept its connection, which must still count.
+     */
+    @Test
+    public void testCloseAfterConnecting() throws Exception {
+        final CountDownLatch closed = new CountDownLatch(1);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        };
+        int port = new AntEvents.Open(sink).call();
+        Socket s = new Socket(InetAddress.getByName(null), port);
+        s.getOutputStream().write("events".getBytes("US-ASCII"));
+        s.close();
+        assertTrue(new AntEvents.Close(port).call());
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        assertEquals("events", sink.toString("US-ASCII"));
+    }
+
+    private void record(DataOutputStream out, int type, long timestamp, String name, boolean failed) throws IOException {
+        out.writeByte(type);
+        out.writeLong(timestamp);
+        out.writeUTF(name);
+        if (type==TARGET_FINISHED || type==TASK_FINISHED)
+            out.writeBoolean(failed);
+    }
+}
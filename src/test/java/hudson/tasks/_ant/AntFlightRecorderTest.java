@@ -0,0 +1,24 @@
+package hudson.tasks._ant;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link AntFlightRecorder}.
+ */
+public class AntFlightRecorderTest {
+    @Test
+    public void testUnlockOptions() {
+        assertEquals("", AntFlightRecorder.getUnlockOptions(AntJvm.parse("11.0.2", null)));
+        assertEquals("", AntFlightRecorder.getUnlockOptions(AntJvm.parse("17", "commercial")));
+        assertEquals("-XX:+UnlockCommercialFeatures -XX:+FlightRecorder ",
+                AntFlightRecorder.getUnlockOptions(AntJvm.parse("1.8.0_202", "commercial")));
+        assertEquals("", AntFlightRecorder.getUnlockOptions(AntJvm.parse("1.8.0_292", null)));
+        // no JFR at all
+        assertNull(AntFlightRecorder.getUnlockOptions(AntJvm.parse("1.8.0_31", "commercial")));
+        assertNull(AntFlightRecorder.getUnlockOptions(AntJvm.parse("1.8.0_252", null)));
+        assertNull(AntFlightRecorder.getUnlockOptions(AntJvm.parse("10.0.2", null)));
+        assertNull(AntFlightRecorder.getUnlockOptions(AntJvm.parse("1.7.0_80", "commercial")));
+    }
+}
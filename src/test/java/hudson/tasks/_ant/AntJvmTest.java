@@ -0,0 +1,66 @@
+package hudson.tasks._ant;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link AntJvm}.
+ */
+public class AntJvmTest {
+    @Test
+    public void testParse() {
+        AntJvm j = AntJvm.parse("1.8.0_202", "commercial");
+        assertEquals(8, j.getMajor());
+        assertEquals(202, j.getUpdate());
+        assertTrue(j.isCommercial());
+
+        j = AntJvm.parse("11.0.2", null);
+        assertEquals(11, j.getMajor());
+        assertEquals(0, j.getUpdate());
+        assertFalse(j.isCommercial());
+
+        assertEquals(17, AntJvm.parse("17", null).getMajor());
+        assertEquals(18, AntJvm.parse("18-ea", null).getMajor());
+        assertEquals(7, AntJvm.parse("1.7.0_80", null).getMajor());
+        assertNull(AntJvm.parse("unknown", null));
+        assertNull(AntJvm.parse(null, null));
+    }
+
+    @Test
+    public void testFind() throws IOException {
+        File home = File.createTempFile("jdk", "");
+        try {
+            assertTrue(home.delete());
+            assertTrue(new File(home, "jre/bin").mkdirs());
+            FileOutputStream out = new FileOutputStream(new File(home, "release"));
+            out.write("JAVA_VERSION=\"1.8.0_202\"\nBUILD_TYPE=\"commercial\"\n".getBytes("US-ASCII"));
+            out.close();
+
+            assertEquals("1.8.0_202", AntJvm.find(home.getPath(), null).getVersion());
+            // the JRE of the JDK
+            assertTrue(AntJvm.find(new File(home, "jre").getPath(), null).isCommercial());
+            assertNull(AntJvm.find(new File(home, "jre/bin").getPath(), null));
+
+            // or else the first java on the PATH
+            File java = new File(home, "jre/bin/"+(File.separatorChar=='\\' ? "java.exe" : "java"));
+            assertTrue(java.createNewFile());
+            assertEquals(8, AntJvm.find(null, "/nonexistent"+File.pathSeparator+java.getParent()).getMajor());
+            assertNull(AntJvm.find(null, "/nonexistent"));
+        } finally {
+            deleteRecursive(home);
+        }
+    }
+
+    private static void deleteRecursive(File f) {
+        File[] children = f.listFiles();
+        if (children!=null)
+            for (File c : children)
+                deleteRecursive(c);
+        f.delete();
+    }
+}
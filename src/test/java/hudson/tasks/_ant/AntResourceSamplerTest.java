@@ -0,0 +1,86 @@
+package hudson.tasks._ant;
+
+import hudson.tasks._ant.AntResourceAction.Series;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link AntResourceSampler} and {@link AntResourceAction.Series}.
+ */
+public class AntResourceSamplerTest {
+
+    @Test
+    public void testParse() throws IOException {
+        AntResourceSampler.Stat s = new AntResourceSampler.Stat();
+        // the command may contain spaces and parentheses
+        s.parseStat("1234 (java (x) y) S 1 1234 1234 0 -1 4202496 60 0 0 0 250 130 0 0 20 0 42 0 100 0 0");
+        assertEquals(3800, s.cpu);
+
+        Map<String,String> status = new LinkedHashMap<String,String>();
+        status.put("Name", "java");
+        status.put("VmHWM", "204800 kB");
+        status.put("VmRSS", "102400 kB");
+        status.put("Threads", "42");
+        s.parseStatus(status);
+        assertEquals(102400, s.rss);
+        assertEquals(204800, s.peakRss);
+        assertEquals(42, s.threads);
+
+        Map<String,String> io = new LinkedHashMap<String,String>();
+        io.put("rchar", "999");
+        io.put("read_bytes", "4096");
+        io.put("write_bytes", "8192");
+        s.parseIo(io);
+        assertEquals(4096, s.readBytes);
+        assertEquals(8192, s.writeBytes);
+
+        try {
+            s.parseStat("garbage");
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Processes are recorded without their arguments, which hold the sensitive build variables.
+     */
+    @Test
+    public void testDescribe() {
+        assertEquals("java org.apache.tools.ant.launch.Launcher", AntProcesses.describe(Arrays.asList(
+                "/usr/bin/java", "-Xmx512m", "-classpath", "/opt/ant/lib/ant-launcher.jar",
+                "-Dant.home=/opt/ant", "org.apache.tools.ant.launch.Launcher", "-Dpassword=s3cr3t", "dist")));
+        assertEquals("java.exe -jar app.jar", AntProcesses.describe(Arrays.asList(
+                "C:\\jdk\\bin\\java.exe", "-jar", "C:\\work\\app.jar", "--token", "s3cr3t")));
+        assertEquals("sh", AntProcesses.describe(Arrays.asList("/bin/sh", "-c", "curl -u admin:s3cr3t")));
+        assertEquals("", AntProcesses.describe(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void testSeriesIsThinnedOut() {
+        Series s = new Series(100);
+        int n = AntResourceAction.MAX_SAMPLES*4;
+        for (int i=0; i<n; i++)
+            s.add(i*100, i*10, 1000+i, 5, i, 2*i);
+        s.trim();
+
+        assertTrue(s.size()<=AntResourceAction.MAX_SAMPLES);
+        assertTrue(s.size()>=AntResourceAction.MAX_SAMPLES/2);
+        // one sample in every so many was kept
+        long stride = s.getInterval()/100;
+        assertTrue(stride>1);
+        assertTrue(Math.abs(n/stride-s.size())<=1);
+        // the cumulative values are as of the last sample that was kept
+        assertTrue(s.getCpuTime()>=(n-stride)*10);
+        assertTrue(s.getPeakRss()>=1000+n-stride);
+        assertEquals(5, s.getMaxThreads());
+        assertEquals(2*s.getReadBytes(), s.getWriteBytes());
+    }
+}
@@ -0,0 +1,34 @@
+package hudson.tasks._ant;
+
+import java.util.Arrays;
+
+/**
+ * Measures how long {@link AntSecretMasker} takes with more and more values to mask, which should stay about the same.
+ * Not a test, since timings are too noisy for that. Run it with
+ * <tt>java -cp target/classes:target/test-classes:... hudson.tasks._ant.AntSecretMaskerBenchmark</tt>.
+ */
+public class AntSecretMaskerBenchmark {
+    public static void main(String[] args) throws Exception {
+        int[] counts = {0, 10, 1000};
+        AntSecretMaskerTest.Lines[] lines = new AntSecretMaskerTest.Lines[counts.length];
+        for (int c=0; c<counts.length; c++)
+            lines[c] = new AntSecretMaskerTest.Lines(counts[c], 20000);
+
+        // warm up the JIT on all of them before measuring any
+        for (int run=0; run<5; run++)
+            for (AntSecretMaskerTest.Lines l : lines)
+                l.mask();
+
+        long[] times = new long[counts.length];
+        Arrays.fill(times, Long.MAX_VALUE);
+        for (int run=0; run<10; run++) {
+            for (int c=0; c<counts.length; c++) {
+                long start = System.nanoTime();
+                lines[c].mask();
+                times[c] = Math.min(times[c], System.nanoTime()-start);
+            }
+        }
+        for (int c=0; c<counts.length; c++)
+            System.out.printf("%5d secrets: %6.2fms (%.2fx)%n", counts[c], times[c]/1e6, (double)times[c]/times[0]);
+    }
+}
@@ -0,0 +1,115 @@
+package hudson.tasks._ant;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link AntSecretMasker}.
+ */
+public class AntSecretMaskerTest {
+
+    @Test
+    public void testMask() throws IOException {
+        AntSecretMasker.Automaton a = automaton("secret", "cret", "he", "she", "hers", "caf\u00e9");
+        assertEquals("[echo] ********", mask(a, "[echo] secret"));
+        assertEquals("[echo] ******** and ********!", mask(a, "[echo] secret and hers!"));
+        // overlapping and adjacent values are masked as a whole
+        assertEquals("u********", mask(a, "ushers"));
+        assertEquals("********", mask(a, "secretcret"));
+        assertEquals("secre******** ********", mask(a, "secrecret caf\u00e9"));
+        assertEquals("nothing to see", mask(a, "nothing to see"));
+        assertEquals("", mask(a, ""));
+    }
+
+    @Test
+    public void testStream() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        OutputStream out = new AntSecretMasker.MaskingOutputStream(buf, automaton("p4ssw0rd"));
+        byte[] b = "[exec] login -p p4ssw0rd\n[exec] failed\np4ss".getBytes("UTF-8");
+        // in odd pieces, as the process writes them
+        for (int i=0; i<b.length; i+=5)
+            out.write(b, i, Math.min(5, b.length-i));
+        out.close();
+        assertEquals("[exec] login -p ********\n[exec] failed\np4ss", buf.toString("UTF-8"));
+    }
+
+    /**
+     * Masks many lines with more and more values to mask. How long that takes is measured by
+     * {@link AntSecretMaskerBenchmark}, which isn't run with the tests, since timings are too noisy for them.
+     */
+    @Test
+    public void testManySecrets() throws IOException {
+        for (int n : new int[] {0, 10, 1000}) {
+            Lines l = new Lines(n, 2000);
+            l.check(l.mask());
+        }
+    }
+
+    /**
+     * Lines like those of a build, every 100th of which has the last of a number of secrets in it.
+     */
+    static final class Lines {
+        final int secrets;
+        final int lines;
+        final AntSecretMasker.Automaton automaton;
+        private final byte[] plain, secret, masked;
+
+        Lines(int secrets, int lines) throws IOException {
+            this.secrets = secrets;
+            this.lines = lines;
+            StringBuilder line = new StringBuilder();
+            while (line.length()<100)
+                line.append("    [javac] Compiling 42 source files to /home/jenkins/workspace/build/classes ");
+            List<String> values = new ArrayList<String>();
+            for (int i=0; i<secrets; i++)
+                values.add("s3cr3t-"+i+"-"+Integer.toHexString(i*7919));
+            plain = (line+"\n").getBytes("UTF-8");
+            secret = (line+(secrets==0 ? "" : values.get(secrets-1))+"\n").getBytes("UTF-8");
+            masked = (line+(secrets==0 ? "" : "********")+"\n").getBytes("UTF-8");
+            automaton = automaton(values.toArray(new String[secrets]));
+        }
+
+        byte[] mask() throws IOException {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            OutputStream out = new AntSecretMasker.MaskingOutputStream(buf, automaton);
+            for (int i=0; i<lines; i++) {
+                byte[] b = i%100==0 ? secret : plain;
+                out.write(b, 0, b.length);
+            }
+            out.close();
+            return buf.toByteArray();
+        }
+
+        void check(byte[] r) {
+            int p = 0;
+            for (int i=0; i<lines; i++) {
+                byte[] expected = i%100==0 ? masked : plain;
+                assertArrayEquals("line "+i+" with "+secrets+" secrets", expected, Arrays.copyOfRange(r, p, p+expected.length));
+                p += expected.length;
+            }
+            assertEquals(r.length, p);
+        }
+    }
+
+    static AntSecretMasker.Automaton automaton(String... values) throws IOException {
+        List<byte[]> patterns = new ArrayList<byte[]>();
+        for (String v : values)
+            patterns.add(v.getBytes("UTF-8"));
+        return new AntSecretMasker.Automaton(patterns);
+    }
+
+    private static String mask(AntSecretMasker.Automaton a, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        a.mask(b, b.length, buf);
+        return buf.toString("UTF-8");
+    }
+}
@@ -0,0 +1,146 @@
+package hudson.tasks._ant;
+
+import hudson.FilePath;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link AntStepCache}.
+ */
+public class AntStepCacheTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("antStepCache", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children!=null)
+            for (File c : children)
+                delete(c);
+        f.delete();
+    }
+
+    @Test
+    public void testFingerprint() throws Exception {
+        File ws = new File(dir, "ws");
+        FilePath buildFile = new FilePath(write(ws, "build.xml", "<project><import file='common.xml' optional='true'/></project>"));
+        write(ws, "src/A.java", "class A {}");
+        AntStepCache cache = new AntStepCache(new FilePath(ws), new FilePath(new File(dir, "cache")));
+
+        String fp = cache.fingerprint(buildFile, "src/**", null, "dist");
+        assertEquals(fp, cache.fingerprint(buildFile, "src/**", null, "dist"));
+        assertFalse(fp.equals(cache.fingerprint(buildFile, "src/**", null, "clean dist")));
+
+        // an input changes
+        write(ws, "src/A.java", "class A { }");
+        String fp2 = cache.fingerprint(buildFile, "src/**", null, "dist");
+        assertFalse(fp.equals(fp2));
+
+        // an import that didn't exist shows up
+        write(ws, "common.xml", "<project/>");
+        assertFalse(fp2.equals(cache.fingerprint(buildFile, "src/**", null, "dist")));
+    }
+
+    /**
+     * An import whose file depends on a property can't be covered, so the step has to run.
+     */
+    @Test
+    public void testUnresolvedImport() throws Exception {
+        File ws = new File(dir, "ws");
+        FilePath buildFile = new FilePath(write(ws, "build.xml", "<project><import file='${common.dir}/common.xml'/></project>"));
+        AntStepCache cache = new AntStepCache(new FilePath(ws), new FilePath(new File(dir, "cache")));
+        try {
+            cache.fingerprint(buildFile, null, null, "dist");
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testStoreAndRestore() throws Exception {
+        File ws = new File(dir, "ws");
+        ws.mkdirs();
+        AntStepCache cache = new AntStepCache(new FilePath(ws), new FilePath(new File(dir, "cache")));
+
+        assertEquals(-1, cache.restore("1234"));
+        cache.store("1234", null);
+        assertEquals(0, cache.restore("1234"));
+        assertEquals(-1, cache.restore("5678"));
+        cache.store("5678", null);
+        assertEquals(-1, cache.restore("1234"));
+        assertEquals(0, cache.restore("5678"));
+    }
+
+    @Test
+    public void testSharedDirectory() throws Exception {
+        File shared = new File(dir, "shared");
+        File a = write(dir, "a.tgz", "aaaa");
+        File b = write(dir, "b.tgz", "bbbb");
+
+        AntStepCache.publish(shared, "aa11", a, 10);
+        AntStepCache.publish(shared, "bb22", b, 10);
+        File pa = AntStepCache.getSharedArchive(shared, "aa11");
+        File pb = AntStepCache.getSharedArchive(shared, "bb22");
+        assertTrue(pa.exists());
+        assertTrue(pb.exists());
+        assertEquals(1, pa.getParentFile().list().length);  // no temporary file left behind
+
+        // a has been used more recently than b, so b goes first
+        pb.setLastModified(System.currentTimeMillis()-60000);
+        AntStepCache.publish(shared, "cc33", write(dir, "c.tgz", "cccc"), 10);
+        assertTrue(pa.exists());
+        assertFalse(pb.exists());
+        assertTrue(AntStepCache.getSharedArchive(shared, "cc33").exists());
+    }
+
+    @Test
+    public void testDigest() throws Exception {
+        // bigger than what gets read through a buffer, so that it's mapped
+        byte[] data = new byte[3*1024*1024+17];
+        for (int i=0; i<data.length; i++)
+            data[i] = (byte)i;
+        File big = new File(dir, "big");
+        FileOutputStream out = new FileOutputStream(big);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        File small = write(dir, "small", "x");
+
+        assertEquals(Arrays.asList(AntStepCache.digest(big), AntStepCache.digest(small)),
+                AntStepCache.digestAll(Arrays.asList(big, small)));
+        assertEquals(AntTargetGraphParser.digest(big), AntStepCache.digest(big));
+    }
+
+    private static File write(File dir, String name, String content) throws IOException {
+        File f = new File(dir, name);
+        f.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+}
@@ -31,4 +31,47 @@ public class AntTargetAnnotationTest extends HudsonTestCase {
             AntTargetNote.ENABLED = false;
         }
     }
+
+    public void testTargetTimings() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        Ant.AntInstallation ant = configureDefaultAnt();
+        p.getBuildersList().add(new Ant("foo",ant.getName(),null,null,null));
+        p.setScm(new SingleFileSCM("build.xml",getClass().getResource("simple-build.xml")));
+        FreeStyleBuild b = buildAndAssertSuccess(p);
+
+        AntTargetsAction a = b.getAction(AntTargetsAction.class);
+        assertNotNull(a);
+        assertEquals(2,a.getTargets().size());
+        assertEquals("bar",a.getTargets().get(0).getName());
+        assertEquals("foo",a.getTargets().get(1).getName());
+
+        createWebClient().getPage(b, "antTargets");
+        createWebClient().goTo(b.getUrl()+"api/json?depth=1", "application/json");
+
+        // the target index lets us jump straight to the output of a single target
+        String bar = createWebClient().goTo(b.getUrl()+"antTargets/jump?name=bar", "text/plain")
+                .getWebResponse().getContentAsString();
+        assertTrue(bar, bar.startsWith("bar:"));
+        assertTrue(bar, bar.contains("def"));
+        assertFalse(bar, bar.contains("abc"));
+    }
+
+    public void testTargetEvents() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        Ant.AntInstallation ant = configureDefaultAnt();
+        p.getBuildersList().add(new Ant("foo",ant.getName(),null,null,null));
+        p.setScm(new SingleFileSCM("build.xml",getClass().getResource("simple-build.xml")));
+
+        AntEvents.ENABLED = true;
+        try {
+            FreeStyleBuild b = buildAndAssertSuccess(p);
+
+            AntTargetsAction a = b.getAction(AntTargetsAction.class);
+            assertEquals(2,a.getTargets().size());
+            assertEquals("bar",a.getTargets().get(0).getName());
+            assertEquals("foo",a.getTargets().get(1).getName());
+        } finally {
+            AntEvents.ENABLED = false;
+        }
+    }
 }
@@ -0,0 +1,179 @@
+package hudson.tasks._ant;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link AntTargetGraph} and {@link AntTargetGraphParser}.
+ */
+public class AntTargetGraphTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("antTargetGraph", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testExecutionPlan() throws IOException {
+        AntTargetGraph g = AntTargetGraphParser.parse(write("build.xml",
+                "<project name='p' default='dist'>",
+                "  <target name='init'/>",
+                "  <target name='compile' depends='init' if='src.present'/>",
+                "  <target name='test' depends='compile, init'/>",
+                "  <target name='docs' depends='init'/>",
+                "  <target name='dist' depends='compile,docs' description='Builds everything'/>",
+                "</project>"));
+
+        assertEquals("p", g.getProjectName());
+        assertEquals("src.present", g.getTarget("compile").getIf());
+        assertEquals("Builds everything", g.getTarget("dist").getDescription());
+        assertEquals(Arrays.asList("compile","init"), g.getDependencies("test"));
+
+        Map<String,List<String>> plan = g.getExecutionPlan(Collections.<String>emptyList());
+        assertEquals(Collections.singletonMap("dist", Arrays.asList("init","compile","docs","dist")), plan);
+
+        // like Ant, shared dependencies are run again for each requested target
+        plan = g.getExecutionPlan(Arrays.asList("test","docs"));
+        assertEquals(Arrays.asList("init","compile","test"), plan.get("test"));
+        assertEquals(Arrays.asList("init","docs"), plan.get("docs"));
+    }
+
+    @Test
+    public void testIndependentGroups() throws IOException {
+        AntTargetGraph g = AntTargetGraphParser.parse(write("build.xml",
+                "<project name='p'>",
+                "  <target name='init'/>",
+                "  <target name='server' depends='init'/>",
+                "  <target name='client'/>",
+                "  <target name='docs'/>",
+                "  <target name='war' depends='client,init'/>",
+                "</project>"));
+        assertEquals(Arrays.asList(Arrays.asList("server","client","war"), Arrays.asList("docs")),
+                g.getIndependentGroups(Arrays.asList("server","client","docs","war")));
+        assertEquals(Arrays.asList(Arrays.asList("client"), Arrays.asList("docs")),
+                g.getIndependentGroups(Arrays.asList("client","docs")));
+    }
+
+    @Test
+    public void testErrors() throws IOException {
+        AntTargetGraph g = AntTargetGraphParser.parse(write("build.xml",
+                "<project name='p'>",
+                "  <target name='a' depends='b'/>",
+                "  <target name='b' depends='a'/>",
+                "  <target name='c' depends='missing'/>",
+                "</project>"));
+        try {
+            g.getExecutionPlan(Arrays.asList("a"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Circular dependency: a <- b <- a", e.getMessage());
+        }
+        try {
+            g.getExecutionPlan(Arrays.asList("c"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("\"missing\""));
+        }
+    }
+
+    @Test
+    public void testImportIncludeAndExtensionPoints() throws IOException {
+        write("common.xml",
+                "<project name='common'>",
+                "  <target name='init'/>",
+                "  <target name='clean'/>",
+                "  <extension-point name='ready' depends='init'/>",
+                "</project>");
+        write("lib.xml",
+                "<project name='lib'>",
+                "  <target name='compile' depends='prepare'/>",
+                "  <target name='prepare'/>",
+                "</project>");
+        AntTargetGraph g = AntTargetGraphParser.parse(write("build.xml",
+                "<project name='p'>",
+                "  <import file='common.xml'/>",
+                "  <include file='${basedir}/lib.xml'/>",
+                "  <import file='optional.xml' optional='true'/>",
+                "  <target name='clean'/>",
+                "  <target name='setup' extensionOf='ready'/>",
+                "</project>"));
+
+        // the own target wins over the imported one, which is still reachable with the prefix
+        assertTrue(g.getTarget("clean").getFile().endsWith("build.xml"));
+        assertTrue(g.getTarget("common.clean").getFile().endsWith("common.xml"));
+        // included targets only exist with the prefix, and so do their dependencies
+        assertNull(g.getTarget("compile"));
+        assertEquals(Arrays.asList("lib.prepare"), g.getTarget("lib.compile").getDepends());
+        assertEquals(Arrays.asList("init","setup","ready"), g.getExecutionPlan(Arrays.asList("ready")).get("ready"));
+        assertTrue(g.getWarnings().toString(), g.getWarnings().isEmpty());
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        File f = write("build.xml", "<project name='p'><target name='a'/></project>");
+        AntTargetGraph g = AntTargetGraphParser.parse(f);
+        assertSame(g, AntTargetGraphParser.parse(f));
+
+        write("build.xml", "<project name='p'><target name='b'/></project>");
+        g = AntTargetGraphParser.parse(f);
+        assertNotNull(g.getTarget("b"));
+        assertNull(g.getTarget("a"));
+    }
+
+    /**
+     * Entities are neither resolved nor expanded, since they could point anywhere, but the script can't be digested.
+     */
+    @Test
+    public void testEntities() throws IOException {
+        File common = write("common.xml", "<target name='common'/>");
+        File f = write("build.xml",
+                "<!DOCTYPE project [ <!ENTITY common SYSTEM '"+common.toURI()+"'> ]>",
+                "<project name='p'>",
+                "  &common;",
+                "  <target name='a'><echo>a &amp; b</echo></target>",
+                "</project>");
+        AntTargetGraph g = AntTargetGraphParser.parse(f);
+        assertNotNull(g.getTarget("a"));
+        assertNull(g.getTarget("common"));
+        assertEquals(1, g.getWarnings().size());
+        try {
+            AntTargetGraphParser.getDigests(f);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private File write(String name, String... lines) throws IOException {
+        File f = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            for (String line : lines)
+                out.write((line+"\n").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+}
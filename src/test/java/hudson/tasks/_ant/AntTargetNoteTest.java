@@ -37,6 +37,14 @@ public class AntTargetNoteTest {
         assertEquals("<b class=ant-target>TEST:TARGET</b>:", annotate("TEST:TARGET:"));
     }
 
+    @Test
+    public void testAnnotatePrefixedTarget() {
+        // the name of the group of targets in a parallel build
+        MarkupText markupText = new MarkupText("[a,b] compile:");
+        new AntTargetNote().annotate(new Object(), markupText, 6);
+        assertEquals("[a,b] <b class=ant-target>compile</b>:", markupText.toString(true));
+    }
+
     @Test
     public void testDisabled() {
         AntTargetNote.ENABLED = false;
@@ -0,0 +1,89 @@
+package hudson.tasks._ant;
+
+import hudson.tasks._ant.AntTargetsAction.IndexEntry;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the target index of {@link AntTargetsAction}.
+ */
+public class AntTargetsActionTest {
+
+    @Test
+    public void testIndexRoundtrip() throws IOException {
+        File f = File.createTempFile("antTargets", ".idx");
+        try {
+            assertTrue(f.delete());
+            assertTrue(IndexEntry.read(f).isEmpty());
+
+            IndexEntry.append(f, new IndexEntry("init", 120, 3));
+            IndexEntry.append(f, new IndexEntry("compile", 5000000000L, 42));
+
+            List<IndexEntry> index = IndexEntry.read(f);
+            assertEquals(2, index.size());
+            assertEquals("init", index.get(0).getName());
+            assertEquals(120, index.get(0).getOffset());
+            assertEquals(3, index.get(0).getLine());
+            assertEquals("compile", index.get(1).getName());
+            assertEquals(5000000000L, index.get(1).getOffset());
+            assertEquals(42, index.get(1).getLine());
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testTruncatedIndex() throws IOException {
+        File f = File.createTempFile("antTargets", ".idx");
+        try {
+            assertTrue(f.delete());
+            IndexEntry.append(f, new IndexEntry("init", 120, 3));
+
+            // simulate a crash in the middle of writing the next record
+            FileOutputStream out = new FileOutputStream(f, true);
+            out.write(new byte[]{0, 4, 'd', 'i', 's', 't', 0, 0});
+            out.close();
+
+            List<IndexEntry> index = IndexEntry.read(f);
+            assertEquals(1, index.size());
+            assertEquals("init", index.get(0).getName());
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testStepEnd() throws IOException {
+        File f = File.createTempFile("antTargets", ".idx");
+        try {
+            assertTrue(f.delete());
+            IndexEntry.append(f, new IndexEntry("compile", 120, 3));
+            IndexEntry.append(f, new IndexEntry(IndexEntry.STEP_END, 300, -1));
+            IndexEntry.append(f, new IndexEntry("compile", 500, 0));
+
+            List<IndexEntry> index = IndexEntry.read(f);
+            assertEquals(3, index.size());
+            assertFalse(index.get(0).isStepEnd());
+            assertTrue(index.get(1).isStepEnd());
+            // the first step's target ends where the step does, not where the next step's begins
+            assertEquals(300, index.get(1).getOffset());
+            assertFalse(index.get(2).isStepEnd());
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testIconOnlyWithTargets() {
+        AntTargetsAction a = new AntTargetsAction();
+        assertNull(a.getIconFileName());
+        a.targetStarted("compile", 1000, 0, 0);
+        assertNotNull(a.getIconFileName());
+    }
+}
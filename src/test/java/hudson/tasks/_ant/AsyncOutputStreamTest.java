@@ -0,0 +1,138 @@
+package hudson.tasks._ant;
+
+import hudson.tasks._ant.AsyncOutputStream.Overflow;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the {@link AsyncOutputStream} class.
+ */
+public class AsyncOutputStreamTest {
+
+    @Test
+    public void testBlock() throws Exception {
+        assertRoundtrip(Overflow.BLOCK);
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        assertRoundtrip(Overflow.SPILL);
+    }
+
+    /**
+     * Writes a lot more than the buffer can hold into a slow delegate,
+     * and makes sure everything comes out in the same order.
+     */
+    private void assertRoundtrip(Overflow overflow) throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        SlowOutputStream actual = new SlowOutputStream();
+
+        AsyncOutputStream async = new AsyncOutputStream(actual, 64, overflow, "test");
+        for (int i=0; i<500; i++) {
+            byte[] line = ("line "+i+"\n").getBytes("US-ASCII");
+            expected.write(line);
+            async.write(line);
+        }
+        async.flush();
+        assertEquals(0, async.getDepth());
+        async.close();
+
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+        assertTrue(actual.closed);
+        assertTrue(async.getMaxDepth()<=64);
+        if (overflow==Overflow.SPILL)
+            assertTrue(async.getSpilledBytes()>0);
+        else
+            assertEquals(0, async.getSpilledBytes());
+    }
+
+    @Test
+    public void testFinishLeavesDelegateOpen() throws Exception {
+        SlowOutputStream actual = new SlowOutputStream();
+        AsyncOutputStream async = new AsyncOutputStream(actual, 16, Overflow.BLOCK, "test");
+        async.write("BUILD SUCCESSFUL\n".getBytes("US-ASCII"));
+        async.finish();
+
+        assertEquals("BUILD SUCCESSFUL\n", new String(actual.toByteArray(), "US-ASCII"));
+        assertFalse(actual.closed);
+    }
+
+    @Test
+    public void testFailureIsReported() throws Exception {
+        AsyncOutputStream async = new AsyncOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken");
+            }
+        }, 16, Overflow.BLOCK, "test");
+        async.write('x');
+        try {
+            async.finish();
+            fail("expected the failure of the delegate to be reported");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Many streams at once don't need a thread each.
+     */
+    @Test
+    public void testThreadsAreShared() throws Exception {
+        int before = Thread.activeCount();
+        List<AsyncOutputStream> streams = new ArrayList<AsyncOutputStream>();
+        List<ByteArrayOutputStream> outs = new ArrayList<ByteArrayOutputStream>();
+        for (int i=0; i<200; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            outs.add(out);
+            streams.add(new AsyncOutputStream(out, 64, Overflow.BLOCK, "build #"+i));
+        }
+        for (int line=0; line<50; line++) {
+            for (AsyncOutputStream s : streams)
+                s.write(("line "+line+"\n").getBytes("US-ASCII"));
+        }
+        assertTrue(Thread.activeCount()-before <= AntThreadPool.SIZE);
+
+        for (AsyncOutputStream s : streams)
+            s.finish();
+        for (ByteArrayOutputStream out : outs) {
+            String s = new String(out.toByteArray(), "US-ASCII");
+            assertTrue(s, s.startsWith("line 0\n") && s.endsWith("line 49\n"));
+            assertEquals(50, s.split("\n").length);
+        }
+    }
+
+    @Test
+    public void testOverflowProperty() {
+        assertEquals(AsyncOutputStream.Overflow.BLOCK, AsyncOutputStream.getOverflow(null));
+        assertEquals(AsyncOutputStream.Overflow.SPILL, AsyncOutputStream.getOverflow(" spill"));
+        // a typo mustn't fail every build
+        assertEquals(AsyncOutputStream.Overflow.BLOCK, AsyncOutputStream.getOverflow("spil"));
+    }
+
+    private static class SlowOutputStream extends ByteArrayOutputStream {
+        boolean closed;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+        }
+    }
+}